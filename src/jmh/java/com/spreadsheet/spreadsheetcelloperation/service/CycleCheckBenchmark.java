@@ -0,0 +1,55 @@
+package com.spreadsheet.spreadsheetcelloperation.service;
+
+import com.spreadsheet.spreadsheetcelloperation.exception.CircularDependencyException;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cycle check of a write against the dependency graph, which replaced the depth first search
+ * of the former DependencyUtil.hasCircularDependency. Both writes leave the graph unchanged.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CycleCheckBenchmark {
+
+    @Param({"WIDE_FAN_IN", "DEEP_CHAIN", "DIAMOND", "RANDOM_DAG"})
+    public SyntheticSheet.Shape shape;
+
+    @Param({"1000", "10000"})
+    public int size;
+
+    private SyntheticSheet sheet;
+    private DependencyGraph dependencyGraph;
+    private List<String> targetPrecedents;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        sheet = SyntheticSheet.of(shape, size);
+        dependencyGraph = new DependencyGraph();
+        dependencyGraph.load(sheet.toDependencyEdges());
+        targetPrecedents = dependencyGraph.getPrecedents(sheet.getTargetCellId());
+    }
+
+    @Benchmark
+    public Set<String> rewriteTargetWithSamePrecedents() {
+        return dependencyGraph.setPrecedents(sheet.getTargetCellId(), targetPrecedents);
+    }
+
+    @Benchmark
+    public CircularDependencyException rejectWriteClosingCycle() {
+        try {
+            dependencyGraph.setPrecedents(sheet.getInputCellId(), List.of(sheet.getTargetCellId()));
+            throw new IllegalStateException("The write should close a cycle");
+        }
+        catch (CircularDependencyException e) {
+            return e;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.spreadsheet.spreadsheetcelloperation.service;
+
+import com.spreadsheet.spreadsheetcelloperation.SpreadsheetCellOperationApplication;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes and reads through the application service, with an embedded H2 database in place of MySQL.
+ * Writing the input cell recalculates the whole sheet, so the target cell is then read from the value cache.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EndToEndBenchmark {
+
+    @Param({"jpa", "columnar"})
+    public String engine;
+
+    @Param({"WIDE_FAN_IN", "DEEP_CHAIN", "DIAMOND", "RANDOM_DAG"})
+    public SyntheticSheet.Shape shape;
+
+    @Param({"1000"})
+    public int size;
+
+    private SyntheticSheet sheet;
+    private ConfigurableApplicationContext context;
+    private CellOperation cellOperation;
+    private long inputValue;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        sheet = SyntheticSheet.of(shape, size);
+        context = new SpringApplicationBuilder(SpreadsheetCellOperationApplication.class)
+                .web(WebApplicationType.NONE)
+                .properties(
+                        "spring.datasource.url=jdbc:h2:mem:benchmark;DB_CLOSE_DELAY=-1",
+                        "spring.jpa.hibernate.ddl-auto=create-drop",
+                        "spreadsheet.storage.engine=" + engine,
+                        // the writes are measured with their recalculation
+                        "spreadsheet.recalculation.mode=eager",
+                        "logging.level.root=WARN")
+                .run();
+        cellOperation = context.getBean(CellOperation.class);
+        cellOperation.setCellValues(new LinkedHashMap<>(sheet.getData()));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public void setCellValue() {
+        cellOperation.setCellValue(sheet.getInputCellId(), ++inputValue);
+    }
+
+    @Benchmark
+    public String getCellValue() {
+        return cellOperation.getCellValue(sheet.getTargetCellId());
+    }
+}
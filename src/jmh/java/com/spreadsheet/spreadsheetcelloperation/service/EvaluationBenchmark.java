@@ -0,0 +1,92 @@
+package com.spreadsheet.spreadsheetcelloperation.service;
+
+import com.spreadsheet.spreadsheetcelloperation.model.Cell;
+import com.spreadsheet.spreadsheetcelloperation.model.Formula;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.micrometer.observation.ObservationRegistry;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Evaluation hot paths of the service over an in-memory store. Every invocation starts without cached values,
+ * so reads evaluate the whole subgraph of the target cell, while compiled formulas stay cached.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EvaluationBenchmark {
+
+    @Param({"WIDE_FAN_IN", "DEEP_CHAIN", "DIAMOND", "RANDOM_DAG", "RANGE_FAN_IN"})
+    public SyntheticSheet.Shape shape;
+
+    @Param({"1000", "10000"})
+    public int size;
+
+    private SyntheticSheet sheet;
+    private InMemoryCellStore cellStore;
+    private FormulaCache formulaCache;
+    private DependencyGraph dependencyGraph;
+    private RecalculationScheduler recalculationScheduler;
+    private CellMetrics cellMetrics;
+    private Formula targetFormula;
+
+    private ValueCache valueCache;
+    private CellOperationService service;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        sheet = SyntheticSheet.of(shape, size);
+        cellStore = new InMemoryCellStore(sheet.toCells());
+        formulaCache = new FormulaCache(1_000_000);
+        dependencyGraph = new DependencyGraph();
+        dependencyGraph.load(sheet.toDependencyEdges());
+        recalculationScheduler = new RecalculationScheduler(512, 0, RecalculationScheduler.Mode.EAGER, Duration.ZERO, Duration.ZERO, Duration.ofSeconds(5));
+        cellMetrics = new CellMetrics(new SimpleMeterRegistry(), ObservationRegistry.NOOP);
+        String targetCellId = sheet.getTargetCellId();
+        targetFormula = formulaCache.getOrCompile(targetCellId, sheet.getData().get(targetCellId).substring(1));
+    }
+
+    @Setup(Level.Invocation)
+    public void resetValueCache() {
+        valueCache = new ValueCache(1_000_000);
+        service = new CellOperationService(cellStore, formulaCache, valueCache, dependencyGraph, recalculationScheduler, cellMetrics, new CellLocks(1024),
+                new CellSubscriptions(Duration.ofMillis(100), 1, Duration.ofMinutes(1)));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        recalculationScheduler.shutdown();
+    }
+
+    @Benchmark
+    public Double evaluateExpression() {
+        return service.evaluateExpression(targetFormula, new HashMap<>(), valueCache.getGeneration());
+    }
+
+    @Benchmark
+    public String calculateExpressionValue() {
+        return service.calculateExpressionValue(targetFormula, valueCache.getGeneration());
+    }
+
+    @Benchmark
+    public String getCellValue() {
+        return service.getCellValue(sheet.getTargetCellId());
+    }
+
+    @Benchmark
+    public List<Cell> createDependencyListFromExpression() {
+        return service.createDependencyListFromExpression(sheet.getTargetCellId(), targetFormula.getSource());
+    }
+
+    @Benchmark
+    public void recalculate() {
+        service.recalculate(List.of(sheet.getInputCellId()));
+    }
+}
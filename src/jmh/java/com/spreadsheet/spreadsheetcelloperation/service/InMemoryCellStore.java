@@ -0,0 +1,76 @@
+package com.spreadsheet.spreadsheetcelloperation.service;
+
+import com.spreadsheet.spreadsheetcelloperation.model.Cell;
+import com.spreadsheet.spreadsheetcelloperation.model.CellAddress;
+import com.spreadsheet.spreadsheetcelloperation.model.CellRange;
+import com.spreadsheet.spreadsheetcelloperation.model.DependencyEdge;
+import com.spreadsheet.spreadsheetcelloperation.repository.CellStore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Store over a map of cells, so that the service benchmarks measure the service rather than a database.
+ */
+public class InMemoryCellStore implements CellStore {
+
+    private final Map<String, Cell> cells;
+
+    public InMemoryCellStore(Map<String, Cell> cells) {
+        this.cells = new ConcurrentHashMap<>(cells);
+    }
+
+    @Override
+    public Optional<Cell> findById(String cellId) {
+        return Optional.ofNullable(cells.get(cellId));
+    }
+
+    @Override
+    public List<Cell> findAllById(Iterable<String> cellIds) {
+        List<Cell> found = new ArrayList<>();
+        cellIds.forEach(cellId -> {
+            Cell cell = cells.get(cellId);
+            if (cell != null) {
+                found.add(cell);
+            }
+        });
+        return found;
+    }
+
+    @Override
+    public List<Cell> findAllInRange(CellRange range) {
+        return cells.values().stream().filter(cell -> range.contains(cell.getCellId())).toList();
+    }
+
+    @Override
+    public Cell save(Cell cell) {
+        cells.put(cell.getCellId(), cell);
+        return cell;
+    }
+
+    @Override
+    public List<Cell> saveAll(Iterable<Cell> cellsToSave) {
+        List<Cell> saved = new ArrayList<>();
+        cellsToSave.forEach(cell -> saved.add(save(cell)));
+        return saved;
+    }
+
+    @Override
+    public List<DependencyEdge> findAllDependencyEdges() {
+        return List.of();
+    }
+
+    @Override
+    public Optional<CellRange> findUsedRange(String sheet) {
+        return cells.keySet().stream()
+                .filter(cellId -> CellAddress.sheetPrefixOf(cellId).equals(sheet))
+                .map(CellAddress::parse)
+                .map(address -> new CellRange(sheet, address.column(), address.row(), address.column(), address.row()))
+                .reduce((first, second) -> new CellRange(sheet, Math.min(first.startColumn(), second.startColumn()),
+                        Math.min(first.startRow(), second.startRow()), Math.max(first.endColumn(), second.endColumn()),
+                        Math.max(first.endRow(), second.endRow())));
+    }
+}
@@ -0,0 +1,152 @@
+package com.spreadsheet.spreadsheetcelloperation.service;
+
+import com.spreadsheet.spreadsheetcelloperation.model.Cell;
+import com.spreadsheet.spreadsheetcelloperation.model.DependencyEdge;
+import com.spreadsheet.spreadsheetcelloperation.utils.FormulaCompiler;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.StringJoiner;
+
+/**
+ * Generated sheet of a given shape, with an input cell every formula depends on, directly or not,
+ * and a target cell depending on most of the sheet.
+ */
+public class SyntheticSheet {
+
+    public enum Shape {
+        // one formula referencing every other cell
+        WIDE_FAN_IN,
+        // every formula references the previous row
+        DEEP_CHAIN,
+        // 26 columns of layers, every formula references two neighbouring cells of the previous column
+        DIAMOND,
+        // every formula references up to three random earlier rows
+        RANDOM_DAG,
+        // a column of formulas aggregating overlapping ranges of a column of numbers, summed by the target
+        RANGE_FAN_IN
+    }
+
+    private final Map<String, String> data;
+    private final String inputCellId;
+    private final String targetCellId;
+
+    private SyntheticSheet(Map<String, String> data, String inputCellId, String targetCellId) {
+        this.data = data;
+        this.inputCellId = inputCellId;
+        this.targetCellId = targetCellId;
+    }
+
+    /**
+     * @param size The approximate number of cells of the sheet.
+     */
+    public static SyntheticSheet of(Shape shape, int size) {
+
+        Map<String, String> data = new LinkedHashMap<>();
+        switch (shape) {
+            case WIDE_FAN_IN -> {
+                StringJoiner formula = new StringJoiner("+", "=", "");
+                for (int row = 1; row < size; row++) {
+                    data.put("B" + row, String.valueOf(row));
+                    formula.add("B" + row);
+                }
+                data.put("A1", formula.toString());
+                return new SyntheticSheet(data, "B1", "A1");
+            }
+            case DEEP_CHAIN -> {
+                data.put("A1", "1");
+                for (int row = 2; row <= size; row++) {
+                    data.put("A" + row, "=A" + (row - 1) + "+1");
+                }
+                return new SyntheticSheet(data, "A1", "A" + size);
+            }
+            case DIAMOND -> {
+                int width = Math.max(1, size / 26);
+                for (int row = 1; row <= width; row++) {
+                    data.put("A" + row, String.valueOf(row));
+                }
+                for (char column = 'B'; column <= 'Z'; column++) {
+                    char previous = (char) (column - 1);
+                    for (int row = 1; row <= width; row++) {
+                        data.put(column + String.valueOf(row), "=" + previous + row + "+" + previous + (row % width + 1));
+                    }
+                }
+                return new SyntheticSheet(data, "A1", "Z1");
+            }
+            case RANGE_FAN_IN -> {
+                int formulas = Math.max(1, size / 10);
+                int numbers = Math.max(1, size - formulas - 1);
+                for (int row = 1; row <= numbers; row++) {
+                    data.put("A" + row, String.valueOf(row));
+                }
+                for (int row = 1; row <= formulas; row++) {
+                    data.put("B" + row, "=SUM(A1:A" + Math.max(1, numbers * row / formulas) + ")/" + row + "+MAX(A1:A" + numbers + ")");
+                }
+                data.put("C1", "=SUM(B1:B" + formulas + ")+AVG(A1:A" + numbers + ")");
+                return new SyntheticSheet(data, "A1", "C1");
+            }
+            default -> {
+                Random random = new Random(42);
+                data.put("A1", "1");
+                for (int row = 2; row <= size; row++) {
+                    StringJoiner formula = new StringJoiner("+", "=", "");
+                    formula.add("A" + (row - 1));
+                    int references = random.nextInt(3);
+                    for (int i = 0; i < references; i++) {
+                        formula.add("A" + (1 + random.nextInt(row - 1)));
+                    }
+                    data.put("A" + row, formula.toString());
+                }
+                return new SyntheticSheet(data, "A1", "A" + size);
+            }
+        }
+    }
+
+    /**
+     * @return the data of every cell by cell ID, precedents before the formulas referencing them.
+     */
+    public Map<String, String> getData() {
+        return data;
+    }
+
+    public String getInputCellId() {
+        return inputCellId;
+    }
+
+    public String getTargetCellId() {
+        return targetCellId;
+    }
+
+    public Map<String, Cell> toCells() {
+
+        Map<String, Cell> cells = new LinkedHashMap<>();
+        data.forEach((cellId, cellData) -> cells.put(cellId, new Cell(cellId, cellData)));
+        return cells;
+    }
+
+    public List<DependencyEdge> toDependencyEdges() {
+
+        List<DependencyEdge> edges = new ArrayList<>();
+        data.forEach((cellId, cellData) -> {
+            if (cellData.startsWith("=")) {
+                for (String precedentId : FormulaCompiler.compile(cellData.substring(1)).getPrecedents()) {
+                    edges.add(new DependencyEdge() {
+                        @Override
+                        public String getCellId() {
+                            return cellId;
+                        }
+
+                        @Override
+                        public String getPrecedentId() {
+                            return precedentId;
+                        }
+                    });
+                }
+            }
+        });
+        return edges;
+    }
+}
@@ -0,0 +1,81 @@
+package com.spreadsheet.spreadsheetcelloperation.service;
+
+import com.spreadsheet.spreadsheetcelloperation.SpreadsheetCellOperationApplication;
+import com.spreadsheet.spreadsheetcelloperation.model.CellAddress;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Imports and exports a sheet of a million cells as CSV through the application, with an embedded H2 database
+ * in place of MySQL. Every other column holds a formula adding 1 to the number on its left.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgs = "-Xmx4g")
+@State(Scope.Benchmark)
+public class TransferBenchmark {
+
+    @Param({"jpa", "columnar"})
+    public String engine;
+
+    @Param({"10000"})
+    public int rows;
+
+    @Param({"100"})
+    public int columns;
+
+    private byte[] csv;
+    private ConfigurableApplicationContext context;
+    private CellTransfer cellTransfer;
+    private int importCount;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        StringBuilder builder = new StringBuilder();
+        for (int row = 1; row <= rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                if (column > 0) {
+                    builder.append(',');
+                }
+                builder.append(column % 2 == 0 ? String.valueOf(row) : "=" + CellAddress.columnName(column - 1) + row + "+1");
+            }
+            builder.append("\r\n");
+        }
+        csv = builder.toString().getBytes(StandardCharsets.UTF_8);
+        context = new SpringApplicationBuilder(SpreadsheetCellOperationApplication.class)
+                .web(WebApplicationType.NONE)
+                .properties(
+                        "spring.datasource.url=jdbc:h2:mem:benchmark;DB_CLOSE_DELAY=-1",
+                        "spring.jpa.hibernate.ddl-auto=create-drop",
+                        "spreadsheet.storage.engine=" + engine,
+                        "logging.level.root=WARN")
+                .run();
+        cellTransfer = context.getBean(CellTransfer.class);
+        cellTransfer.importCsv("Exported!", new ByteArrayInputStream(csv));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public long importCsv() throws IOException {
+        return cellTransfer.importCsv("Imported" + ++importCount + "!", new ByteArrayInputStream(csv));
+    }
+
+    @Benchmark
+    public void exportCsv() throws IOException {
+        cellTransfer.exportCsv("Exported!").writeTo(OutputStream.nullOutputStream());
+    }
+}
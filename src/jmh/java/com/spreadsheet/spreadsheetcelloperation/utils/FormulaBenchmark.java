@@ -0,0 +1,66 @@
+package com.spreadsheet.spreadsheetcelloperation.utils;
+
+import com.spreadsheet.spreadsheetcelloperation.model.CellRange;
+import com.spreadsheet.spreadsheetcelloperation.model.Formula;
+import com.spreadsheet.spreadsheetcelloperation.model.FormulaNode;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing and evaluation of a single formula, without the store and the caches. Run with -prof gc to check
+ * that evaluating a compiled formula allocates nothing.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FormulaBenchmark {
+
+    @Param({"A1+B2*(C3-D4)/2", "-A1^2+SUM(B1:B100, C1)*AVG(D1:D100)-MAX(A1, B2, 3)%7"})
+    public String expression;
+
+    private Formula formula;
+
+    private FormulaNode.Operands operands;
+
+    @Setup
+    public void setUp() {
+        formula = FormulaCompiler.compile(expression);
+        Map<String, Double> values = new HashMap<>();
+        formula.getReferences().forEach(cellId -> values.put(cellId, (double) cellId.hashCode() % 100));
+        double[] rangeValues = new double[100];
+        for (int index = 0; index < rangeValues.length; index++) {
+            rangeValues[index] = index;
+        }
+        operands = new FormulaNode.Operands() {
+            @Override
+            public double valueOf(String cellId) {
+                return values.get(cellId);
+            }
+
+            @Override
+            public double aggregate(CellRange range, FormulaNode.AggregateFunction function) {
+                double aggregate = function.identity();
+                for (double value : rangeValues) {
+                    aggregate = function.accumulate(aggregate, value);
+                }
+                return aggregate;
+            }
+        };
+    }
+
+    @Benchmark
+    public Formula compile() {
+        return FormulaCompiler.compile(expression);
+    }
+
+    @Benchmark
+    public double evaluate() {
+        return formula.evaluate(operands);
+    }
+}
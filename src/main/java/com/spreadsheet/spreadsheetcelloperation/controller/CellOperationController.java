@@ -1,22 +1,46 @@
 package com.spreadsheet.spreadsheetcelloperation.controller;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.spreadsheet.spreadsheetcelloperation.model.CellAddress;
+import com.spreadsheet.spreadsheetcelloperation.model.CellValue;
 import com.spreadsheet.spreadsheetcelloperation.service.CellOperation;
+import com.spreadsheet.spreadsheetcelloperation.service.CellTransfer;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.responses.ApiResponse;
 import io.swagger.v3.oas.annotations.tags.Tag;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
 
 @RestController
-@RequestMapping("/api/v1/cells")
+@RequestMapping({"/api/v1/cells", "/api/v1/workbooks/{workbook}/cells"})
 @Tag(name = "Cell Operations")
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
 public class CellOperationController {
 
     private final CellOperation cellOperationService;
 
-    public CellOperationController(CellOperation cellOperation){
+    private final CellTransfer cellTransfer;
+
+    private final ObjectMapper objectMapper;
+
+    public CellOperationController(CellOperation cellOperation, CellTransfer cellTransfer, ObjectMapper objectMapper){
         this.cellOperationService = cellOperation;
+        this.cellTransfer = cellTransfer;
+        this.objectMapper = objectMapper;
     }
 
     @Operation(
@@ -34,10 +58,36 @@ public class CellOperationController {
             }
     )
     @PostMapping("/{cellId}/value")
-    public ResponseEntity<String> addValueToCell(@PathVariable("cellId") String cellId,
+    public ResponseEntity<String> addValueToCell(@PathVariable(value = "workbook", required = false) String workbook,
+                                            @PathVariable("cellId") String cellId,
                                             @RequestBody Object value){
 
-        cellOperationService.setCellValue(cellId,value);
+        cellOperationService.setCellValue(qualify(workbook, cellId),value);
+        return new ResponseEntity<>("Success", HttpStatus.ACCEPTED);
+    }
+
+    @Operation(
+            description = "Endpoint for store many cells",
+            summary = "This endpoint will update or create all the given cells in a single transaction. " +
+                    "The request body maps each cell ID to its value.",
+            responses = {
+                    @ApiResponse(
+                            description = "Success",
+                            responseCode = "202"
+                    ),
+                    @ApiResponse(
+                            description = "Bad Request",
+                            responseCode = "400"
+                    )
+            }
+    )
+    @PostMapping("/batch")
+    public ResponseEntity<String> addValuesToCells(@PathVariable(value = "workbook", required = false) String workbook,
+                                                   @RequestBody Map<String, Object> values){
+
+        Map<String, Object> qualifiedValues = new LinkedHashMap<>();
+        values.forEach((cellId, value) -> qualifiedValues.put(qualify(workbook, cellId), value));
+        cellOperationService.setCellValues(qualifiedValues);
         return new ResponseEntity<>("Success", HttpStatus.ACCEPTED);
     }
 
@@ -55,8 +105,134 @@ public class CellOperationController {
             }
     )
     @GetMapping("/{cellId}")
-    public ResponseEntity<String> getValueFromCell(@PathVariable("cellId") String cellId){
+    public ResponseEntity<String> getValueFromCell(@PathVariable(value = "workbook", required = false) String workbook,
+                                                   @PathVariable("cellId") String cellId,
+                                                   @RequestParam(value = "consistent", required = false, defaultValue = "false") boolean consistent){
+
+        return ResponseEntity.ok(cellOperationService.getCellValue(qualify(workbook, cellId), consistent));
+    }
+
+    @Operation(
+            description = "Endpoint for get many cell values",
+            summary = "This endpoint evaluates the given cells and ranges like A1:D500 in one pass " +
+                    "and streams back a JSON array with the value or the error of each cell.",
+            responses = {
+                    @ApiResponse(
+                            description = "Success",
+                            responseCode = "200"
+                    ),
+                    @ApiResponse(
+                            description = "Bad Request",
+                            responseCode = "400"
+                    )
+            }
+    )
+    @GetMapping
+    public ResponseEntity<StreamingResponseBody> getValuesFromCells(
+            @PathVariable(value = "workbook", required = false) String workbook,
+            @RequestParam(value = "ids", required = false, defaultValue = "") List<String> cellIds,
+            @RequestParam(value = "range", required = false, defaultValue = "") List<String> ranges){
+
+        Stream<CellValue> cellValues = cellOperationService.getCellValues(qualify(workbook, cellIds), qualify(workbook, ranges));
+        // closing the stream ends the observation of the read, also when the client disconnects
+        StreamingResponseBody body = outputStream -> {
+            try (cellValues; JsonGenerator generator = objectMapper.createGenerator(outputStream)) {
+                generator.writeStartArray();
+                for (Iterator<CellValue> iterator = cellValues.iterator(); iterator.hasNext(); ) {
+                    generator.writeObject(iterator.next());
+                }
+                generator.writeEndArray();
+            }
+        };
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(body);
+    }
+
+    @Operation(
+            description = "Endpoint for subscribe to cell values",
+            summary = "This endpoint opens a stream of server-sent events. The first 'cells' event holds the values " +
+                    "of the given cells and ranges, the next ones the values changed by later writes.",
+            responses = {
+                    @ApiResponse(
+                            description = "Success",
+                            responseCode = "200"
+                    ),
+                    @ApiResponse(
+                            description = "Bad Request",
+                            responseCode = "400"
+                    )
+            }
+    )
+    @GetMapping(value = "/subscribe", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter subscribeToCells(
+            @PathVariable(value = "workbook", required = false) String workbook,
+            @RequestParam(value = "ids", required = false, defaultValue = "") List<String> cellIds,
+            @RequestParam(value = "range", required = false, defaultValue = "") List<String> ranges){
+
+        return cellOperationService.subscribe(qualify(workbook, cellIds), qualify(workbook, ranges));
+    }
+
+    @Operation(
+            description = "Endpoint for import a sheet from CSV",
+            summary = "This endpoint streams the CSV request body into the given sheet, the first record being row 1 " +
+                    "and the first field column A. The cells are written in batches of their own transactions and " +
+                    "the formulas are evaluated by the next read.",
+            responses = {
+                    @ApiResponse(
+                            description = "Success",
+                            responseCode = "202"
+                    ),
+                    @ApiResponse(
+                            description = "Bad Request",
+                            responseCode = "400"
+                    )
+            }
+    )
+    @PostMapping(value = "/import", consumes = "text/csv")
+    public ResponseEntity<String> importCells(@PathVariable(value = "workbook", required = false) String workbook,
+                                              @RequestParam(value = "sheet", required = false, defaultValue = "") String sheet,
+                                              InputStream csv) throws IOException {
+
+        long importedCount = cellTransfer.importCsv(qualify(workbook, sheetPrefix(sheet)), csv);
+        return new ResponseEntity<>("Imported " + importedCount + " cells", HttpStatus.ACCEPTED);
+    }
+
+    @Operation(
+            description = "Endpoint for export a sheet as CSV",
+            summary = "This endpoint streams the evaluated values of the given sheet as CSV, from A1 to its last used " +
+                    "column and row, writing each row as soon as it is evaluated.",
+            responses = {
+                    @ApiResponse(
+                            description = "Success",
+                            responseCode = "200"
+                    ),
+                    @ApiResponse(
+                            description = "Bad Request",
+                            responseCode = "400"
+                    )
+            }
+    )
+    @GetMapping(value = "/export", produces = "text/csv")
+    public ResponseEntity<StreamingResponseBody> exportCells(
+            @PathVariable(value = "workbook", required = false) String workbook,
+            @RequestParam(value = "sheet", required = false, defaultValue = "") String sheet){
+
+        return ResponseEntity.ok().contentType(MediaType.parseMediaType("text/csv"))
+                .body(cellTransfer.exportCsv(qualify(workbook, sheetPrefix(sheet))));
+    }
+
+    private static String sheetPrefix(String sheet) {
+        return sheet.isEmpty() ? "" : sheet + "!";
+    }
+
+    /**
+     * Qualifies the cell IDs or ranges given under /workbooks/{workbook} with the workbook, so that a request
+     * only reaches the cells of its workbook.
+     */
+    private static String qualify(String workbook, String id) {
+        return workbook == null ? id : CellAddress.qualify(workbook, id);
+    }
 
-        return ResponseEntity.ok(cellOperationService.getCellValue(cellId));
+    private static List<String> qualify(String workbook, List<String> ids) {
+        return workbook == null ? ids : ids.stream().map(id -> CellAddress.qualify(workbook, id)).toList();
     }
 }
@@ -0,0 +1,19 @@
+package com.spreadsheet.spreadsheetcelloperation.exception;
+
+public class CsvFormatException extends RuntimeException{
+
+    private String errorMessage;
+
+    public CsvFormatException(String errorMessage){
+        super(errorMessage);
+        this.errorMessage = errorMessage;
+    }
+
+    public String getErrorMessage() {
+        return errorMessage;
+    }
+
+    public void setErrorMessage(String errorMessage) {
+        this.errorMessage = errorMessage;
+    }
+}
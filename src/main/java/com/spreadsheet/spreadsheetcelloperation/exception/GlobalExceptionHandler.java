@@ -36,5 +36,15 @@ public class GlobalExceptionHandler {
         return new ResponseEntity<>(evaluationException.getErrorMessage(),HttpStatus.UNPROCESSABLE_ENTITY);
     }
 
+    @ExceptionHandler(StorageBacklogException.class)
+    public ResponseEntity<String> handleStorageBacklogException(StorageBacklogException storageBacklogException){
+        return new ResponseEntity<>(storageBacklogException.getErrorMessage(),HttpStatus.SERVICE_UNAVAILABLE);
+    }
+
+    @ExceptionHandler(CsvFormatException.class)
+    public ResponseEntity<String> handleCsvFormatException(CsvFormatException csvFormatException){
+        return new ResponseEntity<>(csvFormatException.getErrorMessage(),HttpStatus.BAD_REQUEST);
+    }
+
 
 }
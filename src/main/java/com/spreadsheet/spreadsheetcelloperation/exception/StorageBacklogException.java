@@ -0,0 +1,19 @@
+package com.spreadsheet.spreadsheetcelloperation.exception;
+
+public class StorageBacklogException extends RuntimeException{
+
+    private String errorMessage;
+
+    public StorageBacklogException(String errorMessage){
+        super(errorMessage);
+        this.errorMessage = errorMessage;
+    }
+
+    public String getErrorMessage() {
+        return errorMessage;
+    }
+
+    public void setErrorMessage(String errorMessage) {
+        this.errorMessage = errorMessage;
+    }
+}
@@ -1,22 +1,55 @@
 package com.spreadsheet.spreadsheetcelloperation.model;
 
-import jakarta.persistence.Column;
-import jakarta.persistence.Entity;
-import jakarta.persistence.Id;
-import jakarta.persistence.ManyToMany;
+import jakarta.persistence.*;
+import org.hibernate.annotations.ColumnDefault;
+import org.springframework.data.domain.Persistable;
 
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 @Entity
-public class Cell {
+@Table(indexes = @Index(name = "idx_cell_location", columnList = "sheet, column_index, row_index"))
+public class Cell implements Persistable<String> {
 
     @Id
     String cellId;
-    @Column
+    // Formulas over many cells easily exceed the default length of 255.
+    // Null for a number held by the number column in the form it was written in
+    @Column(length = 65535)
     String data;
+    // Null for the rows written before the cells were typed, which are typed when they are loaded
+    @Enumerated(EnumType.STRING)
+    @Column(length = 8)
+    CellKind kind;
+    @Column(name = "number_value")
+    Double number;
+    // Last value computed for a formula, null while it is stale
+    @Column(name = "computed_value")
+    Double computedValue;
+    // Incremented whenever the computed value becomes stale, so a value computed from the cells read after the
+    // version is only stored if the version is still the same. Incremented by the database only, never written
+    // back from the entity, so that concurrent increments all count
+    @ColumnDefault("0")
+    @Column(name = "value_version", nullable = false, updatable = false)
+    long valueVersion;
+    // The precedent column is indexed, so the join table also serves as the persisted reverse index
     @ManyToMany
+    @JoinTable(name = "cell_dependent_cells",
+            joinColumns = @JoinColumn(name = "cell_cell_id"),
+            inverseJoinColumns = @JoinColumn(name = "dependent_cells_cell_id"),
+            indexes = @Index(name = "idx_dependent_cells_precedent", columnList = "dependent_cells_cell_id"))
     List<Cell> dependentCells;
+    // A referenced range is kept as a single row, not as one join row per cell of the range
+    @ElementCollection
+    @CollectionTable(name = "cell_range_references", joinColumns = @JoinColumn(name = "cell_id"))
+    @Column(name = "cell_range")
+    Set<String> rangeReferences = new LinkedHashSet<>();
+
+    // The cell ID is assigned by the client, so new cells are flagged to be inserted without a select first
+    @Transient
+    boolean isNew = true;
 
     public Cell(){
 
@@ -24,15 +57,30 @@ public class Cell {
 
     public Cell(String cellId, String data) {
         this.cellId = cellId;
-        this.data = data;
+        classify(data);
         this.dependentCells = new ArrayList<>();
     }
 
     public Cell(String cellId){
         this.cellId = cellId;
+        this.kind = CellKind.EMPTY;
         this.dependentCells = new ArrayList<>();
     }
 
+    /**
+     * Creates a cell holding a number, without parsing it.
+     *
+     * @param text The number as written, or null if it was written as given by {@link CellKind#formatNumber(double)}.
+     */
+    public static Cell ofNumber(String cellId, double number, String text) {
+
+        Cell cell = new Cell(cellId);
+        cell.kind = CellKind.NUMBER;
+        cell.number = number;
+        cell.data = text == null || text.equals(CellKind.formatNumber(number)) ? null : text;
+        return cell;
+    }
+
     public String getCellId() {
         return cellId;
     }
@@ -41,12 +89,128 @@ public class Cell {
         this.cellId = cellId;
     }
 
+    // The sheet and the coordinates of the cell are stored so that the cells of a range are found by an index
+    // lookup rather than by listing the IDs of the range. They are derived from the ID rather than held by the cell,
+    // and null for an invalid ID
+    @Access(AccessType.PROPERTY)
+    @Column(length = 100)
+    public String getSheet() {
+        CellAddress address = cellId == null ? null : CellAddress.parseOrNull(cellId);
+        return address == null ? null : address.getSheetPrefix();
+    }
+
+    @Access(AccessType.PROPERTY)
+    @Column(name = "column_index")
+    public Integer getColumnIndex() {
+        CellAddress address = cellId == null ? null : CellAddress.parseOrNull(cellId);
+        return address == null ? null : address.column();
+    }
+
+    @Access(AccessType.PROPERTY)
+    @Column(name = "row_index")
+    public Integer getRowIndex() {
+        CellAddress address = cellId == null ? null : CellAddress.parseOrNull(cellId);
+        return address == null ? null : address.row();
+    }
+
+    // the stored location is derived from the cell ID
+    void setSheet(String sheet) {
+    }
+
+    void setColumnIndex(Integer columnIndex) {
+    }
+
+    void setRowIndex(Integer rowIndex) {
+    }
+
+    /**
+     * @return the data as it was written.
+     */
     public String getData() {
-        return data;
+        return data == null && kind == CellKind.NUMBER ? CellKind.formatNumber(number) : data;
     }
 
+    /**
+     * Sets the data and derives the kind of the cell from it. A number is kept in the number column, and
+     * in the data as well only if it was written in another form than the one it is read back in.
+     */
     public void setData(String data) {
-        this.data = data;
+        classify(data);
+        invalidateComputedValue();
+    }
+
+    private void classify(String data) {
+
+        this.number = parseNumber(data);
+        this.kind = number != null ? CellKind.NUMBER : CellKind.ofNonNumeric(data);
+        this.data = number != null && data.equals(CellKind.formatNumber(number)) ? null : data;
+    }
+
+    public CellKind getKind() {
+        return kind;
+    }
+
+    /**
+     * @return the number held by a cell of kind NUMBER.
+     */
+    public double getNumber() {
+        return number;
+    }
+
+    @Override
+    public String getId() {
+        return cellId;
+    }
+
+    @Override
+    public boolean isNew() {
+        return isNew;
+    }
+
+    /**
+     * Flags a cell read from or written to the store, so that saving it again updates it.
+     */
+    @PostPersist
+    public void markNotNew() {
+        this.isNew = false;
+    }
+
+    @PostLoad
+    void onLoad() {
+        if (kind == null) {
+            classify(data);
+        }
+        markNotNew();
+    }
+
+    /**
+     * @return the last value computed for the formula, or null if it is stale.
+     */
+    public Double getComputedValue() {
+        return computedValue;
+    }
+
+    public void setComputedValue(Double computedValue) {
+        this.computedValue = computedValue;
+    }
+
+    public long getValueVersion() {
+        return valueVersion;
+    }
+
+    /**
+     * Sets the value version of a cell read from a store keeping it outside of the entity.
+     */
+    public void setValueVersion(long valueVersion) {
+        this.valueVersion = valueVersion;
+    }
+
+    /**
+     * Clears the computed value and increments the value version, so that a value computed before is not stored.
+     */
+    public void invalidateComputedValue() {
+        this.computedValue = null;
+        this.valueVersion++;
     }
 
     public List<Cell> getDependentCells() {
@@ -56,4 +220,28 @@ public class Cell {
     public void setDependentCells(List<Cell> dependentCells) {
         this.dependentCells = dependentCells;
     }
+
+    /**
+     * @return the number, or null if the data is not a number.
+     */
+    private static Double parseNumber(String data) {
+
+        if (data == null || data.isEmpty() || data.startsWith("=")) {
+            return null;
+        }
+        try {
+            return Double.valueOf(data);
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public Set<String> getRangeReferences() {
+        return rangeReferences;
+    }
+
+    public void setRangeReferences(Set<String> rangeReferences) {
+        this.rangeReferences = rangeReferences;
+    }
 }
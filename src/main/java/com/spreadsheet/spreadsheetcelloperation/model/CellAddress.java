@@ -0,0 +1,209 @@
+package com.spreadsheet.spreadsheetcelloperation.model;
+
+import com.spreadsheet.spreadsheetcelloperation.exception.InvalidCellIdException;
+
+/**
+ * Address of a cell like A1, Sheet2!B7 or [acme]Sheet2!B7: the workbook, the sheet, the zero based column and the row.
+ * <p>
+ * Every workbook has a default sheet and there is a default workbook, both without a name and left out of the
+ * cell ID, so A1 is a cell of the default sheet of the default workbook and [acme]A1 a cell of the default sheet
+ * of the workbook acme. Columns go from A to XFD and rows from 1 to 1048576.
+ */
+public record CellAddress(String workbook, String sheet, int column, int row) {
+
+    public static final int MAX_COLUMNS = 16_384;
+
+    public static final int MAX_ROWS = 1_048_576;
+
+    public static final int MAX_SHEET_NAME_LENGTH = 31;
+
+    public static final int MAX_WORKBOOK_NAME_LENGTH = 64;
+
+    /**
+     * @throws InvalidCellIdException if the ID is not a cell ID.
+     */
+    public static CellAddress parse(String cellId) {
+
+        CellAddress address = parseOrNull(cellId);
+        if (address == null) {
+            throw new InvalidCellIdException("Invalid Cell Id provided: " + cellId);
+        }
+        return address;
+    }
+
+    /**
+     * @return the address, or null if the ID is not a cell ID.
+     */
+    public static CellAddress parseOrNull(String cellId) {
+
+        int sheetStart = workbookEnd(cellId);
+        int cellStart = sheetStart < 0 ? -1 : sheetEnd(cellId, sheetStart);
+        long location = cellStart < 0 ? -1 : locate(cellId, cellStart, cellId.length());
+        if (location < 0) {
+            return null;
+        }
+        String workbook = sheetStart == 0 ? "" : cellId.substring(1, sheetStart - 1);
+        String sheet = cellStart == sheetStart ? "" : cellId.substring(sheetStart, cellStart - 1);
+        return new CellAddress(workbook, sheet, (int) (location >>> 32), (int) location);
+    }
+
+    public static boolean isCellId(String id) {
+
+        int sheetStart = workbookEnd(id);
+        int cellStart = sheetStart < 0 ? -1 : sheetEnd(id, sheetStart);
+        return cellStart >= 0 && locate(id, cellStart, id.length()) >= 0;
+    }
+
+    /**
+     * Locates a cell reference without workbook and sheet, like XFD1048576, in the given characters.
+     *
+     * @return the column shifted left by 32 bits and or-ed with the row, or -1 if the characters are not a cell reference.
+     */
+    public static long locate(CharSequence id, int from, int to) {
+
+        int index = from;
+        int column = 0;
+        while (index < to && index - from < 3 && id.charAt(index) >= 'A' && id.charAt(index) <= 'Z') {
+            column = column * 26 + id.charAt(index) - 'A' + 1;
+            index++;
+        }
+        if (index == from || index == to || id.charAt(index) == '0' || column > MAX_COLUMNS) {
+            return -1;
+        }
+        int row = 0;
+        for (; index < to; index++) {
+            char c = id.charAt(index);
+            if (c < '0' || c > '9' || (row = row * 10 + c - '0') > MAX_ROWS) {
+                return -1;
+            }
+        }
+        return (long) (column - 1) << 32 | row;
+    }
+
+    /**
+     * @return the workbook and sheet qualifying the cell ID, like [acme]Sheet2!, empty for the default sheet.
+     */
+    public static String sheetPrefixOf(String cellId) {
+
+        int bang = cellId.lastIndexOf('!');
+        if (bang >= 0) {
+            return cellId.substring(0, bang + 1);
+        }
+        return cellId.startsWith("[") ? cellId.substring(0, cellId.indexOf(']') + 1) : "";
+    }
+
+    /**
+     * @return the name of the workbook of the cell ID, empty for the default workbook.
+     */
+    public static String workbookOf(String cellId) {
+
+        int end = cellId.startsWith("[") ? cellId.indexOf(']') : -1;
+        return end < 0 ? "" : cellId.substring(1, end);
+    }
+
+    /**
+     * Qualifies a cell ID or a range given within a workbook, like Sheet2!B7, with the workbook.
+     *
+     * @param workbook The name of the workbook, empty for the default workbook.
+     * @throws InvalidCellIdException if the workbook name is not valid, or the ID already names a workbook.
+     */
+    public static String qualify(String workbook, String id) {
+
+        if (workbook.isEmpty()) {
+            return id;
+        }
+        if (!isWorkbookName(workbook)) {
+            throw new InvalidCellIdException("Invalid Workbook provided: " + workbook);
+        }
+        if (id.startsWith("[")) {
+            throw new InvalidCellIdException("Invalid Cell Id provided: " + id);
+        }
+        return "[" + workbook + "]" + id;
+    }
+
+    /**
+     * @return the end of the [workbook] qualifier the ID starts with, 0 if there is none, or -1 if it is not valid.
+     */
+    public static int workbookEnd(CharSequence id) {
+
+        if (id.isEmpty() || id.charAt(0) != '[') {
+            return 0;
+        }
+        int index = 1;
+        while (index < id.length() && index <= MAX_WORKBOOK_NAME_LENGTH && isWorkbookNameChar(id.charAt(index))) {
+            index++;
+        }
+        return index > 1 && index < id.length() && id.charAt(index) == ']' ? index + 1 : -1;
+    }
+
+    /**
+     * @return the end of the sheet! qualifier starting at the given position, the position if there is none,
+     * or -1 if it is not valid.
+     */
+    public static int sheetEnd(CharSequence id, int from) {
+
+        int index = from;
+        while (index < id.length() && id.charAt(index) != '!') {
+            index++;
+        }
+        if (index == id.length()) {
+            return from;
+        }
+        return isSheetName(id, from, index) ? index + 1 : -1;
+    }
+
+    public static boolean isSheetNameStart(char c) {
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || c == '_';
+    }
+
+    public static boolean isSheetNameChar(char c) {
+        return isSheetNameStart(c) || (c >= '0' && c <= '9');
+    }
+
+    private static boolean isSheetName(CharSequence id, int from, int to) {
+
+        if (to == from || to - from > MAX_SHEET_NAME_LENGTH || !isSheetNameStart(id.charAt(from))) {
+            return false;
+        }
+        for (int index = from + 1; index < to; index++) {
+            if (!isSheetNameChar(id.charAt(index))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isWorkbookName(String workbook) {
+        return workbookEnd("[" + workbook + "]") == workbook.length() + 2;
+    }
+
+    private static boolean isWorkbookNameChar(char c) {
+        return isSheetNameChar(c) || c == '-';
+    }
+
+    /**
+     * @return the letters of the zero based column, like A for 0, AA for 26 and XFD for 16383.
+     */
+    public static String columnName(int column) {
+
+        StringBuilder name = new StringBuilder(3);
+        for (int remaining = column + 1; remaining > 0; remaining = (remaining - 1) / 26) {
+            name.append((char) ('A' + (remaining - 1) % 26));
+        }
+        return name.reverse().toString();
+    }
+
+    /**
+     * @return the workbook and sheet qualifying the IDs of the cells of this sheet, like [acme]Sheet2!.
+     */
+    public String getSheetPrefix() {
+        return (workbook.isEmpty() ? "" : "[" + workbook + "]") + (sheet.isEmpty() ? "" : sheet + "!");
+    }
+
+    /**
+     * @return the canonical ID of the cell, like [acme]Sheet2!B7.
+     */
+    public String getId() {
+        return getSheetPrefix() + columnName(column) + row;
+    }
+}
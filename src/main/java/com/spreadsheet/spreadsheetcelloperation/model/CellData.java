@@ -0,0 +1,23 @@
+package com.spreadsheet.spreadsheetcelloperation.model;
+
+/**
+ * Projection of the ID and the data of a cell, without its dependencies.
+ */
+public interface CellData {
+
+    String getCellId();
+
+    /**
+     * @return the data column, null for a number held by the number column alone.
+     */
+    String getData();
+
+    Double getNumber();
+
+    /**
+     * @return the data as it was written.
+     */
+    default String toData() {
+        return getData() == null && getNumber() != null ? CellKind.formatNumber(getNumber()) : getData();
+    }
+}
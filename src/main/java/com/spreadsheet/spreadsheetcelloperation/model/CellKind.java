@@ -0,0 +1,58 @@
+package com.spreadsheet.spreadsheetcelloperation.model;
+
+import java.util.Set;
+
+/**
+ * Kind of the value held by a cell, derived from its data when the cell is written.
+ */
+public enum CellKind {
+
+    /** A cell without data, like a cell only created because a formula references it. */
+    EMPTY,
+
+    /** A number, kept in a DOUBLE column so reading it doesn't parse text. */
+    NUMBER,
+
+    TEXT,
+
+    /** TRUE or FALSE in any case, 1 and 0 in arithmetic. */
+    BOOLEAN,
+
+    /** An error literal like #DIV/0!, or an error written by an export like #ERROR: message. */
+    ERROR,
+
+    /** An expression starting with =. */
+    FORMULA;
+
+    private static final Set<String> ERROR_LITERALS = Set.of("#NULL!", "#DIV/0!", "#VALUE!", "#REF!", "#NAME?", "#NUM!", "#N/A");
+
+    private static final String EXPORTED_ERROR_PREFIX = "#ERROR: ";
+
+    /**
+     * @return the kind of data that is not a number.
+     */
+    static CellKind ofNonNumeric(String data) {
+
+        if (data == null) {
+            return EMPTY;
+        }
+        if (data.startsWith("=")) {
+            return FORMULA;
+        }
+        if (data.equalsIgnoreCase("TRUE") || data.equalsIgnoreCase("FALSE")) {
+            return BOOLEAN;
+        }
+        if (ERROR_LITERALS.contains(data) || data.startsWith(EXPORTED_ERROR_PREFIX)) {
+            return ERROR;
+        }
+        return TEXT;
+    }
+
+    /**
+     * @return the form a number is read back in when only its double is stored: without fraction if it is a whole
+     * number like 12, and as given by Double.toString otherwise.
+     */
+    public static String formatNumber(double number) {
+        return number == (long) number && !(number == 0 && 1 / number < 0) ? Long.toString((long) number) : Double.toString(number);
+    }
+}
@@ -0,0 +1,73 @@
+package com.spreadsheet.spreadsheetcelloperation.model;
+
+import com.spreadsheet.spreadsheetcelloperation.exception.InvalidCellIdException;
+
+/**
+ * Rectangular range of cells of one sheet like A1:D500 or Sheet2!A1:D500, with zero based column indexes.
+ *
+ * @param sheet The workbook and sheet qualifying the cells of the range, like [acme]Sheet2!, empty for the default sheet.
+ */
+public record CellRange(String sheet, int startColumn, int startRow, int endColumn, int endRow) {
+
+    /**
+     * Parses a range, the corners may be given in any order. A workbook and a sheet are given before the first corner.
+     *
+     * @throws InvalidCellIdException if the range is not valid.
+     */
+    public static CellRange parse(String range) {
+
+        int sheetStart = CellAddress.workbookEnd(range);
+        int cellStart = sheetStart < 0 ? -1 : CellAddress.sheetEnd(range, sheetStart);
+        int colon = range.indexOf(':');
+        long first = cellStart < 0 || colon < 0 ? -1 : CellAddress.locate(range, cellStart, colon);
+        long last = first < 0 ? -1 : CellAddress.locate(range, colon + 1, range.length());
+        if (last < 0) {
+            throw new InvalidCellIdException("Invalid Cell Range provided: " + range);
+        }
+        int firstColumn = (int) (first >>> 32);
+        int lastColumn = (int) (last >>> 32);
+        int firstRow = (int) first;
+        int lastRow = (int) last;
+        return new CellRange(range.substring(0, cellStart), Math.min(firstColumn, lastColumn), Math.min(firstRow, lastRow),
+                Math.max(firstColumn, lastColumn), Math.max(firstRow, lastRow));
+    }
+
+    /**
+     * @return true if the ID has the form of a range rather than of a single cell.
+     */
+    public static boolean isRange(String id) {
+        return id.indexOf(':') >= 0;
+    }
+
+    /**
+     * @return the canonical form of the range, like Sheet2!A1:D500, with the top left corner first.
+     */
+    public String getId() {
+        return sheet + cellIdOf(startColumn, startRow) + ":" + cellIdOf(endColumn, endRow);
+    }
+
+    /**
+     * @return true if the cell with the given ID lies in the range.
+     */
+    public boolean contains(String cellId) {
+
+        if (!cellId.startsWith(sheet) || isRange(cellId)) {
+            return false;
+        }
+        long location = CellAddress.locate(cellId, sheet.length(), cellId.length());
+        if (location < 0) {
+            return false;
+        }
+        int column = (int) (location >>> 32);
+        int row = (int) location;
+        return column >= startColumn && column <= endColumn && row >= startRow && row <= endRow;
+    }
+
+    public long size() {
+        return (long) (endColumn - startColumn + 1) * (endRow - startRow + 1);
+    }
+
+    private static String cellIdOf(int column, int row) {
+        return CellAddress.columnName(column) + row;
+    }
+}
@@ -0,0 +1,18 @@
+package com.spreadsheet.spreadsheetcelloperation.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+/**
+ * Value of one cell in a multi cell read, or the error that prevented reading it.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public record CellValue(String cellId, String value, String error) {
+
+    public static CellValue of(String cellId, String value) {
+        return new CellValue(cellId, value, null);
+    }
+
+    public static CellValue failed(String cellId, String error) {
+        return new CellValue(cellId, null, error);
+    }
+}
@@ -0,0 +1,11 @@
+package com.spreadsheet.spreadsheetcelloperation.model;
+
+/**
+ * Projection of one row of the cell dependency join table.
+ */
+public interface DependencyEdge {
+
+    String getCellId();
+
+    String getPrecedentId();
+}
@@ -0,0 +1,61 @@
+package com.spreadsheet.spreadsheetcelloperation.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compiled form of a cell expression. The expression is parsed once into a tree,
+ * so evaluating it again only needs the current values of the referenced cells.
+ */
+public class Formula {
+
+    private final String source;
+    private final FormulaNode root;
+    private final List<String> references;
+    private final List<CellRange> ranges;
+    private final List<String> precedents;
+
+    public Formula(String source, FormulaNode root, List<String> references, List<CellRange> ranges) {
+        this.source = source;
+        this.root = root;
+        this.references = List.copyOf(references);
+        this.ranges = List.copyOf(ranges);
+        List<String> precedents = new ArrayList<>(references);
+        ranges.forEach(range -> precedents.add(range.getId()));
+        this.precedents = List.copyOf(precedents);
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public FormulaNode getRoot() {
+        return root;
+    }
+
+    /**
+     * @return the distinct cell IDs referenced by the expression, in order of appearance.
+     */
+    public List<String> getReferences() {
+        return references;
+    }
+
+    /**
+     * @return the distinct ranges referenced by the expression, in order of appearance.
+     */
+    public List<CellRange> getRanges() {
+        return ranges;
+    }
+
+    /**
+     * @return the referenced cell IDs followed by the referenced range IDs, each range being a single
+     * precedent of the formula.
+     */
+    public List<String> getPrecedents() {
+        return precedents;
+    }
+
+    public double evaluate(FormulaNode.Operands operands) {
+        return root.evaluate(operands);
+    }
+}
@@ -0,0 +1,214 @@
+package com.spreadsheet.spreadsheetcelloperation.model;
+
+import com.spreadsheet.spreadsheetcelloperation.exception.ExpressionEvaluationException;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Node of a compiled formula tree. Evaluating a node only walks the tree,
+ * the operand values of referenced cells and ranges are supplied by the caller.
+ */
+public interface FormulaNode {
+
+    double evaluate(Operands operands);
+
+    /**
+     * Supplies the current values of the cells referenced by a formula.
+     */
+    interface Operands {
+
+        double valueOf(String cellId);
+
+        /**
+         * Aggregates the numeric values of a range, empty, text and boolean cells are left out.
+         *
+         * @return the function accumulated over the values of the range from its identity, so the identity for a
+         * range without numbers.
+         */
+        double aggregate(CellRange range, AggregateFunction function);
+    }
+
+    record Constant(double value) implements FormulaNode {
+
+        @Override
+        public double evaluate(Operands operands) {
+            return value;
+        }
+    }
+
+    record Reference(String cellId) implements FormulaNode {
+
+        @Override
+        public double evaluate(Operands operands) {
+            return operands.valueOf(cellId);
+        }
+    }
+
+    record Negate(FormulaNode operand) implements FormulaNode {
+
+        @Override
+        public double evaluate(Operands operands) {
+            return -operand.evaluate(operands);
+        }
+    }
+
+    record Binary(char operator, FormulaNode left, FormulaNode right) implements FormulaNode {
+
+        @Override
+        public double evaluate(Operands operands) {
+            double leftValue = left.evaluate(operands);
+            double rightValue = right.evaluate(operands);
+            return switch (operator) {
+                case '+' -> leftValue + rightValue;
+                case '-' -> leftValue - rightValue;
+                case '*' -> leftValue * rightValue;
+                case '/' -> leftValue / rightValue;
+                case '%' -> leftValue % rightValue;
+                case '^' -> Math.pow(leftValue, rightValue);
+                default -> throw new IllegalStateException("Unknown operator: " + operator);
+            };
+        }
+    }
+
+    /**
+     * The functions of one value, those formulas were evaluated with by javaluator, and SQRT. ROUND rounds half up,
+     * LN is the natural logarithm and LOG the base 10 one, and the trigonometric functions take radians.
+     */
+    enum MathFunction {
+        ABS, CEIL, FLOOR, ROUND, SQRT, LN, LOG, SIN, COS, TAN, ASIN, ACOS, ATAN, SINH, COSH, TANH;
+
+        public double apply(double value) {
+            return switch (this) {
+                case ABS -> Math.abs(value);
+                case CEIL -> Math.ceil(value);
+                case FLOOR -> Math.floor(value);
+                case ROUND -> Math.round(value);
+                case SQRT -> Math.sqrt(value);
+                case LN -> Math.log(value);
+                case LOG -> Math.log10(value);
+                case SIN -> Math.sin(value);
+                case COS -> Math.cos(value);
+                case TAN -> Math.tan(value);
+                case ASIN -> Math.asin(value);
+                case ACOS -> Math.acos(value);
+                case ATAN -> Math.atan(value);
+                case SINH -> Math.sinh(value);
+                case COSH -> Math.cosh(value);
+                case TANH -> Math.tanh(value);
+            };
+        }
+    }
+
+    /**
+     * A function of one value. A result that is not a number, like the one of LN(-1), fails the evaluation.
+     */
+    record Apply(MathFunction function, FormulaNode argument) implements FormulaNode {
+
+        @Override
+        public double evaluate(Operands operands) {
+            double value = function.apply(argument.evaluate(operands));
+            if (Double.isNaN(value)) {
+                throw new ExpressionEvaluationException("Error evaluating expression: Invalid argument passed to "
+                        + function.name().toLowerCase(Locale.ROOT));
+            }
+            return value;
+        }
+    }
+
+    /**
+     * RANDOM(), a number from 0 included to 1 excluded drawn when the formula is evaluated. It is cached and stored
+     * like any computed value, so a new number is only drawn once the formula is written again.
+     */
+    record Random() implements FormulaNode {
+
+        @Override
+        public double evaluate(Operands operands) {
+            return ThreadLocalRandom.current().nextDouble();
+        }
+    }
+
+    /**
+     * Range argument of an aggregate function, it has no value on its own.
+     */
+    record Range(CellRange range) implements FormulaNode {
+
+        @Override
+        public double evaluate(Operands operands) {
+            throw new IllegalStateException("Range " + range.getId() + " can only be used in a function");
+        }
+    }
+
+    /**
+     * The functions over ranges and values. AVG accumulates the sum of the values, the caller divides it by their count.
+     */
+    enum AggregateFunction {
+        SUM, AVG, MIN, MAX, COUNT;
+
+        public double identity() {
+            return switch (this) {
+                case SUM, AVG, COUNT -> 0;
+                case MIN -> Double.POSITIVE_INFINITY;
+                case MAX -> Double.NEGATIVE_INFINITY;
+            };
+        }
+
+        public double accumulate(double aggregate, double value) {
+            return switch (this) {
+                case SUM, AVG -> aggregate + value;
+                case MIN -> Math.min(aggregate, value);
+                case MAX -> Math.max(aggregate, value);
+                case COUNT -> aggregate + 1;
+            };
+        }
+    }
+
+    /**
+     * Aggregate function over ranges and single values. A range is aggregated by the operands as they walk its
+     * cells, without collecting its values. Without any number, every function returns 0, the AVG and the MIN
+     * and MAX of empty ranges included.
+     */
+    record Aggregate(AggregateFunction function, List<FormulaNode> arguments) implements FormulaNode {
+
+        @Override
+        public double evaluate(Operands operands) {
+            double aggregate = function.identity();
+            long count = 0;
+            for (int index = 0; index < arguments.size(); index++) {
+                FormulaNode argument = arguments.get(index);
+                if (argument instanceof Range range) {
+                    if (function != AggregateFunction.COUNT) {
+                        double rangeAggregate = operands.aggregate(range.range(), function);
+                        aggregate = function == AggregateFunction.AVG ? aggregate + rangeAggregate
+                                : function.accumulate(aggregate, rangeAggregate);
+                    }
+                    if (function == AggregateFunction.AVG || function == AggregateFunction.COUNT) {
+                        count += (long) operands.aggregate(range.range(), AggregateFunction.COUNT);
+                    }
+                }
+                else {
+                    aggregate = function.accumulate(aggregate, argument.evaluate(operands));
+                    count++;
+                }
+            }
+            return switch (function) {
+                case SUM -> aggregate;
+                case AVG -> count == 0 ? 0 : aggregate / count;
+                // only counted when no value moved the aggregate, a range holding an infinite value included
+                case MIN, MAX -> aggregate == function.identity() && count + countRanges(operands) == 0 ? 0 : aggregate;
+                case COUNT -> count;
+            };
+        }
+
+        private long countRanges(Operands operands) {
+            long count = 0;
+            for (int index = 0; index < arguments.size(); index++) {
+                if (arguments.get(index) instanceof Range range) {
+                    count += (long) operands.aggregate(range.range(), AggregateFunction.COUNT);
+                }
+            }
+            return count;
+        }
+    }
+}
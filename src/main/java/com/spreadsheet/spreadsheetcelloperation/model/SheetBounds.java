@@ -0,0 +1,15 @@
+package com.spreadsheet.spreadsheetcelloperation.model;
+
+/**
+ * Projection of the smallest and largest column index and row of the cells of a sheet, all null if it has no cells.
+ */
+public interface SheetBounds {
+
+    Integer getStartColumn();
+
+    Integer getStartRow();
+
+    Integer getEndColumn();
+
+    Integer getEndRow();
+}
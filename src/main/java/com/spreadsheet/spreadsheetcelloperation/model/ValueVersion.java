@@ -0,0 +1,11 @@
+package com.spreadsheet.spreadsheetcelloperation.model;
+
+/**
+ * Projection of the ID and the value version of a cell.
+ */
+public interface ValueVersion {
+
+    String getCellId();
+
+    long getValueVersion();
+}
@@ -0,0 +1,38 @@
+package com.spreadsheet.spreadsheetcelloperation.repository;
+
+import com.spreadsheet.spreadsheetcelloperation.model.Cell;
+import com.spreadsheet.spreadsheetcelloperation.model.CellRange;
+import com.spreadsheet.spreadsheetcelloperation.model.DependencyEdge;
+
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Read-only access to the sheet cells, implemented by every {@link CellStore} and by the snapshots it returns.
+ */
+public interface CellReader {
+
+    Optional<Cell> findById(String cellId);
+
+    /**
+     * @return the existing cells among the given IDs, in no particular order.
+     */
+    List<Cell> findAllById(Iterable<String> cellIds);
+
+    /**
+     * @return the existing cells of the range, in no particular order, found by their coordinates
+     * without listing the IDs of the range.
+     */
+    List<Cell> findAllInRange(CellRange range);
+
+    /**
+     * @return the persisted dependencies of every formula, on cells and on ranges.
+     */
+    List<DependencyEdge> findAllDependencyEdges();
+
+    /**
+     * @param sheet The workbook and sheet qualifying the cell IDs, like [acme]Sheet2!, empty for the default sheet.
+     * @return the smallest range holding every existing cell of the sheet, or empty if the sheet has no cells.
+     */
+    Optional<CellRange> findUsedRange(String sheet);
+}
@@ -1,9 +1,54 @@
 package com.spreadsheet.spreadsheetcelloperation.repository;
 
 import com.spreadsheet.spreadsheetcelloperation.model.Cell;
+import com.spreadsheet.spreadsheetcelloperation.model.CellData;
+import com.spreadsheet.spreadsheetcelloperation.model.DependencyEdge;
+import com.spreadsheet.spreadsheetcelloperation.model.SheetBounds;
+import com.spreadsheet.spreadsheetcelloperation.model.ValueVersion;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
+import java.util.List;
+
 @Repository
 public interface CellRepository extends JpaRepository<Cell,String> {
+
+    @Query("select c.cellId as cellId, d.cellId as precedentId from Cell c join c.dependentCells d")
+    List<DependencyEdge> findAllDependencyEdges();
+
+    @Query("select c.cellId as cellId, r as precedentId from Cell c join c.rangeReferences r")
+    List<DependencyEdge> findAllRangeDependencyEdges();
+
+    @Query("select c.cellId as cellId, c.data as data, c.number as number from Cell c")
+    List<CellData> findAllCellData();
+
+    @Query("select c from Cell c where c.sheet = :sheet and c.columnIndex between :startColumn and :endColumn " +
+            "and c.rowIndex between :startRow and :endRow")
+    List<Cell> findAllInRange(@Param("sheet") String sheet, @Param("startColumn") int startColumn, @Param("startRow") int startRow,
+                              @Param("endColumn") int endColumn, @Param("endRow") int endRow);
+
+    @Query("select c.cellId from Cell c where c.rowIndex is null")
+    List<String> findAllUnlocatedCellIds();
+
+    @Modifying
+    @Query("update Cell c set c.sheet = :sheet, c.columnIndex = :columnIndex, c.rowIndex = :rowIndex where c.cellId = :cellId")
+    int locate(@Param("cellId") String cellId, @Param("sheet") String sheet, @Param("columnIndex") int columnIndex,
+               @Param("rowIndex") int rowIndex);
+
+    @Query("select min(c.columnIndex) as startColumn, min(c.rowIndex) as startRow, max(c.columnIndex) as endColumn, " +
+            "max(c.rowIndex) as endRow from Cell c where c.sheet = :sheet")
+    SheetBounds findSheetBounds(@Param("sheet") String sheet);
+
+    @Query("select c.cellId as cellId, c.valueVersion as valueVersion from Cell c where c.cellId in :cellIds")
+    List<ValueVersion> findValueVersions(@Param("cellIds") Collection<String> cellIds);
+
+    // the cells saved in the transaction are inserted first, so that they are incremented as well, and the
+    // entities are then detached, so that the recalculation after the commit loads the incremented versions
+    @Modifying(flushAutomatically = true, clearAutomatically = true)
+    @Query("update Cell c set c.computedValue = null, c.valueVersion = c.valueVersion + 1 where c.cellId in :cellIds")
+    int invalidateComputedValues(@Param("cellIds") Collection<String> cellIds);
 }
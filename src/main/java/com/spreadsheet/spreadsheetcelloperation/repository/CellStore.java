@@ -0,0 +1,63 @@
+package com.spreadsheet.spreadsheetcelloperation.repository;
+
+import com.spreadsheet.spreadsheetcelloperation.model.Cell;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Storage of the sheet cells used by the service. The engine is selected with the
+ * spreadsheet.storage.engine property: jpa reads and writes the entities through Hibernate,
+ * columnar keeps the sheet in memory and persists it to the database in the background.
+ */
+public interface CellStore extends CellReader {
+
+    Cell save(Cell cell);
+
+    List<Cell> saveAll(Iterable<Cell> cells);
+
+    /**
+     * Waits until the store accepts more writes, called before a write takes its cell locks so that a store
+     * behind on persisting its writes doesn't hold them while it catches up. A store always accepting writes
+     * returns at once.
+     *
+     * @throws com.spreadsheet.spreadsheetcelloperation.exception.StorageBacklogException if the store doesn't catch up in time.
+     */
+    default void awaitWriteCapacity() {
+    }
+
+    /**
+     * Marks the computed values of the cells stale, giving each a new value version. Called in the transaction
+     * writing the cells they depend on. A store without persisted computed values ignores it.
+     */
+    default void invalidateComputedValues(Collection<String> cellIds) {
+    }
+
+    /**
+     * @return the value versions of the existing cells among the given IDs, to be read before the cells a
+     * value is computed from. A store without persisted computed values returns none.
+     */
+    default Map<String, Long> findValueVersions(Collection<String> cellIds) {
+        return Map.of();
+    }
+
+    /**
+     * Stores the computed values of the cells whose value version is still the one given, so a value computed
+     * before a write committed is not stored. A store without persisted computed values ignores it.
+     *
+     * @param values        The computed values by cell ID.
+     * @param valueVersions The value versions read before computing the values, by cell ID.
+     */
+    default void saveComputedValues(Map<String, Double> values, Map<String, Long> valueVersions) {
+    }
+
+    /**
+     * Returns a read-only view of the cells as of the latest commit, which later writes don't change,
+     * so the cells read through it for one request are consistent with each other. A store without
+     * snapshots returns itself, its reads then see the writes committed while the request runs.
+     */
+    default CellReader snapshot() {
+        return this;
+    }
+}
@@ -0,0 +1,15 @@
+package com.spreadsheet.spreadsheetcelloperation.repository;
+
+import java.util.Collection;
+
+/**
+ * Notified by a store publishing snapshots of the cells written by every commit, before the snapshot
+ * holding the writes is published, so a reader of the new snapshot never sees state derived from the old one.
+ */
+public interface CellWriteListener {
+
+    /**
+     * @param cellIds The IDs of the cells written by the commit.
+     */
+    void beforePublish(Collection<String> cellIds);
+}
@@ -0,0 +1,1216 @@
+package com.spreadsheet.spreadsheetcelloperation.repository;
+
+import com.spreadsheet.spreadsheetcelloperation.exception.ExpressionEvaluationException;
+import com.spreadsheet.spreadsheetcelloperation.exception.StorageBacklogException;
+import com.spreadsheet.spreadsheetcelloperation.model.Cell;
+import com.spreadsheet.spreadsheetcelloperation.model.CellAddress;
+import com.spreadsheet.spreadsheetcelloperation.model.CellData;
+import com.spreadsheet.spreadsheetcelloperation.model.CellRange;
+import com.spreadsheet.spreadsheetcelloperation.model.DependencyEdge;
+import com.spreadsheet.spreadsheetcelloperation.model.Formula;
+import com.spreadsheet.spreadsheetcelloperation.utils.FormulaCompiler;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.Ordered;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Keeps every sheet in memory, column by column, instead of one entity per cell.
+ * Each sheet holds the columns written so far, and each column is split in chunks of rows holding the
+ * numbers in a primitive double[] with one byte per row for the kind of value, while formulas and text
+ * go to a side table that is only allocated for the chunks holding any.
+ * <p>
+ * The database is read once on startup. Writes are applied in memory when their transaction commits
+ * and persisted in the background, so several writes to a cell between two flushes are persisted once.
+ * The written cells are flushed every flush interval, or as soon as a full batch of them is waiting.
+ * Writes wait for the flushes while max-unflushed-cells written cells are not persisted yet, so a crash
+ * loses at most that many cells, plus the cells of the transactions committing at that moment.
+ * <p>
+ * With a wal-directory, every write is also appended to a memory-mapped write-ahead log, and the sheet is
+ * written to a compact snapshot whenever a log segment is full and on shutdown. The store then starts from
+ * the snapshot and the log written after it, without reading the database, and also persists the cells
+ * that were not flushed to the database before a crash.
+ * <p>
+ * Reads take no lock. Every commit copies the chunks it writes and publishes the sheet as a new immutable
+ * generation sharing the other chunks, so a reader holding a generation sees the cells of one commit, and
+ * a generation is garbage collected once no reader holds it.
+ * <p>
+ * A cell the database keeps rejecting, like one whose data is too long for its column, is quarantined rather
+ * than failing every flush: it stays in memory, but is not persisted until it is written again.
+ */
+@Repository
+@ConditionalOnProperty(name = "spreadsheet.storage.engine", havingValue = "columnar")
+public class ColumnarCellStore implements CellStore, MeterBinder {
+
+    private static final Logger logger = Logger.getLogger(ColumnarCellStore.class.getName());
+
+    private static final int CHUNK_SIZE = 4096;
+
+    private static final int FLUSH_BATCH_SIZE = 1_000;
+
+    // how long a write waits for the flushes to catch up before it is rejected
+    private static final long FLUSH_WAIT_MILLIS = 10_000;
+
+    private static final int SNAPSHOT_MAGIC = 0x53534e32;
+
+    // snapshots written before there were several sheets, which are ignored
+    private static final int SINGLE_SHEET_SNAPSHOT_MAGIC = 0x53534e50;
+
+    private static final int MAX_CHUNKS = CellAddress.MAX_ROWS / CHUNK_SIZE + 1;
+
+    // kinds of cell values, numbers are kept in the form they were written in so they read back unchanged
+    private static final byte ABSENT = 0;
+    private static final byte BLANK = 1;
+    private static final byte NUMBER = 2;
+    private static final byte INTEGER = 3;
+    private static final byte TEXT = 4;
+
+    private final CellRepository cellRepository;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final Duration flushInterval;
+
+    private final int maxUnflushedCells;
+
+    // directory of the write-ahead log and the snapshot, or null to start from the database
+    private final Path walDirectory;
+
+    private final List<CellWriteListener> writeListeners;
+
+    // formula cell ID -> last value computed for it, with the value version of the cell it was computed at
+    private final Map<String, ComputedValue> computedValues = new ConcurrentHashMap<>();
+
+    // the value versions given by the commits to the cells they write or mark stale, never given twice
+    private final AtomicLong valueVersionSequence = new AtomicLong();
+
+    // the sheets as of the latest commit
+    private volatile Generation current = new Generation(Map.of(), computedValues);
+
+    // serializes the commits, and the log appends with them
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    // cells written since they were last persisted -> sequence number of their last write
+    private final Map<String, Long> dirtyCells = new ConcurrentHashMap<>();
+
+    private final AtomicLong writeSequence = new AtomicLong();
+
+    // written cells the database rejected on their own, left out of the flushes until they are written again
+    private final Set<String> quarantinedCells = ConcurrentHashMap.newKeySet();
+
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+    // notified whenever a batch is persisted, for the writes waiting on the flushes
+    private final Object flushMonitor = new Object();
+
+    private final AtomicBoolean snapshotRequested = new AtomicBoolean();
+
+    private WriteAheadLog writeAheadLog;
+
+    private ScheduledExecutorService flusher;
+
+    public ColumnarCellStore(CellRepository cellRepository, PlatformTransactionManager transactionManager,
+                             @Value("${spreadsheet.storage.flush-interval:1s}") Duration flushInterval,
+                             @Value("${spreadsheet.storage.max-unflushed-cells:100000}") int maxUnflushedCells,
+                             @Value("${spreadsheet.storage.wal-directory:}") String walDirectory,
+                             List<CellWriteListener> writeListeners) {
+        this.cellRepository = cellRepository;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.flushInterval = flushInterval;
+        this.maxUnflushedCells = maxUnflushedCells;
+        this.walDirectory = walDirectory == null || walDirectory.isBlank() ? null : Path.of(walDirectory);
+        this.writeListeners = writeListeners;
+    }
+
+    /**
+     * Loads the cells from the snapshot and the write-ahead log, or from the database if there is no snapshot,
+     * and starts persisting the written cells in the background.
+     */
+    @PostConstruct
+    public void load() {
+
+        long snapshotSequence = -1;
+        writeLock.lock();
+        try {
+            if (walDirectory != null) {
+                Files.createDirectories(walDirectory);
+                snapshotSequence = readSnapshot();
+            }
+            if (snapshotSequence < 0) {
+                List<CellData> cells = cellRepository.findAllCellData();
+                Map<String, String> loaded = new LinkedHashMap<>();
+                cells.forEach(cell -> loaded.put(cell.getCellId(), cell.toData()));
+                current = current.withWrites(loaded, List.of(), 0);
+                logger.info("Columnar cell store loaded from database, cells: " + cells.size());
+            }
+            if (walDirectory != null) {
+                writeAheadLog = new WriteAheadLog(walDirectory, WriteAheadLog.SEGMENT_SIZE);
+                Map<String, String> replayedWrites = new LinkedHashMap<>();
+                long replayed = writeAheadLog.open(Math.max(snapshotSequence, 0), (cellId, data) -> {
+                    replayedWrites.put(cellId, data);
+                    dirtyCells.put(cellId, writeSequence.incrementAndGet());
+                });
+                current = current.withWrites(replayedWrites, List.of(), 0);
+                logger.info("Columnar cell store replayed " + replayed + " writes from the write-ahead log");
+            }
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException("Loading the columnar cell store from " + walDirectory + " failed", e);
+        }
+        finally {
+            writeLock.unlock();
+        }
+        if (writeAheadLog != null && snapshotSequence < 0) {
+            takeSnapshot();
+        }
+
+        flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cell-store-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long intervalMillis = flushInterval.toMillis();
+        flusher.scheduleWithFixedDelay(this::flush, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the background flushes and persists the cells written since the last one.
+     */
+    @PreDestroy
+    public void close() throws InterruptedException {
+
+        if (flusher != null) {
+            flusher.shutdown();
+            flusher.awaitTermination(30, TimeUnit.SECONDS);
+        }
+        flush();
+        if (writeAheadLog != null) {
+            takeSnapshot();
+        }
+    }
+
+    @Override
+    public Optional<Cell> findById(String cellId) {
+
+        Map<String, String> writes = transactionWrites();
+        if (writes != null && writes.containsKey(cellId)) {
+            return Optional.of(cellOf(cellId, writes.get(cellId)));
+        }
+        return current.findById(cellId);
+    }
+
+    @Override
+    public List<Cell> findAllById(Iterable<String> cellIds) {
+
+        Map<String, String> writes = transactionWrites();
+        if (writes == null) {
+            return current.findAllById(cellIds);
+        }
+        Generation generation = current;
+        List<Cell> cells = new ArrayList<>();
+        for (String cellId : cellIds) {
+            Cell cell = writes.containsKey(cellId) ? cellOf(cellId, writes.get(cellId)) : generation.read(cellId);
+            if (cell != null) {
+                cells.add(cell);
+            }
+        }
+        return cells;
+    }
+
+    @Override
+    public List<Cell> findAllInRange(CellRange range) {
+
+        Map<String, String> writes = transactionWrites();
+        if (writes == null) {
+            return current.findAllInRange(range);
+        }
+        Map<String, Cell> cells = new LinkedHashMap<>();
+        current.findAllInRange(range).forEach(cell -> cells.put(cell.getCellId(), cell));
+        writes.forEach((cellId, data) -> {
+            if (range.contains(cellId)) {
+                cells.put(cellId, cellOf(cellId, data));
+            }
+        });
+        return new ArrayList<>(cells.values());
+    }
+
+    /**
+     * Writes the data of the cell, its dependencies are derived from its formula when it is persisted.
+     */
+    @Override
+    public Cell save(Cell cell) {
+        return saveAll(List.of(cell)).get(0);
+    }
+
+    /**
+     * Waits for the flushes while too many written cells are not persisted yet, outside of a transaction.
+     * In a transaction, which may hold the locks of its cells, the write fails at once instead, its caller
+     * having waited with {@link #awaitWriteCapacity()} before taking them.
+     *
+     * @throws StorageBacklogException if too many written cells are waiting to be persisted.
+     */
+    @Override
+    public List<Cell> saveAll(Iterable<Cell> cells) {
+
+        PendingCommit commit = pendingCommit(false);
+        if (commit == null && TransactionSynchronizationManager.isSynchronizationActive()) {
+            checkFlushCapacity();
+            commit = pendingCommit(true);
+        }
+        boolean applyNow = commit == null;
+        Map<String, String> writes;
+        if (applyNow) {
+            awaitFlushCapacity();
+            writes = new LinkedHashMap<>();
+        }
+        else {
+            writes = commit.writes;
+        }
+        List<Cell> savedCells = new ArrayList<>();
+        for (Cell cell : cells) {
+            if (locate(cell.getCellId()) == null) {
+                throw new IllegalArgumentException("Invalid Cell Id: " + cell.getCellId());
+            }
+            writes.put(cell.getCellId(), cell.getData());
+            cell.markNotNew();
+            savedCells.add(cell);
+        }
+        if (applyNow) {
+            apply(writes, List.of());
+        }
+        return savedCells;
+    }
+
+    /**
+     * Derives the dependencies from the formulas held in memory, which include the writes not flushed yet.
+     */
+    @Override
+    public List<DependencyEdge> findAllDependencyEdges() {
+        return current.findAllDependencyEdges();
+    }
+
+    @Override
+    public Optional<CellRange> findUsedRange(String sheet) {
+        return current.findUsedRange(sheet);
+    }
+
+    /**
+     * Gives the cells a new value version with the writes of the transaction once it commits, or at once
+     * outside of a transaction.
+     */
+    @Override
+    public void invalidateComputedValues(Collection<String> cellIds) {
+
+        PendingCommit commit = pendingCommit(true);
+        if (commit == null) {
+            apply(Map.of(), cellIds);
+        }
+        else {
+            commit.staleCellIds.addAll(cellIds);
+        }
+    }
+
+    /**
+     * @return the value versions of the existing cells as of the latest commit.
+     */
+    @Override
+    public Map<String, Long> findValueVersions(Collection<String> cellIds) {
+
+        Generation generation = current;
+        Map<String, Long> valueVersions = new HashMap<>();
+        for (String cellId : cellIds) {
+            Long valueVersion = generation.valueVersionOf(cellId);
+            if (valueVersion != null) {
+                valueVersions.put(cellId, valueVersion);
+            }
+        }
+        return valueVersions;
+    }
+
+    /**
+     * Keeps the computed values in memory with the value version they were computed at, a generation only
+     * serves the value of a cell whose version it holds. They are not persisted, and computed again after a restart.
+     */
+    @Override
+    public void saveComputedValues(Map<String, Double> values, Map<String, Long> valueVersions) {
+
+        Generation generation = current;
+        values.forEach((cellId, value) -> {
+            Long valueVersion = valueVersions.get(cellId);
+            if (valueVersion != null && valueVersion.equals(generation.valueVersionOf(cellId))) {
+                computedValues.put(cellId, new ComputedValue(valueVersion, value));
+            }
+        });
+    }
+
+    /**
+     * @return the sheet as of the latest commit, it is immutable and read without locking.
+     */
+    @Override
+    public CellReader snapshot() {
+        return current;
+    }
+
+    /**
+     * Persists the cells written since the last flush in batches, each in its own transaction.
+     * A cell stays dirty until a batch holding its last write is committed, so the cells of a failed
+     * batch and the cells written again while their batch was persisted are persisted by a later flush.
+     * The cells of a failed batch are persisted one by one, which quarantines the cells the database rejects.
+     */
+    void flush() {
+
+        flushRequested.set(false);
+        if (writeAheadLog != null) {
+            writeLock.lock();
+            try {
+                writeAheadLog.force();
+            }
+            finally {
+                writeLock.unlock();
+            }
+        }
+        while (!dirtyCells.isEmpty()) {
+            Map<String, Long> batch = new HashMap<>();
+            for (Iterator<Map.Entry<String, Long>> iterator = dirtyCells.entrySet().iterator(); iterator.hasNext() && batch.size() < FLUSH_BATCH_SIZE; ) {
+                Map.Entry<String, Long> dirtyCell = iterator.next();
+                batch.put(dirtyCell.getKey(), dirtyCell.getValue());
+            }
+            try {
+                transactionTemplate.executeWithoutResult(status -> persist(batch.keySet()));
+            }
+            catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Flushing " + batch.size() + " cells to database failed, persisting them one by one", e);
+                if (!persistOneByOne(batch.keySet())) {
+                    return;
+                }
+            }
+            // cells written again since the batch was taken keep their newer sequence number and stay dirty
+            batch.forEach(dirtyCells::remove);
+            synchronized (flushMonitor) {
+                flushMonitor.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Persists the cells of a failed batch each in its own transaction, so that the cells the database keeps
+     * rejecting don't hold back the others. The cells failing again while others are persisted are quarantined.
+     * If none is persisted, the database is more likely down than rejecting them all, and they all stay dirty.
+     *
+     * @return false if no cell could be persisted.
+     */
+    private boolean persistOneByOne(Collection<String> cellIds) {
+
+        Map<String, RuntimeException> failures = new HashMap<>();
+        for (String cellId : cellIds) {
+            try {
+                transactionTemplate.executeWithoutResult(status -> persist(List.of(cellId)));
+            }
+            catch (RuntimeException e) {
+                failures.put(cellId, e);
+            }
+        }
+        if (failures.size() == cellIds.size()) {
+            return false;
+        }
+        failures.forEach((cellId, e) -> {
+            quarantinedCells.add(cellId);
+            logger.log(Level.SEVERE, "Quarantined cell rejected by the database, it is not persisted until it is written again, Cell Id: " + cellId, e);
+        });
+        return true;
+    }
+
+    /**
+     * Starts a flush in the background, unless one is already requested.
+     */
+    private void requestFlush() {
+
+        if (flusher != null && flushRequested.compareAndSet(false, true)) {
+            try {
+                flusher.execute(this::flush);
+            }
+            catch (RejectedExecutionException e) {
+                // the store is closing, which flushes the remaining cells
+                flushRequested.set(false);
+            }
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("spreadsheet.store.unflushed.cells", dirtyCells, Map::size)
+                .description("Written cells waiting to be persisted to the database").register(registry);
+        Gauge.builder("spreadsheet.store.quarantined.cells", quarantinedCells, Set::size)
+                .description("Written cells rejected by the database, not persisted until they are written again").register(registry);
+    }
+
+    @Override
+    public void awaitWriteCapacity() {
+        awaitFlushCapacity();
+    }
+
+    /**
+     * Rejects the write of a transaction starting while too many written cells are not persisted yet, without
+     * waiting for the flushes.
+     *
+     * @throws StorageBacklogException if too many written cells are waiting to be persisted.
+     */
+    private void checkFlushCapacity() {
+
+        if (dirtyCells.size() >= maxUnflushedCells) {
+            requestFlush();
+            throw new StorageBacklogException("Too many writes waiting to be persisted, try again later");
+        }
+    }
+
+    /**
+     * Waits for the flushes while too many written cells are not persisted yet, which bounds the writes
+     * lost by a crash.
+     *
+     * @throws StorageBacklogException if the flushes don't catch up in time, for example while the database is down.
+     */
+    private void awaitFlushCapacity() {
+
+        if (dirtyCells.size() < maxUnflushedCells) {
+            return;
+        }
+        requestFlush();
+        long deadline = System.currentTimeMillis() + FLUSH_WAIT_MILLIS;
+        synchronized (flushMonitor) {
+            while (dirtyCells.size() >= maxUnflushedCells) {
+                long remainingMillis = deadline - System.currentTimeMillis();
+                if (remainingMillis <= 0) {
+                    throw new StorageBacklogException("Too many writes waiting to be persisted, try again later");
+                }
+                try {
+                    flushMonitor.wait(remainingMillis);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new StorageBacklogException("Interrupted while waiting for writes to be persisted");
+                }
+            }
+        }
+    }
+
+    private void persist(Collection<String> cellIds) {
+
+        Map<String, String> dataByCellId = new HashMap<>();
+        Generation generation = current;
+        for (String cellId : cellIds) {
+            Cell cell = generation.read(cellId);
+            if (cell != null) {
+                dataByCellId.put(cellId, cell.getData());
+            }
+        }
+
+        Map<String, Formula> formulas = new HashMap<>();
+        Set<String> involvedCellIds = new HashSet<>(dataByCellId.keySet());
+        dataByCellId.forEach((cellId, data) -> {
+            if (data != null && data.startsWith("=")) {
+                try {
+                    Formula formula = FormulaCompiler.compile(data.substring(1), cellId);
+                    formulas.put(cellId, formula);
+                    involvedCellIds.addAll(formula.getReferences());
+                }
+                catch (ExpressionEvaluationException e) {
+                    // a formula stored before it was rejected on write is persisted as it is, without dependencies
+                    logger.fine("Persisting invalid formula without dependencies, Cell Id: " + cellId);
+                }
+            }
+        });
+        Map<String, Cell> entities = new HashMap<>();
+        cellRepository.findAllById(involvedCellIds).forEach(entity -> entities.put(entity.getCellId(), entity));
+        // referenced cells written after this batch was read are inserted empty and updated by the next flush
+        involvedCellIds.forEach(cellId -> entities.computeIfAbsent(cellId, Cell::new));
+
+        dataByCellId.forEach((cellId, data) -> {
+            Cell entity = entities.get(cellId);
+            Formula formula = formulas.get(cellId);
+            entity.setData(data);
+            entity.setDependentCells(formula == null ? new ArrayList<>()
+                    : new ArrayList<>(formula.getReferences().stream().map(entities::get).toList()));
+            entity.setRangeReferences(formula == null ? new LinkedHashSet<>()
+                    : formula.getRanges().stream().map(CellRange::getId).collect(Collectors.toCollection(LinkedHashSet::new)));
+        });
+        cellRepository.saveAll(entities.values());
+    }
+
+    /**
+     * @return the writes buffered by the current transaction by cell ID, or null outside of a transaction or
+     * if it has not written yet.
+     */
+    private Map<String, String> transactionWrites() {
+
+        PendingCommit commit = pendingCommit(false);
+        return commit == null ? null : commit.writes;
+    }
+
+    /**
+     * Returns the writes and the stale cells buffered by the current transaction, which are applied once it commits.
+     *
+     * @param create Whether to start buffering if the transaction has not written yet.
+     * @return the buffered commit, or null outside of a transaction.
+     */
+    private PendingCommit pendingCommit(boolean create) {
+
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            return null;
+        }
+        PendingCommit commit = (PendingCommit) TransactionSynchronizationManager.getResource(this);
+        if (commit == null && create) {
+            PendingCommit newCommit = new PendingCommit();
+            TransactionSynchronizationManager.bindResource(this, newCommit);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public int getOrder() {
+                    // applied before the caches are refreshed by the other synchronizations
+                    return Ordered.HIGHEST_PRECEDENCE;
+                }
+
+                @Override
+                public void afterCommit() {
+                    apply(newCommit.writes, newCommit.staleCellIds);
+                }
+
+                @Override
+                public void afterCompletion(int status) {
+                    TransactionSynchronizationManager.unbindResource(ColumnarCellStore.this);
+                }
+            });
+            commit = newCommit;
+        }
+        return commit;
+    }
+
+    /**
+     * Publishes a new generation holding the writes of a commit. The listeners are notified before it is
+     * published, and the cells are marked dirty after, so a flush reading a dirty cell reads its last write.
+     * The written and the stale cells get the next value version in the same generation, so no value computed
+     * from the cells before the commit is served from it.
+     */
+    private void apply(Map<String, String> writes, Collection<String> staleCellIds) {
+
+        boolean rolled = false;
+        writeLock.lock();
+        try {
+            if (writeAheadLog != null) {
+                for (Map.Entry<String, String> write : writes.entrySet()) {
+                    rolled |= writeAheadLog.append(write.getKey(), write.getValue());
+                }
+            }
+            Generation next = current.withWrites(writes, staleCellIds, valueVersionSequence.incrementAndGet());
+            // no generation holds the version of these values again, a value saved meanwhile is never served
+            writes.keySet().forEach(computedValues::remove);
+            staleCellIds.forEach(computedValues::remove);
+            writeListeners.forEach(listener -> listener.beforePublish(writes.keySet()));
+            current = next;
+            // marked under the lock, so that a snapshot holding the write also knows it is not flushed
+            writes.keySet().forEach(cellId -> dirtyCells.put(cellId, writeSequence.incrementAndGet()));
+            if (!quarantinedCells.isEmpty()) {
+                writes.keySet().forEach(quarantinedCells::remove);
+            }
+        }
+        finally {
+            writeLock.unlock();
+        }
+        if (dirtyCells.size() >= FLUSH_BATCH_SIZE) {
+            requestFlush();
+        }
+        if (rolled) {
+            requestSnapshot();
+        }
+    }
+
+    private void requestSnapshot() {
+
+        if (flusher != null && snapshotRequested.compareAndSet(false, true)) {
+            try {
+                flusher.execute(this::takeSnapshot);
+            }
+            catch (RejectedExecutionException e) {
+                // the store is closing, which takes a snapshot
+                snapshotRequested.set(false);
+            }
+        }
+    }
+
+    /**
+     * Writes the sheet to a new snapshot and deletes the log segments it holds the writes of.
+     * The generation holding the writes of the earlier segments is taken under the lock and written to the
+     * file after releasing it.
+     */
+    void takeSnapshot() {
+
+        snapshotRequested.set(false);
+        Generation generation;
+        List<String> dirtyCellIds;
+        long sequence;
+        writeLock.lock();
+        try {
+            sequence = writeAheadLog.roll();
+            generation = current;
+            dirtyCellIds = new ArrayList<>(dirtyCells.keySet());
+        }
+        finally {
+            writeLock.unlock();
+        }
+        try {
+            writeSnapshot(generation.sheets, sequence, dirtyCellIds);
+            writeAheadLog.deleteBefore(sequence);
+        }
+        catch (IOException e) {
+            logger.log(Level.WARNING, "Writing snapshot of the cell store failed", e);
+        }
+    }
+
+    /**
+     * Writes the non-empty chunks sheet by sheet and column by column: the kinds of their rows followed by the
+     * numbers and texts of the rows holding any, then the cells not flushed to the database yet and a checksum
+     * of the file.
+     */
+    private void writeSnapshot(Map<String, Chunk[][]> sheets, long sequence, List<String> dirtyCellIds) throws IOException {
+
+        Path temporary = walDirectory.resolve("snapshot.tmp");
+        try (FileOutputStream file = new FileOutputStream(temporary.toFile())) {
+            CheckedOutputStream checked = new CheckedOutputStream(file, new CRC32());
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(checked, 1 << 16));
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeLong(sequence);
+            for (Map.Entry<String, Chunk[][]> sheet : sheets.entrySet()) {
+                out.writeByte(2);
+                writeString(out, sheet.getKey());
+                Chunk[][] columns = sheet.getValue();
+                for (int column = 0; column < columns.length; column++) {
+                    for (int chunkIndex = 0; columns[column] != null && chunkIndex < columns[column].length; chunkIndex++) {
+                        Chunk chunk = columns[column][chunkIndex];
+                        if (chunk == null) {
+                            continue;
+                        }
+                        out.writeByte(1);
+                        out.writeInt(column);
+                        out.writeInt(chunkIndex);
+                        out.write(chunk.kinds);
+                        for (int offset = 0; offset < CHUNK_SIZE; offset++) {
+                            if (chunk.kinds[offset] == NUMBER || chunk.kinds[offset] == INTEGER) {
+                                out.writeDouble(chunk.numbers[offset]);
+                            }
+                            else if (chunk.kinds[offset] == TEXT) {
+                                writeString(out, chunk.texts[offset]);
+                            }
+                        }
+                    }
+                }
+            }
+            out.writeByte(0);
+            out.writeInt(dirtyCellIds.size());
+            for (String cellId : dirtyCellIds) {
+                writeString(out, cellId);
+            }
+            out.flush();
+            out.writeLong(checked.getChecksum().getValue());
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(temporary, walDirectory.resolve("snapshot.bin"), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Maps the snapshot file and loads its chunks and its cells not flushed yet, a damaged snapshot is ignored.
+     *
+     * @return the sequence of the first log segment written after the snapshot, or -1 if there is no usable snapshot.
+     */
+    private long readSnapshot() throws IOException {
+
+        Path snapshot = walDirectory.resolve("snapshot.bin");
+        if (!Files.exists(snapshot)) {
+            return -1;
+        }
+        try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int checksumPosition = buffer.limit() - Long.BYTES;
+            CRC32 checksum = new CRC32();
+            checksum.update(buffer.slice(0, Math.max(checksumPosition, 0)));
+            if (checksumPosition < Integer.BYTES || buffer.getLong(checksumPosition) != checksum.getValue()) {
+                logger.severe("Ignoring damaged snapshot " + snapshot + ", loading the cell store from database");
+                return -1;
+            }
+            int magic = buffer.getInt();
+            if (magic != SNAPSHOT_MAGIC) {
+                logger.severe("Ignoring " + (magic == SINGLE_SHEET_SNAPSHOT_MAGIC ? "single sheet" : "damaged")
+                        + " snapshot " + snapshot + ", loading the cell store from database");
+                return -1;
+            }
+            long sequence = buffer.getLong();
+            Map<String, Chunk[][]> sheets = new HashMap<>();
+            String sheet = null;
+            Chunk[][] columns = null;
+            for (byte marker = buffer.get(); marker != 0; marker = buffer.get()) {
+                if (marker == 2) {
+                    sheet = readString(buffer);
+                    columns = new Chunk[0][];
+                    sheets.put(sheet, columns);
+                    continue;
+                }
+                int column = buffer.getInt();
+                int chunkIndex = buffer.getInt();
+                Chunk chunk = new Chunk();
+                buffer.get(chunk.kinds);
+                for (int offset = 0; offset < CHUNK_SIZE; offset++) {
+                    if (chunk.kinds[offset] == NUMBER || chunk.kinds[offset] == INTEGER) {
+                        chunk.numbers[offset] = buffer.getDouble();
+                    }
+                    else if (chunk.kinds[offset] == TEXT) {
+                        if (chunk.texts == null) {
+                            chunk.texts = new String[CHUNK_SIZE];
+                        }
+                        chunk.texts[offset] = readString(buffer);
+                    }
+                }
+                if (column >= columns.length) {
+                    columns = Arrays.copyOf(columns, column + 1);
+                    sheets.put(sheet, columns);
+                }
+                if (columns[column] == null || chunkIndex >= columns[column].length) {
+                    columns[column] = columns[column] == null ? new Chunk[chunkIndex + 1] : Arrays.copyOf(columns[column], chunkIndex + 1);
+                }
+                columns[column][chunkIndex] = chunk;
+            }
+            for (int count = buffer.getInt(); count > 0; count--) {
+                dirtyCells.put(readString(buffer), writeSequence.incrementAndGet());
+            }
+            current = new Generation(sheets, computedValues);
+            logger.info("Columnar cell store loaded from snapshot " + snapshot);
+            return sequence;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the sheet, the column index and the row of the cell, or null if the ID is not a cell ID.
+     */
+    private static Location locate(String cellId) {
+
+        int sheetStart = CellAddress.workbookEnd(cellId);
+        int cellStart = sheetStart < 0 ? -1 : CellAddress.sheetEnd(cellId, sheetStart);
+        long location = cellStart < 0 ? -1 : CellAddress.locate(cellId, cellStart, cellId.length());
+        if (location < 0) {
+            return null;
+        }
+        return new Location(cellStart == 0 ? "" : cellId.substring(0, cellStart), (int) (location >>> 32), (int) location);
+    }
+
+    /**
+     * @param sheet The workbook and sheet qualifying the cell ID, like [acme]Sheet2!, empty for the default sheet.
+     */
+    private record Location(String sheet, int column, int row) {
+    }
+
+    private static Cell cellOf(String cellId, String data) {
+
+        Cell cell = new Cell(cellId, data);
+        cell.markNotNew();
+        return cell;
+    }
+
+    /**
+     * @param text The number as written, or null if it was written without fraction.
+     */
+    private static Cell numberCellOf(String cellId, double number, String text) {
+
+        Cell cell = Cell.ofNumber(cellId, number, text);
+        cell.markNotNew();
+        return cell;
+    }
+
+    private record FormulaEdge(String cellId, String precedentId) implements DependencyEdge {
+
+        @Override
+        public String getCellId() {
+            return cellId;
+        }
+
+        @Override
+        public String getPrecedentId() {
+            return precedentId;
+        }
+    }
+
+    private record ComputedValue(long valueVersion, double value) {
+    }
+
+    /**
+     * The writes and the cells marked stale by a transaction, applied once it commits.
+     */
+    private static final class PendingCommit {
+
+        private final Map<String, String> writes = new LinkedHashMap<>();
+
+        private final Set<String> staleCellIds = new HashSet<>();
+    }
+
+    /**
+     * The sheets as of one commit: sheet -> column index -> chunks of rows. A column is allocated with the first
+     * cell written in it, and a chunk with the first cell written in its rows. The arrays and chunks are never
+     * written once the generation is published.
+     */
+    private static final class Generation implements CellReader {
+
+        private final Map<String, Chunk[][]> sheets;
+
+        // shared by the generations, a computed value is only served with the value version it was computed at
+        private final Map<String, ComputedValue> computedValues;
+
+        private Generation(Map<String, Chunk[][]> sheets, Map<String, ComputedValue> computedValues) {
+            this.sheets = sheets;
+            this.computedValues = computedValues;
+        }
+
+        /**
+         * @return a generation holding the given writes, which copies the arrays and chunks it writes and shares
+         * the others, including the sheets it doesn't write.
+         * @param staleCellIds The cells whose computed value becomes stale, the existing ones get the value version.
+         * @param valueVersion The value version of the written and the stale cells, 0 for the cells loaded on startup.
+         */
+        private Generation withWrites(Map<String, String> writes, Collection<String> staleCellIds, long valueVersion) {
+
+            Map<String, Chunk[][]> next = new HashMap<>(sheets);
+            // the arrays and chunks created for the next generation, written in place by the following writes
+            Set<Object> copies = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (Map.Entry<String, String> write : writes.entrySet()) {
+                Location location = locate(write.getKey());
+                if (location == null) {
+                    logger.warning("Skipping cell with invalid Cell Id: " + write.getKey());
+                    continue;
+                }
+                Chunk chunk = writableChunk(next, copies, location);
+                chunk.set(location.row() % CHUNK_SIZE, write.getValue());
+                chunk.setValueVersion(location.row() % CHUNK_SIZE, valueVersion);
+            }
+            for (String cellId : staleCellIds) {
+                if (!writes.containsKey(cellId) && read(cellId) != null) {
+                    Location location = locate(cellId);
+                    writableChunk(next, copies, location).setValueVersion(location.row() % CHUNK_SIZE, valueVersion);
+                }
+            }
+            return new Generation(next, computedValues);
+        }
+
+        /**
+         * @return the chunk of the next generation holding the location, copied or created on the first write to it.
+         */
+        private static Chunk writableChunk(Map<String, Chunk[][]> next, Set<Object> copies, Location location) {
+
+            int column = location.column();
+            int chunkIndex = location.row() / CHUNK_SIZE;
+            Chunk[][] columns = next.get(location.sheet());
+            if (columns == null || !copies.contains(columns) || column >= columns.length) {
+                columns = columns == null ? new Chunk[column + 1][] : Arrays.copyOf(columns,
+                        grownLength(column, columns.length, copies.contains(columns), CellAddress.MAX_COLUMNS));
+                next.put(location.sheet(), columns);
+                copies.add(columns);
+            }
+            Chunk[] chunks = columns[column];
+            if (chunks == null || !copies.contains(chunks) || chunkIndex >= chunks.length) {
+                chunks = chunks == null ? new Chunk[chunkIndex + 1] : Arrays.copyOf(chunks,
+                        grownLength(chunkIndex, chunks.length, copies.contains(chunks), MAX_CHUNKS));
+                columns[column] = chunks;
+                copies.add(chunks);
+            }
+            Chunk chunk = chunks[chunkIndex];
+            if (chunk == null || !copies.contains(chunk)) {
+                chunk = chunk == null ? new Chunk() : chunk.copy();
+                chunks[chunkIndex] = chunk;
+                copies.add(chunk);
+            }
+            return chunk;
+        }
+
+        /**
+         * @return the length of an array grown to hold the index, doubled if it was already copied by this commit.
+         */
+        private static int grownLength(int index, int length, boolean copied, int maxLength) {
+            return Math.max(index + 1, copied ? Math.min(length * 2, maxLength) : length);
+        }
+
+        private Cell read(String cellId) {
+
+            Location location = locate(cellId);
+            Chunk chunk = location == null ? null : chunkOf(location);
+            return chunk == null ? null : cellAt(cellId, chunk, location.row() % CHUNK_SIZE);
+        }
+
+        /**
+         * @return the value version of the cell, or null if it doesn't exist.
+         */
+        private Long valueVersionOf(String cellId) {
+
+            Location location = locate(cellId);
+            Chunk chunk = location == null ? null : chunkOf(location);
+            int offset = location == null ? 0 : location.row() % CHUNK_SIZE;
+            return chunk == null || chunk.kinds[offset] == ABSENT ? null : chunk.valueVersionAt(offset);
+        }
+
+        /**
+         * @return the chunk holding the location, or null if no cell was written in its rows.
+         */
+        private Chunk chunkOf(Location location) {
+
+            Chunk[][] columns = sheets.get(location.sheet());
+            if (columns == null || location.column() >= columns.length || columns[location.column()] == null) {
+                return null;
+            }
+            Chunk[] chunks = columns[location.column()];
+            int chunkIndex = location.row() / CHUNK_SIZE;
+            return chunkIndex < chunks.length ? chunks[chunkIndex] : null;
+        }
+
+        /**
+         * @return the cell at the offset with its value version, and for a formula the value computed at that version.
+         */
+        private Cell cellAt(String cellId, Chunk chunk, int offset) {
+
+            Cell cell = switch (chunk.kinds[offset]) {
+                case ABSENT -> null;
+                case BLANK -> cellOf(cellId, null);
+                case NUMBER -> numberCellOf(cellId, chunk.numbers[offset], Double.toString(chunk.numbers[offset]));
+                case INTEGER -> numberCellOf(cellId, chunk.numbers[offset], null);
+                default -> cellOf(cellId, chunk.texts[offset]);
+            };
+            if (cell != null) {
+                long valueVersion = chunk.valueVersionAt(offset);
+                cell.setValueVersion(valueVersion);
+                ComputedValue computedValue = chunk.kinds[offset] == TEXT ? computedValues.get(cellId) : null;
+                if (computedValue != null && computedValue.valueVersion() == valueVersion) {
+                    cell.setComputedValue(computedValue.value());
+                }
+            }
+            return cell;
+        }
+
+        @Override
+        public Optional<Cell> findById(String cellId) {
+            return Optional.ofNullable(read(cellId));
+        }
+
+        @Override
+        public List<Cell> findAllById(Iterable<String> cellIds) {
+
+            List<Cell> cells = new ArrayList<>();
+            for (String cellId : cellIds) {
+                Cell cell = read(cellId);
+                if (cell != null) {
+                    cells.add(cell);
+                }
+            }
+            return cells;
+        }
+
+        /**
+         * Walks the chunks of the columns of the range, only the IDs of the existing cells are built.
+         */
+        @Override
+        public List<Cell> findAllInRange(CellRange range) {
+
+            List<Cell> cells = new ArrayList<>();
+            Chunk[][] columns = sheets.get(range.sheet());
+            for (int column = range.startColumn(); columns != null && column <= range.endColumn() && column < columns.length; column++) {
+                Chunk[] chunks = columns[column];
+                if (chunks == null) {
+                    continue;
+                }
+                String columnPrefix = range.sheet() + CellAddress.columnName(column);
+                for (int row = range.startRow(); row <= range.endRow(); row++) {
+                    int chunkIndex = row / CHUNK_SIZE;
+                    if (chunkIndex >= chunks.length) {
+                        break;
+                    }
+                    if (chunks[chunkIndex] == null) {
+                        // skips to the first row of the next chunk
+                        row = (chunkIndex + 1) * CHUNK_SIZE - 1;
+                        continue;
+                    }
+                    int offset = row % CHUNK_SIZE;
+                    if (chunks[chunkIndex].kinds[offset] != ABSENT) {
+                        cells.add(cellAt(columnPrefix + row, chunks[chunkIndex], offset));
+                    }
+                }
+            }
+            return cells;
+        }
+
+        @Override
+        public Optional<CellRange> findUsedRange(String sheet) {
+
+            Chunk[][] columns = sheets.getOrDefault(sheet, new Chunk[0][]);
+            int startColumn = Integer.MAX_VALUE;
+            int startRow = Integer.MAX_VALUE;
+            int endColumn = -1;
+            int endRow = -1;
+            for (int column = 0; column < columns.length; column++) {
+                for (int chunkIndex = 0; columns[column] != null && chunkIndex < columns[column].length; chunkIndex++) {
+                    Chunk chunk = columns[column][chunkIndex];
+                    for (int offset = 0; chunk != null && offset < CHUNK_SIZE; offset++) {
+                        if (chunk.kinds[offset] != ABSENT) {
+                            int row = chunkIndex * CHUNK_SIZE + offset;
+                            startColumn = Math.min(startColumn, column);
+                            startRow = Math.min(startRow, row);
+                            endColumn = Math.max(endColumn, column);
+                            endRow = Math.max(endRow, row);
+                        }
+                    }
+                }
+            }
+            return endColumn < 0 ? Optional.empty() : Optional.of(new CellRange(sheet, startColumn, startRow, endColumn, endRow));
+        }
+
+        @Override
+        public List<DependencyEdge> findAllDependencyEdges() {
+
+            List<DependencyEdge> edges = new ArrayList<>();
+            sheets.forEach((sheet, columns) -> {
+                for (int column = 0; column < columns.length; column++) {
+                    for (int chunkIndex = 0; columns[column] != null && chunkIndex < columns[column].length; chunkIndex++) {
+                        Chunk chunk = columns[column][chunkIndex];
+                        if (chunk == null || chunk.texts == null) {
+                            continue;
+                        }
+                        for (int offset = 0; offset < CHUNK_SIZE; offset++) {
+                            String data = chunk.texts[offset];
+                            if (chunk.kinds[offset] == TEXT && data.startsWith("=")) {
+                                String cellId = sheet + CellAddress.columnName(column) + (chunkIndex * CHUNK_SIZE + offset);
+                                try {
+                                    FormulaCompiler.compile(data.substring(1), cellId).getPrecedents()
+                                            .forEach(precedentId -> edges.add(new FormulaEdge(cellId, precedentId)));
+                                }
+                                catch (ExpressionEvaluationException e) {
+                                    logger.fine("Skipping dependencies of invalid formula, Cell Id: " + cellId);
+                                }
+                            }
+                        }
+                    }
+                }
+            });
+            return edges;
+        }
+    }
+
+    private static final class Chunk {
+
+        private final byte[] kinds = new byte[CHUNK_SIZE];
+        private final double[] numbers = new double[CHUNK_SIZE];
+        // formulas and text, allocated with the first one written in the chunk
+        private String[] texts;
+        // value versions, allocated with the first cell of the chunk written or marked stale after startup
+        private long[] valueVersions;
+
+        private Chunk copy() {
+
+            Chunk copy = new Chunk();
+            System.arraycopy(kinds, 0, copy.kinds, 0, CHUNK_SIZE);
+            System.arraycopy(numbers, 0, copy.numbers, 0, CHUNK_SIZE);
+            copy.texts = texts == null ? null : texts.clone();
+            copy.valueVersions = valueVersions == null ? null : valueVersions.clone();
+            return copy;
+        }
+
+        private long valueVersionAt(int offset) {
+            return valueVersions == null ? 0 : valueVersions[offset];
+        }
+
+        private void setValueVersion(int offset, long valueVersion) {
+
+            if (valueVersions == null) {
+                if (valueVersion == 0) {
+                    return;
+                }
+                valueVersions = new long[CHUNK_SIZE];
+            }
+            valueVersions[offset] = valueVersion;
+        }
+
+        private void set(int offset, String data) {
+
+            if (texts != null) {
+                texts[offset] = null;
+            }
+            if (data == null) {
+                kinds[offset] = BLANK;
+                return;
+            }
+            if (!data.isEmpty() && (Character.isDigit(data.charAt(0)) || data.charAt(0) == '-')) {
+                try {
+                    double number = Double.parseDouble(data);
+                    if (Double.toString(number).equals(data)) {
+                        kinds[offset] = NUMBER;
+                        numbers[offset] = number;
+                        return;
+                    }
+                    if (number == (long) number && Long.toString((long) number).equals(data)) {
+                        kinds[offset] = INTEGER;
+                        numbers[offset] = number;
+                        return;
+                    }
+                }
+                catch (NumberFormatException e) {
+                    // stored as text
+                }
+            }
+            if (texts == null) {
+                texts = new String[CHUNK_SIZE];
+            }
+            kinds[offset] = TEXT;
+            texts[offset] = data;
+        }
+    }
+}
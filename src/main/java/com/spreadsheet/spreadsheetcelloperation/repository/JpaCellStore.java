@@ -0,0 +1,188 @@
+package com.spreadsheet.spreadsheetcelloperation.repository;
+
+import com.spreadsheet.spreadsheetcelloperation.model.Cell;
+import com.spreadsheet.spreadsheetcelloperation.model.CellAddress;
+import com.spreadsheet.spreadsheetcelloperation.model.CellRange;
+import com.spreadsheet.spreadsheetcelloperation.model.DependencyEdge;
+import com.spreadsheet.spreadsheetcelloperation.model.SheetBounds;
+import com.spreadsheet.spreadsheetcelloperation.model.ValueVersion;
+import jakarta.annotation.PostConstruct;
+import jakarta.transaction.Transactional;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.logging.Logger;
+
+/**
+ * Default store, every cell is a JPA entity read from and written to the database.
+ */
+@Repository
+@ConditionalOnProperty(name = "spreadsheet.storage.engine", havingValue = "jpa", matchIfMissing = true)
+public class JpaCellStore implements CellStore {
+
+    private static final Logger logger = Logger.getLogger(JpaCellStore.class.getName());
+
+    // Bound on the IDs of one IN list
+    private static final int ID_CHUNK_SIZE = 1000;
+
+    private static final String SAVE_COMPUTED_VALUE =
+            "update cell set computed_value = ? where cell_id = ? and value_version = ?";
+
+    private final CellRepository cellRepository;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public JpaCellStore(CellRepository cellRepository, PlatformTransactionManager transactionManager, JdbcTemplate jdbcTemplate) {
+        this.cellRepository = cellRepository;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Derives the sheet and the coordinates of the rows written before cells were located, which the range
+     * lookups would miss, {@value #ID_CHUNK_SIZE} rows per transaction.
+     */
+    @PostConstruct
+    public void locateCells() {
+
+        List<String> cellIds = cellRepository.findAllUnlocatedCellIds();
+        for (List<String> chunk : chunksOf(cellIds)) {
+            transactionTemplate.executeWithoutResult(status -> chunk.forEach(cellId -> {
+                CellAddress address = CellAddress.parseOrNull(cellId);
+                if (address != null) {
+                    cellRepository.locate(cellId, address.getSheetPrefix(), address.column(), address.row());
+                }
+            }));
+        }
+        if (!cellIds.isEmpty()) {
+            logger.info("Located " + cellIds.size() + " cells written before cells had coordinates");
+        }
+    }
+
+    @Override
+    public Optional<Cell> findById(String cellId) {
+        return cellRepository.findById(cellId);
+    }
+
+    @Override
+    public List<Cell> findAllById(Iterable<String> cellIds) {
+        return cellRepository.findAllById(cellIds);
+    }
+
+    @Override
+    public List<Cell> findAllInRange(CellRange range) {
+        return cellRepository.findAllInRange(range.sheet(), range.startColumn(), range.startRow(), range.endColumn(), range.endRow());
+    }
+
+    /**
+     * Saves the cell and increments its value version in the database, the entity never writes the version.
+     */
+    @Override
+    @Transactional
+    public Cell save(Cell cell) {
+        Cell saved = cellRepository.save(cell);
+        invalidateComputedValues(List.of(cell.getCellId()));
+        return saved;
+    }
+
+    /**
+     * Saves the cells and increments their value versions in the database, the entities never write the version.
+     */
+    @Override
+    @Transactional
+    public List<Cell> saveAll(Iterable<Cell> cells) {
+        List<Cell> saved = cellRepository.saveAll(cells);
+        invalidateComputedValues(saved.stream().map(Cell::getCellId).toList());
+        return saved;
+    }
+
+    @Override
+    public List<DependencyEdge> findAllDependencyEdges() {
+        List<DependencyEdge> edges = new ArrayList<>(cellRepository.findAllDependencyEdges());
+        edges.addAll(cellRepository.findAllRangeDependencyEdges());
+        return edges;
+    }
+
+    /**
+     * Increments the value versions in the database, so that versions only grow and two transactions marking
+     * a cell stale give it two new versions, whatever the order they commit in.
+     */
+    @Override
+    @Transactional
+    public void invalidateComputedValues(Collection<String> cellIds) {
+        for (List<String> chunk : chunksOf(cellIds)) {
+            cellRepository.invalidateComputedValues(chunk);
+        }
+    }
+
+    @Override
+    public Map<String, Long> findValueVersions(Collection<String> cellIds) {
+
+        Map<String, Long> valueVersions = new HashMap<>();
+        for (List<String> chunk : chunksOf(cellIds)) {
+            for (ValueVersion valueVersion : cellRepository.findValueVersions(chunk)) {
+                valueVersions.put(valueVersion.getCellId(), valueVersion.getValueVersion());
+            }
+        }
+        return valueVersions;
+    }
+
+    /**
+     * Updates each cell on the condition that its value version is unchanged, in a transaction of its own, also
+     * when called once a write has committed. The updates are one JDBC batch over a single prepared statement,
+     * {@value #ID_CHUNK_SIZE} cells per round trip, which the MySQL driver rewrites into multi-row statements
+     * with rewriteBatchedStatements.
+     */
+    @Override
+    @Transactional(Transactional.TxType.REQUIRES_NEW)
+    public void saveComputedValues(Map<String, Double> values, Map<String, Long> valueVersions) {
+
+        // in the order of the keys, like the rows marked stale by a write, so that the two don't deadlock
+        List<Map.Entry<String, Double>> versionedValues = values.entrySet().stream()
+                .filter(entry -> valueVersions.containsKey(entry.getKey()))
+                .sorted(Map.Entry.comparingByKey())
+                .toList();
+        if (versionedValues.isEmpty()) {
+            return;
+        }
+        jdbcTemplate.batchUpdate(SAVE_COMPUTED_VALUE, versionedValues, ID_CHUNK_SIZE, (statement, entry) -> {
+            statement.setDouble(1, entry.getValue());
+            statement.setString(2, entry.getKey());
+            statement.setLong(3, valueVersions.get(entry.getKey()));
+        });
+    }
+
+    /**
+     * Reads the bounds of the sheet with one aggregate query over the location columns, served by their index.
+     */
+    @Override
+    public Optional<CellRange> findUsedRange(String sheet) {
+
+        SheetBounds bounds = cellRepository.findSheetBounds(sheet);
+        if (bounds == null || bounds.getEndColumn() == null) {
+            return Optional.empty();
+        }
+        return Optional.of(new CellRange(sheet, bounds.getStartColumn(), bounds.getStartRow(), bounds.getEndColumn(), bounds.getEndRow()));
+    }
+
+    private static List<List<String>> chunksOf(Collection<String> cellIds) {
+
+        List<String> ids = new ArrayList<>(cellIds);
+        List<List<String>> chunks = new ArrayList<>();
+        for (int start = 0; start < ids.size(); start += ID_CHUNK_SIZE) {
+            chunks.add(ids.subList(start, Math.min(ids.size(), start + ID_CHUNK_SIZE)));
+        }
+        return chunks;
+    }
+}
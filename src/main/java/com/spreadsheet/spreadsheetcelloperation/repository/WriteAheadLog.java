@@ -0,0 +1,211 @@
+package com.spreadsheet.spreadsheetcelloperation.repository;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the cell writes, kept in memory-mapped segment files named wal-&lt;sequence&gt;.log.
+ * Every record holds the ID and the data of one written cell with a checksum, so a record torn by a crash
+ * ends the replay. Writes land in the page cache as soon as they are appended, which survives a crash of
+ * the process, and reach the disk once the log is forced.
+ * <p>
+ * Not thread safe, the columnar store appends and rolls segments under its write lock.
+ */
+class WriteAheadLog {
+
+    private static final Logger logger = Logger.getLogger(WriteAheadLog.class.getName());
+
+    static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    // record header: payload length and checksum, a length of 0 marks the end of the written records
+    private static final int HEADER_SIZE = 8;
+
+    private final Path directory;
+
+    private final int segmentSize;
+
+    private long sequence;
+
+    private MappedByteBuffer segment;
+
+    WriteAheadLog(Path directory, int segmentSize) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Replays the records of the segments from the given sequence on in order, then opens a new segment
+     * after the last one for the next writes.
+     *
+     * @param fromSequence The first segment to replay, the earlier ones are covered by a snapshot.
+     * @param write        Receives the ID and the data of every written cell.
+     * @return the number of replayed records.
+     */
+    long open(long fromSequence, BiConsumer<String, String> write) {
+
+        long replayed = 0;
+        long lastSequence = fromSequence - 1;
+        for (long segmentSequence : segmentSequences()) {
+            if (segmentSequence < fromSequence) {
+                continue;
+            }
+            lastSequence = segmentSequence;
+            try (FileChannel channel = FileChannel.open(segmentPath(segmentSequence), StandardOpenOption.READ)) {
+                ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                replayed += replay(buffer, write);
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException("Reading write-ahead log segment " + segmentSequence + " failed", e);
+            }
+        }
+        sequence = lastSequence;
+        roll();
+        return replayed;
+    }
+
+    private long replay(ByteBuffer buffer, BiConsumer<String, String> write) {
+
+        long replayed = 0;
+        CRC32 checksum = new CRC32();
+        while (buffer.remaining() >= HEADER_SIZE) {
+            int length = buffer.getInt();
+            int expectedChecksum = buffer.getInt();
+            if (length <= 0 || length > buffer.remaining()) {
+                break;
+            }
+            ByteBuffer payload = buffer.slice(buffer.position(), length);
+            checksum.reset();
+            checksum.update(payload.duplicate());
+            if ((int) checksum.getValue() != expectedChecksum) {
+                logger.warning("Write-ahead log replay stopped at a torn record");
+                break;
+            }
+            String cellId = readString(payload);
+            String data = payload.get() == 1 ? readString(payload) : null;
+            write.accept(cellId, data);
+            buffer.position(buffer.position() + length);
+            replayed++;
+        }
+        return replayed;
+    }
+
+    /**
+     * Appends a write to the current segment, moving to a new segment when it is full.
+     *
+     * @return whether a new segment was started.
+     */
+    boolean append(String cellId, String data) {
+
+        byte[] id = cellId.getBytes(StandardCharsets.UTF_8);
+        byte[] value = data == null ? null : data.getBytes(StandardCharsets.UTF_8);
+        int length = 4 + id.length + 1 + (value == null ? 0 : 4 + value.length);
+        boolean rolled = false;
+        if (segment.remaining() < HEADER_SIZE + length) {
+            roll();
+            rolled = true;
+            if (segment.remaining() < HEADER_SIZE + length) {
+                throw new BufferOverflowException();
+            }
+        }
+        int start = segment.position();
+        segment.position(start + HEADER_SIZE);
+        segment.putInt(id.length).put(id);
+        if (value == null) {
+            segment.put((byte) 0);
+        }
+        else {
+            segment.put((byte) 1).putInt(value.length).put(value);
+        }
+        CRC32 checksum = new CRC32();
+        checksum.update(segment.slice(start + HEADER_SIZE, length));
+        // the length is written last, so a record is only replayed once it is complete
+        segment.putInt(start + 4, (int) checksum.getValue());
+        segment.putInt(start, length);
+        return rolled;
+    }
+
+    /**
+     * Forces the current segment to the disk, so its writes also survive a crash of the machine.
+     */
+    void force() {
+        segment.force();
+    }
+
+    /**
+     * Starts a new segment for the next writes.
+     *
+     * @return the sequence of the new segment, the writes of the earlier ones are all appended.
+     */
+    long roll() {
+
+        if (segment != null) {
+            segment.force();
+        }
+        sequence++;
+        try (FileChannel channel = FileChannel.open(segmentPath(sequence),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException("Creating write-ahead log segment " + sequence + " failed", e);
+        }
+        return sequence;
+    }
+
+    /**
+     * Deletes the segments before the given sequence, once a snapshot holds their writes.
+     */
+    void deleteBefore(long fromSequence) {
+
+        for (long segmentSequence : segmentSequences()) {
+            if (segmentSequence < fromSequence) {
+                try {
+                    Files.deleteIfExists(segmentPath(segmentSequence));
+                }
+                catch (IOException e) {
+                    logger.warning("Deleting write-ahead log segment " + segmentSequence + " failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private List<Long> segmentSequences() {
+
+        List<Long> sequences = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.matches("wal-\\d+\\.log"))
+                    .forEach(name -> sequences.add(Long.parseLong(name.substring(4, name.length() - 4))));
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException("Listing write-ahead log segments failed", e);
+        }
+        sequences.sort(null);
+        return sequences;
+    }
+
+    private Path segmentPath(long segmentSequence) {
+        return directory.resolve("wal-" + segmentSequence + ".log");
+    }
+
+    private static String readString(ByteBuffer buffer) {
+
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
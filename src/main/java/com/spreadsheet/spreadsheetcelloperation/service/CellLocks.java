@@ -0,0 +1,114 @@
+package com.spreadsheet.spreadsheetcelloperation.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.Ordered;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.Collection;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Striped locks serializing the writes to the same cells. A write locks the cells it writes and the cells
+ * it may insert, so two writers never insert the same cell, and the writes to a cell update the dependency
+ * graph in the order they are committed. Writes to unrelated cells mostly take different stripes and run
+ * in parallel.
+ * <p>
+ * The stripes are taken in index order, so writers locking overlapping cells can't deadlock, and held until
+ * the writes are applied by the store at the end of the transaction.
+ */
+@Component
+public class CellLocks {
+
+    private final ReentrantLock[] stripes;
+
+    /**
+     * @param stripeCount The number of locks the cells are spread over.
+     */
+    public CellLocks(@Value("${spreadsheet.write.lock-stripes:1024}") int stripeCount) {
+        this.stripes = new ReentrantLock[stripeCount];
+        for (int stripe = 0; stripe < stripeCount; stripe++) {
+            stripes[stripe] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Locks the stripes of the given cells until the current transaction is committed or rolled back.
+     * Outside of a transaction, the caller releases the stripes by closing the returned handle.
+     *
+     * @param cellIds The IDs of the cells written or inserted by the caller.
+     * @return a handle releasing the stripes, which does nothing once the transaction released them.
+     */
+    public Held lock(Collection<String> cellIds) {
+
+        boolean[] locked = new boolean[stripes.length];
+        for (String cellId : cellIds) {
+            locked[stripeOf(cellId)] = true;
+        }
+        int[] indexes = new int[cellIds.size()];
+        int count = 0;
+        for (int stripe = 0; stripe < locked.length; stripe++) {
+            if (locked[stripe]) {
+                stripes[stripe].lock();
+                indexes[count++] = stripe;
+            }
+        }
+        Held held = new Held(indexes, count);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public int getOrder() {
+                    // released right after the store applied the writes, before the caches are refreshed
+                    return Ordered.HIGHEST_PRECEDENCE + 1;
+                }
+
+                @Override
+                public void afterCommit() {
+                    held.release();
+                }
+
+                @Override
+                public void afterCompletion(int status) {
+                    held.release();
+                }
+            });
+        }
+        return held;
+    }
+
+    private int stripeOf(String cellId) {
+        int hash = cellId.hashCode();
+        return Math.floorMod(hash ^ (hash >>> 16), stripes.length);
+    }
+
+    /**
+     * The stripes locked by one write.
+     */
+    public class Held implements AutoCloseable {
+
+        private final int[] indexes;
+        private int count;
+
+        private Held(int[] indexes, int count) {
+            this.indexes = indexes;
+            this.count = count;
+        }
+
+        private void release() {
+            while (count > 0) {
+                stripes[indexes[--count]].unlock();
+            }
+        }
+
+        /**
+         * Releases the stripes unless they are held until the end of the current transaction.
+         */
+        @Override
+        public void close() {
+            if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+                release();
+            }
+        }
+    }
+}
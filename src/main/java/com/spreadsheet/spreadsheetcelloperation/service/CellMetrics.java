@@ -0,0 +1,377 @@
+package com.spreadsheet.spreadsheetcelloperation.service;
+
+import com.spreadsheet.spreadsheetcelloperation.model.Cell;
+import com.spreadsheet.spreadsheetcelloperation.model.CellRange;
+import com.spreadsheet.spreadsheetcelloperation.model.DependencyEdge;
+import com.spreadsheet.spreadsheetcelloperation.model.Formula;
+import com.spreadsheet.spreadsheetcelloperation.model.FormulaNode;
+import com.spreadsheet.spreadsheetcelloperation.repository.CellReader;
+import com.spreadsheet.spreadsheetcelloperation.repository.CellStore;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Metrics of the cell reads, writes and recalculations, exposed through the actuator.
+ * Requests are recorded as observations, which produce a timer and, when a tracing bridge
+ * is on the classpath, a trace span. Every request also records how many times it called
+ * the cell store, counted per thread by the store returned from {@link #instrument(CellStore)}.
+ */
+@Component
+public class CellMetrics {
+
+    public static final String READ = "spreadsheet.cell.read";
+
+    public static final String WRITE = "spreadsheet.cell.write";
+
+    public static final String RECALCULATION = "spreadsheet.recalculation";
+
+    private final MeterRegistry meterRegistry;
+
+    private final ObservationRegistry observationRegistry;
+
+    private final Timer evaluationTimer;
+
+    private final Timer cycleCheckTimer;
+
+    private final DistributionSummary cellsVisited;
+
+    // request name -> store calls per request, walk -> depth of the walk
+    private final Map<String, DistributionSummary> storeRoundTrips = new ConcurrentHashMap<>();
+    private final Map<String, DistributionSummary> walkDepths = new ConcurrentHashMap<>();
+
+    // store calls of the request running on the current thread
+    private final ThreadLocal<int[]> roundTrips = new ThreadLocal<>();
+
+    // the started request a part of which runs on the current thread
+    private final ThreadLocal<StartedRequest> startedRequest = new ThreadLocal<>();
+
+    public CellMetrics(MeterRegistry meterRegistry, ObservationRegistry observationRegistry) {
+        this.meterRegistry = meterRegistry;
+        this.observationRegistry = observationRegistry;
+        this.evaluationTimer = Timer.builder("spreadsheet.formula.evaluation")
+                .description("Time to evaluate the tree of one formula from the values of its precedents")
+                .register(meterRegistry);
+        this.cycleCheckTimer = Timer.builder("spreadsheet.graph.cycle.check")
+                .description("Time to check and apply the new precedents of the written cells in the dependency graph")
+                .register(meterRegistry);
+        this.cellsVisited = DistributionSummary.builder("spreadsheet.read.cells.visited")
+                .description("Cells loaded or evaluated to answer one read")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Runs a request as an observation, recording its duration and its calls to the cell store.
+     *
+     * @param name The name of the observation, one of READ, WRITE or RECALCULATION.
+     */
+    public <T> T observe(String name, Supplier<T> request) {
+
+        StartedRequest started = startedRequest.get();
+        if (started != null && started.name.equals(name)) {
+            return request.get();
+        }
+        int[] outerRoundTrips = roundTrips.get();
+        int[] requestRoundTrips = new int[1];
+        roundTrips.set(requestRoundTrips);
+        try {
+            return Observation.createNotStarted(name, observationRegistry).observe(request);
+        }
+        finally {
+            roundTrips.set(outerRoundTrips);
+            recordRoundTrips(name, requestRoundTrips[0]);
+        }
+    }
+
+    /**
+     * Runs a request returning a lazily evaluated stream as an observation, which lasts until the stream is closed,
+     * so that it includes the elements evaluated while the stream is consumed, on any thread.
+     *
+     * @param name The name of the observation, one of READ, WRITE or RECALCULATION.
+     */
+    public <T> Stream<T> observeStream(String name, Supplier<Stream<T>> request) {
+
+        Observation observation = Observation.start(name, observationRegistry);
+        int[] requestRoundTrips = new int[1];
+        Stream<T> stream;
+        try {
+            stream = inRequest(observation, requestRoundTrips, request);
+        }
+        catch (RuntimeException exception) {
+            observation.error(exception);
+            observation.stop();
+            recordRoundTrips(name, requestRoundTrips[0]);
+            throw exception;
+        }
+        Spliterator<T> elements = stream.spliterator();
+        Spliterator<T> observedElements = new Spliterators.AbstractSpliterator<>(elements.estimateSize(), elements.characteristics()) {
+            @Override
+            public boolean tryAdvance(Consumer<? super T> action) {
+                return inRequest(observation, requestRoundTrips, () -> elements.tryAdvance(action));
+            }
+        };
+        return StreamSupport.stream(observedElements, false).onClose(() -> {
+            try {
+                stream.close();
+            }
+            finally {
+                observation.stop();
+                recordRoundTrips(name, requestRoundTrips[0]);
+            }
+        });
+    }
+
+    /**
+     * Starts a request that doesn't run on one thread, such as a non-blocking read, observed until it is stopped.
+     * A request of the same name run by one of its parts joins it rather than being observed on its own.
+     *
+     * @param name The name of the observation, one of READ, WRITE or RECALCULATION.
+     */
+    public StartedRequest start(String name) {
+        return new StartedRequest(name, Observation.start(name, observationRegistry));
+    }
+
+    /**
+     * Runs part of a request in the scope of its observation, counting its store calls on the current thread.
+     */
+    private <T> T inRequest(Observation observation, int[] requestRoundTrips, Supplier<T> part) {
+
+        int[] outerRoundTrips = roundTrips.get();
+        roundTrips.set(requestRoundTrips);
+        try (Observation.Scope scope = observation.openScope()) {
+            return part.get();
+        }
+        catch (RuntimeException exception) {
+            observation.error(exception);
+            throw exception;
+        }
+        finally {
+            roundTrips.set(outerRoundTrips);
+        }
+    }
+
+    private void recordRoundTrips(String name, int count) {
+        storeRoundTrips.computeIfAbsent(name, key -> DistributionSummary.builder("spreadsheet.store.round.trips")
+                        .description("Calls to the cell store per request")
+                        .tag("request", key)
+                        .register(meterRegistry))
+                .record(count);
+    }
+
+    public void observe(String name, Runnable request) {
+        observe(name, () -> {
+            request.run();
+            return null;
+        });
+    }
+
+    public <T> T timeCycleCheck(Supplier<T> check) {
+        return cycleCheckTimer.record(check);
+    }
+
+    /**
+     * Evaluates a formula and records the time it took, without allocating.
+     */
+    public double timeEvaluation(Formula formula, FormulaNode.Operands operands) {
+
+        long start = System.nanoTime();
+        try {
+            return formula.evaluate(operands);
+        }
+        finally {
+            evaluationTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * @param walk  What the graph was walked for, evaluation or recalculation.
+     * @param depth The longest chain of cells waiting on their precedents, or the number of recalculated levels.
+     */
+    public void recordWalkDepth(String walk, int depth) {
+        walkDepths.computeIfAbsent(walk, key -> DistributionSummary.builder("spreadsheet.graph.walk.depth")
+                        .description("Depth of the dependency graph walked by one evaluation or recalculation")
+                        .tag("walk", key)
+                        .register(meterRegistry))
+                .record(depth);
+    }
+
+    public void recordCellsVisited(int count) {
+        cellsVisited.record(count);
+    }
+
+    /**
+     * @return a store delegating to the given one that counts its calls for the running request.
+     */
+    public CellStore instrument(CellStore cellStore) {
+        return new InstrumentedCellStore(cellStore);
+    }
+
+    private void countRoundTrip() {
+        int[] requestRoundTrips = roundTrips.get();
+        if (requestRoundTrips != null) {
+            requestRoundTrips[0]++;
+        }
+    }
+
+    /**
+     * A request observed from {@link #start(String)} until {@link #stop()}, counting its store calls on any thread.
+     */
+    public final class StartedRequest {
+
+        private final String name;
+
+        private final Observation observation;
+
+        private final int[] requestRoundTrips = new int[1];
+
+        private final AtomicBoolean stopped = new AtomicBoolean();
+
+        private StartedRequest(String name, Observation observation) {
+            this.name = name;
+            this.observation = observation;
+        }
+
+        /**
+         * Runs part of the request on the current thread, counting the calls to the instrumented stores.
+         */
+        public <T> T run(Supplier<T> part) {
+
+            StartedRequest outerRequest = startedRequest.get();
+            startedRequest.set(this);
+            try {
+                return inRequest(observation, requestRoundTrips, part);
+            }
+            finally {
+                startedRequest.set(outerRequest);
+            }
+        }
+
+        /**
+         * Counts a call to a store that is not instrumented, such as a non-blocking query.
+         */
+        public void countRoundTrip() {
+            requestRoundTrips[0]++;
+        }
+
+        public void error(Throwable error) {
+            observation.error(error);
+        }
+
+        /**
+         * Records the request, once however often it is called.
+         */
+        public void stop() {
+            if (stopped.compareAndSet(false, true)) {
+                observation.stop();
+                recordRoundTrips(name, requestRoundTrips[0]);
+            }
+        }
+    }
+
+    private class InstrumentedCellReader implements CellReader {
+
+        private final CellReader reader;
+
+        InstrumentedCellReader(CellReader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public Optional<Cell> findById(String cellId) {
+            countRoundTrip();
+            return reader.findById(cellId);
+        }
+
+        @Override
+        public List<Cell> findAllById(Iterable<String> cellIds) {
+            countRoundTrip();
+            return reader.findAllById(cellIds);
+        }
+
+        @Override
+        public List<Cell> findAllInRange(CellRange range) {
+            countRoundTrip();
+            return reader.findAllInRange(range);
+        }
+
+        @Override
+        public List<DependencyEdge> findAllDependencyEdges() {
+            countRoundTrip();
+            return reader.findAllDependencyEdges();
+        }
+
+        @Override
+        public Optional<CellRange> findUsedRange(String sheet) {
+            countRoundTrip();
+            return reader.findUsedRange(sheet);
+        }
+    }
+
+    private class InstrumentedCellStore extends InstrumentedCellReader implements CellStore {
+
+        private final CellStore delegate;
+
+        InstrumentedCellStore(CellStore delegate) {
+            super(delegate);
+            this.delegate = delegate;
+        }
+
+        @Override
+        public Cell save(Cell cell) {
+            countRoundTrip();
+            return delegate.save(cell);
+        }
+
+        @Override
+        public List<Cell> saveAll(Iterable<Cell> cells) {
+            countRoundTrip();
+            return delegate.saveAll(cells);
+        }
+
+        @Override
+        public void awaitWriteCapacity() {
+            delegate.awaitWriteCapacity();
+        }
+
+        @Override
+        public void invalidateComputedValues(Collection<String> cellIds) {
+            countRoundTrip();
+            delegate.invalidateComputedValues(cellIds);
+        }
+
+        @Override
+        public Map<String, Long> findValueVersions(Collection<String> cellIds) {
+            countRoundTrip();
+            return delegate.findValueVersions(cellIds);
+        }
+
+        @Override
+        public void saveComputedValues(Map<String, Double> values, Map<String, Long> valueVersions) {
+            countRoundTrip();
+            delegate.saveComputedValues(values, valueVersions);
+        }
+
+        @Override
+        public CellReader snapshot() {
+            CellReader snapshot = delegate.snapshot();
+            return snapshot == delegate ? this : new InstrumentedCellReader(snapshot);
+        }
+    }
+}
@@ -1,10 +1,23 @@
 package com.spreadsheet.spreadsheetcelloperation.service;
 
-import com.spreadsheet.spreadsheetcelloperation.model.Cell;
+import com.spreadsheet.spreadsheetcelloperation.model.CellValue;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Stream;
 
 public interface CellOperation {
 
     void setCellValue(String cellId, Object value);
+    void setCellValues(Map<String, Object> values);
+    void importCellValues(Map<String, Object> values);
     String getCellValue(String cellId);
+    String getCellValue(String cellId, boolean consistent);
+    String getCellValueWithoutStoring(String cellId, boolean consistent);
+    Optional<String> getCachedCellValue(String cellId);
+    Stream<CellValue> getCellValues(List<String> cellIds, List<String> ranges);
+    SseEmitter subscribe(List<String> cellIds, List<String> ranges);
 
 }
@@ -1,32 +1,88 @@
 package com.spreadsheet.spreadsheetcelloperation.service;
 
-import com.fathzer.soft.javaluator.DoubleEvaluator;
 import com.spreadsheet.spreadsheetcelloperation.exception.CircularDependencyException;
 import com.spreadsheet.spreadsheetcelloperation.exception.ExpressionEvaluationException;
 import com.spreadsheet.spreadsheetcelloperation.exception.InvalidCellIdException;
 import com.spreadsheet.spreadsheetcelloperation.exception.SelfReferenceException;
 import com.spreadsheet.spreadsheetcelloperation.model.Cell;
-import com.spreadsheet.spreadsheetcelloperation.repository.CellRepository;
-import com.spreadsheet.spreadsheetcelloperation.utils.DependencyUtil;
+import com.spreadsheet.spreadsheetcelloperation.model.CellAddress;
+import com.spreadsheet.spreadsheetcelloperation.model.CellKind;
+import com.spreadsheet.spreadsheetcelloperation.model.CellRange;
+import com.spreadsheet.spreadsheetcelloperation.model.CellValue;
+import com.spreadsheet.spreadsheetcelloperation.model.DependencyEdge;
+import com.spreadsheet.spreadsheetcelloperation.model.Formula;
+import com.spreadsheet.spreadsheetcelloperation.model.FormulaNode;
+import com.spreadsheet.spreadsheetcelloperation.repository.CellReader;
+import com.spreadsheet.spreadsheetcelloperation.repository.CellStore;
+import com.spreadsheet.spreadsheetcelloperation.utils.FormulaCompiler;
 import jakarta.transaction.Transactional;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @Service
 public class CellOperationService implements CellOperation {
 
-    private final CellRepository cellRepository;
+    private final CellStore cellStore;
+
+    private final FormulaCache formulaCache;
+
+    private final ValueCache valueCache;
+
+    private final DependencyGraph dependencyGraph;
+
+    private final RecalculationScheduler recalculationScheduler;
+
+    private final CellMetrics cellMetrics;
+
+    private final CellLocks cellLocks;
+
+    private final CellSubscriptions cellSubscriptions;
+
+    // one instance, so the scheduler merges the queued recalculations of this service
+    private final Consumer<Collection<String>> recalculation = this::recalculate;
 
     private static final Logger logger = Logger.getLogger(CellOperationService.class.getName());
 
-    private static final String CELL_ID_PATTERN = "^[A-Z]\\d+$";
+    private static final int MAX_CELLS_PER_READ = 100_000;
+
+    private static final int LOAD_CHUNK_SIZE = 1_000;
 
-    public CellOperationService(CellRepository cellRepository){
-        this.cellRepository = cellRepository;
+    // marks the cells looked up for a request that don't exist
+    private static final Cell MISSING_CELL = new Cell();
+
+    public CellOperationService(CellStore cellStore, FormulaCache formulaCache, ValueCache valueCache,
+                                DependencyGraph dependencyGraph, RecalculationScheduler recalculationScheduler,
+                                CellMetrics cellMetrics, CellLocks cellLocks, CellSubscriptions cellSubscriptions){
+        this.cellStore = cellMetrics.instrument(cellStore);
+        this.formulaCache = formulaCache;
+        this.valueCache = valueCache;
+        this.dependencyGraph = dependencyGraph;
+        this.recalculationScheduler = recalculationScheduler;
+        this.cellMetrics = cellMetrics;
+        this.cellLocks = cellLocks;
+        this.cellSubscriptions = cellSubscriptions;
+    }
+
+    /**
+     * Loads the persisted dependency edges into the in-memory graph once the application is started.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void loadDependencyGraph() {
+
+        List<DependencyEdge> edges = cellStore.findAllDependencyEdges();
+        dependencyGraph.load(edges);
+        logger.info("Dependency graph loaded, edges: " + edges.size());
     }
 
     /**
@@ -37,152 +93,1018 @@ public class CellOperationService implements CellOperation {
      * @param cellId The ID of the cell.
      * @param value  The new value of the cell.
      * @throws InvalidCellIdException if the cell ID is invalid.
+     * @throws CircularDependencyException if the new value would make the cell depend on itself.
      */
     @Override
     @Transactional
     public void setCellValue(String cellId, Object value) {
+        cellMetrics.observe(CellMetrics.WRITE, () -> writeCell(cellId, value));
+    }
+
+    private void writeCell(String cellId, Object value) {
 
         String data = value.toString();
-        List<Cell> dependencyList = new ArrayList<>();
-        if(!cellId.matches(CELL_ID_PATTERN)) {
+        if(!FormulaCompiler.isCellId(cellId)) {
             throw new InvalidCellIdException("Invalid Cell Id provided");
         }
+        // the written cell and the referenced cells, which are inserted if they don't exist
+        List<String> lockedCellIds = new ArrayList<>();
+        lockedCellIds.add(cellId);
+        if(data.startsWith("=")){
+            lockedCellIds.addAll(compileFormula(cellId, data.substring(1)).getReferences());
+        }
+        cellStore.awaitWriteCapacity();
+        try (CellLocks.Held held = cellLocks.lock(lockedCellIds)) {
+            writeLockedCell(cellId, data);
+        }
+    }
+
+    private void writeLockedCell(String cellId, String data) {
+
+        List<Cell> dependencyList = new ArrayList<>();
+        List<String> precedentIds = List.of();
         if(data.startsWith("=")){
             dependencyList = createDependencyListFromExpression(cellId, data.substring(1));
+            precedentIds = formulaCache.getOrCompile(cellId, data.substring(1)).getPrecedents();
+        }
+        else{
+            formulaCache.invalidate(cellId);
         }
 
-        Cell cell = cellRepository.findById(cellId)
+        List<String> newPrecedentIds = precedentIds;
+        Set<String> previousPrecedentIds = cellMetrics.timeCycleCheck(() -> dependencyGraph.setPrecedents(cellId, newPrecedentIds));
+        afterRollback(() -> dependencyGraph.setPrecedents(cellId, previousPrecedentIds));
+
+        Cell cell = cellStore.findById(cellId)
                 .orElseGet(() -> {
-                    Cell newCell = new Cell(cellId.toUpperCase(), value.toString());
-                    cellRepository.save(newCell);
-                    logger.info("New cell saved to database, Cell Id: "+ cellId);
+                    Cell newCell = new Cell(cellId, data);
+                    cellStore.save(newCell);
+                    logger.fine("New cell saved to database, Cell Id: "+ cellId);
                     return newCell;
                 });
 
         cell.setData(data);
         cell.setDependentCells(dependencyList);
-        cellRepository.save(cell);
+        cell.setRangeReferences(rangeIdsOf(precedentIds));
+        cellStore.save(cell);
+        boolean watched = isWatched(List.of(cellId), invalidateDependents(List.of(cellId)));
+
+        afterCommit(() -> {
+            valueCache.invalidate(cellId);
+            recalculationScheduler.submit(List.of(cellId), watched, recalculation);
+        });
+    }
+
+    /**
+     * Sets the values of many cells in a single transaction.
+     * All cells written or referenced by the batch are loaded with one query, the missing ones are
+     * inserted in JDBC batches, and the affected formulas are recalculated once after the commit.
+     *
+     * @param values The new values by cell ID, applied in iteration order.
+     * @throws InvalidCellIdException if a cell ID is invalid, or the cells belong to different workbooks.
+     * @throws SelfReferenceException if a cell refers to itself.
+     * @throws CircularDependencyException if the batch would make a cell depend on itself.
+     */
+    @Override
+    @Transactional
+    public void setCellValues(Map<String, Object> values) {
+        cellMetrics.observe(CellMetrics.WRITE, () -> writeCells(values, true));
     }
 
     /**
-     * Creates a list of dependent cells for a given cell based on the expression.
+     * Sets the values of many cells in a single transaction like {@link #setCellValues(Map)}, without
+     * recalculating the affected formulas. Their cached values are invalidated after the commit and they are
+     * evaluated by the next read, so importing a sheet in many batches doesn't evaluate a formula once per batch.
+     *
+     * @param values The new values by cell ID, applied in iteration order.
+     * @throws InvalidCellIdException if a cell ID is invalid, or the cells belong to different workbooks.
+     * @throws SelfReferenceException if a cell refers to itself.
+     * @throws CircularDependencyException if the batch would make a cell depend on itself.
+     */
+    @Override
+    @Transactional
+    public void importCellValues(Map<String, Object> values) {
+        cellMetrics.observe(CellMetrics.WRITE, () -> writeCells(values, false));
+    }
+
+    private void writeCells(Map<String, Object> values, boolean recalculate) {
+
+        Map<String, String> dataByCellId = new LinkedHashMap<>();
+        Map<String, List<String>> precedentIdsByCellId = new LinkedHashMap<>();
+        Set<String> involvedCellIds = new HashSet<>();
+        values.forEach((cellId, value) -> {
+            if(!FormulaCompiler.isCellId(cellId)) {
+                throw new InvalidCellIdException("Invalid Cell Id provided: " + cellId);
+            }
+            if(!dataByCellId.isEmpty() && !sameWorkbook(cellId, dataByCellId.keySet().iterator().next())) {
+                throw new InvalidCellIdException("All cells of a batch must belong to one workbook: " + cellId);
+            }
+            String data = value.toString();
+            List<String> precedentIds = List.of();
+            if(data.startsWith("=")){
+                precedentIds = compileFormula(cellId, data.substring(1)).getPrecedents();
+            }
+            else{
+                formulaCache.invalidate(cellId);
+            }
+            dataByCellId.put(cellId, data);
+            precedentIdsByCellId.put(cellId, precedentIds);
+            involvedCellIds.add(cellId);
+            precedentIds.stream().filter(id -> !CellRange.isRange(id)).forEach(involvedCellIds::add);
+        });
+
+        cellStore.awaitWriteCapacity();
+        try (CellLocks.Held held = cellLocks.lock(involvedCellIds)) {
+            writeLockedCells(dataByCellId, precedentIdsByCellId, involvedCellIds, recalculate);
+        }
+    }
+
+    private void writeLockedCells(Map<String, String> dataByCellId, Map<String, List<String>> precedentIdsByCellId,
+                                  Set<String> involvedCellIds, boolean recalculate) {
+
+        Map<String, Collection<String>> previousPrecedentIds =
+                cellMetrics.timeCycleCheck(() -> dependencyGraph.setPrecedents(precedentIdsByCellId));
+        afterRollback(() -> dependencyGraph.setPrecedents(previousPrecedentIds));
+
+        Map<String, Cell> cells = new HashMap<>();
+        cellStore.findAllById(involvedCellIds).forEach(cell -> cells.put(cell.getCellId(), cell));
+        List<Cell> changedCells = new ArrayList<>();
+        for (String cellId : involvedCellIds) {
+            if (!cells.containsKey(cellId)) {
+                Cell newCell = new Cell(cellId);
+                cells.put(cellId, newCell);
+                changedCells.add(newCell);
+            }
+        }
+        int newCellCount = changedCells.size();
+        dataByCellId.forEach((cellId, data) -> {
+            Cell cell = cells.get(cellId);
+            cell.setData(data);
+            List<String> precedentIds = precedentIdsByCellId.get(cellId);
+            cell.setDependentCells(new ArrayList<>(precedentIds.stream().filter(cells::containsKey).map(cells::get).toList()));
+            cell.setRangeReferences(rangeIdsOf(precedentIds));
+            if (!cell.isNew()) {
+                changedCells.add(cell);
+            }
+        });
+        cellStore.saveAll(changedCells);
+        logger.fine("Batch of " + dataByCellId.size() + " cells saved to database, new cells: " + newCellCount);
+        boolean watched = isWatched(dataByCellId.keySet(), invalidateDependents(dataByCellId.keySet()));
+
+        afterCommit(() -> {
+            dataByCellId.keySet().forEach(valueCache::invalidate);
+            if (recalculate) {
+                recalculationScheduler.submit(dataByCellId.keySet(), watched, recalculation);
+            }
+        });
+    }
+
+    /**
+     * Marks the persisted computed values of the formulas depending on the written cells stale, in the
+     * transaction of the write, so that no read after the commit is served a value computed before it.
+     * The written cells themselves are marked stale by setting their data.
+     *
+     * @return the IDs of the dependents.
+     */
+    private List<String> invalidateDependents(Collection<String> cellIds) {
+
+        List<String> dependentIds = dependencyGraph.getAffectedCellsInTopologicalOrder(cellIds);
+        dependentIds.removeIf(cellIds::contains);
+        if (!dependentIds.isEmpty()) {
+            cellStore.invalidateComputedValues(dependentIds);
+        }
+        return dependentIds;
+    }
+
+    /**
+     * @return true if a subscriber watches one of the written cells or of their dependents, so that their
+     * recalculation is queued ahead of the others.
+     */
+    private boolean isWatched(Collection<String> cellIds, List<String> dependentIds) {
+        return cellSubscriptions.hasSubscriptions() && (cellSubscriptions.isWatched(cellIds) || cellSubscriptions.isWatched(dependentIds));
+    }
+
+    /**
+     * Runs the given action once the current write is committed, so that the caches never
+     * reflect data that is rolled back, and readers cannot cache a value computed from
+     * the data being replaced.
+     */
+    private void afterCommit(Runnable action) {
+
+        if(!TransactionSynchronizationManager.isSynchronizationActive()){
+            action.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                action.run();
+            }
+        });
+    }
+
+    /**
+     * Runs the given action if the current write is rolled back, to undo the in-memory changes
+     * that had to be applied before the commit.
+     */
+    private void afterRollback(Runnable action) {
+
+        if(!TransactionSynchronizationManager.isSynchronizationActive()){
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCompletion(int status) {
+                if(status == STATUS_ROLLED_BACK){
+                    action.run();
+                }
+            }
+        });
+    }
+
+    /**
+     * Recomputes the written cells and every formula depending on them level by level in topological order,
+     * so each formula is evaluated once, from the already recomputed values of its precedents.
+     * The cells of a large level are evaluated in parallel by the recalculation scheduler, and the
+     * computed values are stored unless a cell was written again meanwhile.
+     *
+     * @param cellIds The IDs of the written cells.
+     */
+    void recalculate(Collection<String> cellIds) {
+        cellMetrics.observe(CellMetrics.RECALCULATION, () -> recalculateLevels(cellIds));
+    }
+
+    private void recalculateLevels(Collection<String> cellIds) {
+
+        List<List<String>> levels = dependencyGraph.getAffectedCellsInTopologicalLevels(cellIds);
+        cellMetrics.recordWalkDepth("recalculation", levels.size());
+        // formulas only reference their own workbook, so the affected cells belong to the workbook of the written cells
+        Snapshot snapshot = takeSnapshot(CellAddress.workbookOf(cellIds.iterator().next()));
+        Map<String, Cell> loadedCells = new ConcurrentHashMap<>();
+        Set<String> unsavedCellIds = loadAffectedCells(levels, loadedCells, snapshot);
+
+        // the ranges are loaded up front as well, so that evaluating a level doesn't wait on the store
+        Map<String, Double> evaluatedValues = new ConcurrentHashMap<>();
+        List<CellRange> ranges = new ArrayList<>();
+        for (List<String> level : levels) {
+            for (String cellId : level) {
+                Cell cell = loadedCell(cellId, loadedCells);
+                if (isFormula(cell)) {
+                    try{
+                        ranges.addAll(formulaCache.getOrCompile(cellId, cell.getData().substring(1)).getRanges());
+                    }
+                    catch(ExpressionEvaluationException e){
+                        // reported when the cell is evaluated
+                    }
+                }
+            }
+        }
+        loadRanges(ranges, loadedCells, snapshot);
+
+        // cell ID -> error, only kept while some client is subscribed to the recalculated values
+        Map<String, String> errors = cellSubscriptions.hasSubscriptions() ? new ConcurrentHashMap<>() : null;
+        recalculationScheduler.run(levels, affectedCellId -> {
+            Cell cell = loadedCell(affectedCellId, loadedCells);
+            if (cell == null) {
+                return;
+            }
+            try{
+                evaluateCell(cell, evaluatedValues, loadedCells, snapshot);
+            }
+            catch(ExpressionEvaluationException | CircularDependencyException | NoSuchElementException e){
+                logger.fine("Recalculation failed for Cell Id: " + affectedCellId + ", " + e.getMessage());
+                if (errors != null) {
+                    errors.put(affectedCellId, e.getMessage());
+                }
+            }
+        });
+        if (unsavedCellIds != null) {
+            saveComputedValues(levels, unsavedCellIds, evaluatedValues, loadedCells);
+        }
+        if (errors != null) {
+            List<CellValue> recalculatedValues = new ArrayList<>();
+            for (List<String> level : levels) {
+                for (String cellId : level) {
+                    Cell cell = loadedCell(cellId, loadedCells);
+                    if (cell == null) {
+                        continue;
+                    }
+                    Double evaluatedValue = evaluatedValues.get(cellId);
+                    recalculatedValues.add(!isFormula(cell) ? CellValue.of(cellId, cell.getData())
+                            : evaluatedValue != null ? CellValue.of(cellId, evaluatedValue.toString())
+                            : CellValue.failed(cellId, errors.get(cellId)));
+                }
+            }
+            cellSubscriptions.publish(recalculatedValues);
+        }
+    }
+
+    /**
+     * Loads the affected cells and the cells they reference up front, in chunks. The value versions of the affected
+     * cells are read before: a cell marked stale before it was loaded may be computed from precedents loaded before
+     * the write, so its value is not stored.
+     *
+     * @return the affected cells whose value is not stored, or null if the store doesn't persist computed values.
+     */
+    private Set<String> loadAffectedCells(List<List<String>> levels, Map<String, Cell> loadedCells, Snapshot snapshot) {
+
+        List<String> affectedCellIds = levels.stream().flatMap(List::stream).toList();
+        Map<String, Long> valueVersions = cellStore.findValueVersions(affectedCellIds);
+        Set<String> loadedCellIds = new HashSet<>(affectedCellIds);
+        for (List<String> level : levels) {
+            level.forEach(cellId -> loadedCellIds.addAll(dependencyGraph.getPrecedents(cellId)));
+        }
+        loadedCellIds.removeIf(CellRange::isRange);
+        loadChunks(new ArrayList<>(loadedCellIds), loadedCells, snapshot);
+        if (valueVersions.isEmpty()) {
+            return null;
+        }
+        Set<String> unsavedCellIds = new HashSet<>();
+        for (String cellId : affectedCellIds) {
+            Long valueVersion = valueVersions.get(cellId);
+            Cell cell = loadedCell(cellId, loadedCells);
+            if (valueVersion == null || cell == null || cell.getValueVersion() != valueVersion) {
+                unsavedCellIds.add(cellId);
+            }
+        }
+        return unsavedCellIds;
+    }
+
+    /**
+     * Stores the evaluated values of the affected formulas with the value versions they were loaded with,
+     * {@value #LOAD_CHUNK_SIZE} cells at a time.
+     */
+    private void saveComputedValues(List<List<String>> levels, Set<String> unsavedCellIds, Map<String, Double> evaluatedValues,
+                                    Map<String, Cell> loadedCells) {
+
+        Map<String, Double> computedValues = new HashMap<>();
+        Map<String, Long> valueVersions = new HashMap<>();
+        for (List<String> level : levels) {
+            for (String cellId : level) {
+                Double evaluatedValue = evaluatedValues.get(cellId);
+                Cell cell = loadedCell(cellId, loadedCells);
+                if (evaluatedValue == null || !isFormula(cell) || unsavedCellIds.contains(cellId)) {
+                    continue;
+                }
+                computedValues.put(cellId, evaluatedValue);
+                valueVersions.put(cellId, cell.getValueVersion());
+                if (computedValues.size() == LOAD_CHUNK_SIZE) {
+                    cellStore.saveComputedValues(computedValues, valueVersions);
+                    computedValues = new HashMap<>();
+                    valueVersions = new HashMap<>();
+                }
+            }
+        }
+        if (!computedValues.isEmpty()) {
+            cellStore.saveComputedValues(computedValues, valueVersions);
+        }
+    }
+
+    /**
+     * Compiles the expression of a given cell and
+     * creates a list of dependent cells for the cell based on the compiled expression.
+     * The referenced cells are looked up with a single findAllById and the missing ones inserted with one saveAll.
      *
      * @param cellId The ID of the cell for which dependencies are being created.
      * @param data   The expression data containing cell references.
      * @return A list of cells that the given cell depends on.
      * @throws SelfReferenceException for cells referring to the same cell.
      * @throws InvalidCellIdException for invalid cellId
+     * @throws ExpressionEvaluationException if the expression cannot be compiled.
      */
     List<Cell> createDependencyListFromExpression(String cellId, String data) {
 
-        if(!cellId.matches(CELL_ID_PATTERN)) {
+        if(!FormulaCompiler.isCellId(cellId)) {
             throw new InvalidCellIdException("Invalid Cell Id provided");
         }
+        List<String> references = compileFormula(cellId, data).getReferences();
+        if (references.isEmpty()) {
+            return new ArrayList<>();
+        }
+        Map<String, Cell> referencedCells = new HashMap<>();
+        cellStore.findAllById(references).forEach(cell -> referencedCells.put(cell.getCellId(), cell));
         List<Cell> dependencyList = new ArrayList<>();
-        String[] tokens = data.split("(?=[+\\-*/()])|(?<=[+\\-*/()])");
-        Pattern cellIdPattern = Pattern.compile(CELL_ID_PATTERN);
-        for (String token : tokens) {
-            Matcher cellIdMatcher = cellIdPattern.matcher(token);
-            if (cellIdMatcher.matches()) {
-                if(cellId.equals(token.toUpperCase())){
-                    throw new SelfReferenceException("Reference Error : Referring to Same Cell Id");
-                }
-                Cell cell = cellRepository.findById(token.toUpperCase()).orElseGet(
-                        () -> {
-                            Cell newCell = new Cell(token);
-                            return cellRepository.save(newCell);
-                        }
-                );
-                dependencyList.add(cell);
-            }
+        List<Cell> newCells = new ArrayList<>();
+        for (String reference : references) {
+            Cell cell = referencedCells.computeIfAbsent(reference, id -> {
+                Cell newCell = new Cell(id);
+                newCells.add(newCell);
+                return newCell;
+            });
+            dependencyList.add(cell);
+        }
+        if (!newCells.isEmpty()) {
+            cellStore.saveAll(newCells);
         }
         return dependencyList;
     }
 
+    /**
+     * Compiles the expression of a cell and checks that it doesn't reference the cell itself.
+     *
+     * @throws SelfReferenceException for cells referring to the same cell, directly or through a range.
+     * @throws ExpressionEvaluationException if the expression cannot be compiled.
+     */
+    private Formula compileFormula(String cellId, String data) {
+
+        Formula formula = formulaCache.getOrCompile(cellId, data);
+        if(formula.getReferences().contains(cellId) || formula.getRanges().stream().anyMatch(range -> range.contains(cellId))){
+            throw new SelfReferenceException("Reference Error : Referring to Same Cell Id");
+        }
+        return formula;
+    }
+
+    private static Set<String> rangeIdsOf(List<String> precedentIds) {
+        return precedentIds.stream().filter(CellRange::isRange).collect(Collectors.toCollection(LinkedHashSet::new));
+    }
+
+    /**
+     * Reads the value of a cell. A formula whose value is neither cached nor persisted is evaluated, and its value
+     * is then stored with the value version it was read with, so this cold read runs a write transaction on the
+     * row of the cell and the next reads, from any instance, are a single lookup.
+     */
     @Override
     public String getCellValue(String cellId) {
+        return cellMetrics.observe(CellMetrics.READ, () -> readCellValue(cellId, true));
+    }
+
+    /**
+     * Reads a cell like {@link #getCellValue(String)}. A consistent read first waits for the queued background
+     * recalculations of the cell and of its precedents, so it returns the value they compute and store rather
+     * than evaluating the stale formulas itself.
+     *
+     * @param consistent Whether to wait for the pending recalculations, for at most
+     *                   spreadsheet.recalculation.consistent-read-timeout.
+     */
+    @Override
+    public String getCellValue(String cellId, boolean consistent) {
+        return cellMetrics.observe(CellMetrics.READ, () -> readCellValue(cellId, consistent, true));
+    }
+
+    /**
+     * Reads a cell like {@link #getCellValue(String, boolean)} without ever writing: the value of a cold formula is
+     * cached but not stored, and is persisted by the next recalculation of the cell instead. For the read-only
+     * callers, such as the reactive stack.
+     */
+    @Override
+    public String getCellValueWithoutStoring(String cellId, boolean consistent) {
+        return cellMetrics.observe(CellMetrics.READ, () -> readCellValue(cellId, consistent, false));
+    }
+
+    private String readCellValue(String cellId, boolean consistent, boolean storeComputedValue) {
+
+        if (consistent && FormulaCompiler.isCellId(cellId)) {
+            awaitRecalculation(cellId);
+        }
+        return readCellValue(cellId, storeComputedValue);
+    }
+
+    /**
+     * Walks the cell and its precedents, through ranges, and waits for those with an unfinished recalculation.
+     * A read that times out still evaluates the stale formulas from the committed cells.
+     */
+    private void awaitRecalculation(String cellId) {
 
-        if(!cellId.matches(CELL_ID_PATTERN)) {
+        Set<String> unfinishedCellIds = recalculationScheduler.getUnfinishedCellIds();
+        if (unfinishedCellIds.isEmpty()) {
+            return;
+        }
+        List<String> awaitedCellIds = new ArrayList<>();
+        Set<String> visited = new HashSet<>();
+        Deque<String> pending = new ArrayDeque<>(List.of(cellId));
+        while (!pending.isEmpty()) {
+            String current = pending.pop();
+            if (visited.add(current)) {
+                if (unfinishedCellIds.contains(current)) {
+                    awaitedCellIds.add(current);
+                }
+                dependencyGraph.getPrecedents(current).forEach(pending::push);
+                // the graph only holds the cells of a range that are formulas or referenced, not the written values
+                if (CellRange.isRange(current)) {
+                    CellRange range = CellRange.parse(current);
+                    unfinishedCellIds.stream().filter(range::contains).forEach(pending::push);
+                }
+            }
+        }
+        if (!awaitedCellIds.isEmpty() && !recalculationScheduler.awaitRecalculation(awaitedCellIds)) {
+            logger.warning("Consistent read of Cell Id: " + cellId + " timed out waiting for the recalculation of "
+                    + awaitedCellIds.size() + " written cells");
+        }
+    }
+
+    /**
+     * Reads the value of a cell from the value cache only, without touching the store, for the callers that must
+     * not block. The value is the one {@link #getCellValue(String)} would return for a cached formula. The lookup
+     * is not observed as a read, the caller reading the cell anyway on a miss.
+     *
+     * @return the cached value, or empty if the cell is not a formula with a value cached since the last write.
+     * @throws InvalidCellIdException if the cell ID is not valid.
+     * @throws CircularDependencyException if the cell is on a cycle.
+     */
+    @Override
+    public Optional<String> getCachedCellValue(String cellId) {
+
+        if(!FormulaCompiler.isCellId(cellId)) {
             throw new InvalidCellIdException("Invalid Cell Id provided");
         }
-        Cell cell = cellRepository.findById(cellId)
-                .orElseThrow(() -> new NoSuchElementException("Invalid Cell Id : Cell doesn't exist"));
-        if(isCircularDependent(cell)){
+        if(dependencyGraph.isOnCycle(cellId)){
             throw new CircularDependencyException("Reference Error : Circular Dependency Found");
         }
-        String result;
-        if(cell.getData().startsWith("=")){
-            result = evaluateExpression(cell.getData().substring(1));
-            result = calculateExpressionValue(result);
+        Double cachedValue = valueCache.get(cellId, valueCache.getGeneration(CellAddress.workbookOf(cellId)));
+        return Optional.ofNullable(cachedValue).map(Object::toString);
+    }
+
+    private String readCellValue(String cellId, boolean storeComputedValue) {
+
+        if(!FormulaCompiler.isCellId(cellId)) {
+            throw new InvalidCellIdException("Invalid Cell Id provided");
+        }
+        // Cycles are rejected on write, only cycles persisted before that are flagged by the graph
+        if(dependencyGraph.isOnCycle(cellId)){
+            throw new CircularDependencyException("Reference Error : Circular Dependency Found");
         }
-        else{
-            result = cell.getData();
+        Snapshot snapshot = takeSnapshot(CellAddress.workbookOf(cellId));
+        Double cachedValue = valueCache.get(cellId, snapshot.generation());
+        if(cachedValue != null){
+            cellMetrics.recordCellsVisited(1);
+            return cachedValue.toString();
         }
-        return result;
+        // a formula whose persisted computed value is not stale is served by this single lookup
+        Cell cell = snapshot.cells().findById(cellId).orElseThrow(() -> new NoSuchElementException("Invalid Cell Id : Cell doesn't exist"));
+        if(!isFormula(cell)){
+            cellMetrics.recordCellsVisited(1);
+            return cell.getData();
+        }
+        if(cell.getComputedValue() != null){
+            Formula formula = formulaCache.getOrCompile(cellId, cell.getData().substring(1));
+            valueCache.put(cellId, cell.getComputedValue(), formula.getPrecedents(), snapshot.generation());
+            cellMetrics.recordCellsVisited(1);
+            return cell.getComputedValue().toString();
+        }
+        // the uncached precedents are loaded up front, so evaluating them doesn't look them up one by one
+        Map<String, Double> evaluatedValues = new HashMap<>();
+        Map<String, Cell> loadedCells = new HashMap<>();
+        loadedCells.put(cellId, cell);
+        loadSubgraph(List.of(cellId), evaluatedValues, loadedCells, snapshot);
+        double value = evaluateCell(cell, evaluatedValues, loadedCells, snapshot);
+        // the value version was read with the cell, before its precedents, so the value is not stored if the
+        // cell was marked stale again meanwhile
+        if (storeComputedValue) {
+            cellStore.saveComputedValues(Map.of(cellId, value), Map.of(cellId, cell.getValueVersion()));
+        }
+        // the evaluated values hold the cell and the precedents it was computed from
+        cellMetrics.recordCellsVisited(evaluatedValues.size());
+        return String.valueOf(value);
     }
 
     /**
-     * Converts an expression with references to an executable expression with original values.
-     * @param data The expression to be changed into the final executable expression
-     * @throws NoSuchElementException cell Id represents which doesn't exist
-     * @return final expression which can be evaluated by an expression evaluator.
-     */
-    String evaluateExpression(String data) {
-        String[] tokens = data.split("(?=[+\\-*/()])|(?<=[+\\-*/()])");
-        Pattern cellIdPattern = Pattern.compile(CELL_ID_PATTERN);
-        StringBuilder finalExpression = new StringBuilder();
-        // Introduce a Map to cache evaluated cell values
-        Map<String, String> evaluatedValues = new HashMap<>();
-
-        for (String token : tokens) {
-            Matcher cellIdMatcher = cellIdPattern.matcher(token);
-            if (cellIdMatcher.matches()) {
-                String cellId = token;
-                // Check if the value for this cell ID is already cached
-                String evaluatedValue = evaluatedValues.get(cellId);
-                if (evaluatedValue == null) {
-                    Cell cell = cellRepository.findById(cellId).orElseThrow(() -> new NoSuchElementException("Invalid Cell Id : Cell doesn't exist"));
-                    evaluatedValue = evaluateExpression(cell.getData().replaceFirst("^=", ""));
-                    // Cache the evaluated value for future reference
-                    evaluatedValues.put(cellId, evaluatedValue);
+     * Reads many cells in one pass. The requested cells without a cached value and their uncached
+     * precedents are found through the dependency graph and loaded in chunks with findAllById,
+     * then evaluated with shared intermediate results, so the cost is proportional to the subgraph
+     * rather than to the number of cells times the depth of their formulas.
+     * The cells are evaluated one by one while the returned stream is consumed, and the read is observed
+     * until the stream is closed, which the caller must do.
+     *
+     * @param cellIds The IDs of the cells to read, a missing cell is reported as an error.
+     * @param ranges  Ranges of cells to read like A1:D500, their empty cells are skipped.
+     * @return the value or the error of each cell, the existing cells of the ranges are read row by row after the cell IDs.
+     * @throws InvalidCellIdException if a range is invalid, too many cells are requested, or the cells belong to
+     * different workbooks.
+     */
+    @Override
+    public Stream<CellValue> getCellValues(List<String> cellIds, List<String> ranges) {
+        return cellMetrics.observeStream(CellMetrics.READ, () -> readCells(cellIds, ranges));
+    }
+
+    /**
+     * Subscribes to the values of cells and ranges. The current values are pushed first, then the
+     * recalculated values of the cells whenever a write changes them.
+     *
+     * @throws InvalidCellIdException if a cell ID or a range is invalid, or too many cells are requested.
+     */
+    @Override
+    public SseEmitter subscribe(List<String> cellIds, List<String> ranges) {
+
+        // registered before the current values are read, so a value recalculated meanwhile is not missed
+        CellSubscriptions.Subscription subscription = cellSubscriptions.subscribe(cellIds, ranges);
+        try (Stream<CellValue> currentValues = getCellValues(cellIds, ranges)) {
+            currentValues.forEach(subscription::offerInitial);
+        }
+        catch (RuntimeException e) {
+            cellSubscriptions.unsubscribe(subscription);
+            throw e;
+        }
+        return subscription.getEmitter();
+    }
+
+    /**
+     * Finds and loads the subgraph of the requested cells, the returned stream evaluates them.
+     */
+    private Stream<CellValue> readCells(List<String> cellIds, List<String> ranges) {
+
+        // cell ID -> whether it was requested explicitly rather than through a range
+        Map<String, Boolean> requestedCells = new LinkedHashMap<>();
+        cellIds.forEach(cellId -> requestedCells.put(cellId, true));
+        List<CellRange> cellRanges = ranges.stream().map(CellRange::parse).toList();
+        long requestedCount = requestedCells.size() + cellRanges.stream().mapToLong(CellRange::size).sum();
+        if(requestedCount > MAX_CELLS_PER_READ){
+            throw new InvalidCellIdException("Too many cells requested, the limit is " + MAX_CELLS_PER_READ);
+        }
+        Set<String> workbooks = new HashSet<>();
+        cellIds.stream().filter(FormulaCompiler::isCellId).forEach(cellId -> workbooks.add(CellAddress.workbookOf(cellId)));
+        cellRanges.forEach(range -> workbooks.add(CellAddress.workbookOf(range.sheet())));
+        if(workbooks.size() > 1){
+            throw new InvalidCellIdException("All cells of a read must belong to one workbook");
+        }
+
+        Snapshot snapshot = takeSnapshot(workbooks.isEmpty() ? "" : workbooks.iterator().next());
+        Map<String, Double> evaluatedValues = new HashMap<>();
+        Map<String, Cell> loadedCells = new HashMap<>();
+        // the ranges are read by the coordinates of their cells, so only their existing cells are listed
+        loadRanges(cellRanges, loadedCells, snapshot);
+        cellRanges.forEach(range -> snapshot.rangeCells().cellsOf(range)
+                .forEach(cell -> requestedCells.putIfAbsent(cell.getCellId(), false)));
+        Set<String> subgraph = loadSubgraph(requestedCells.keySet().stream().filter(FormulaCompiler::isCellId).toList(),
+                evaluatedValues, loadedCells, snapshot);
+        // cells of the subgraph that don't exist are remembered, so that ranges don't look them up again
+        subgraph.forEach(cellId -> loadedCells.putIfAbsent(cellId, MISSING_CELL));
+        cellMetrics.recordCellsVisited(requestedCells.size() + (int) subgraph.stream().filter(cellId -> !requestedCells.containsKey(cellId)).count());
+
+        return requestedCells.entrySet().stream()
+                .map(requested -> readCell(requested.getKey(), requested.getValue(), evaluatedValues, loadedCells, snapshot))
+                .filter(Objects::nonNull);
+    }
+
+    /**
+     * Finds the given cells and their transitive precedents that have no cached value through the dependency graph,
+     * and loads them in chunks with findAllById, skipping the cells already loaded. The referenced ranges are loaded
+     * by their coordinates, and only their formulas and referenced cells are walked. The walk stops at the cached
+     * values, so the number of queries grows with the uncached subgraph rather than with the references of its formulas.
+     *
+     * @return the IDs of the cells of the subgraph, including those that don't exist.
+     */
+    private Set<String> loadSubgraph(Collection<String> cellIds, Map<String, Double> evaluatedValues,
+                                     Map<String, Cell> loadedCells, Snapshot snapshot) {
+
+        Set<String> subgraph = new HashSet<>();
+        List<CellRange> ranges = new ArrayList<>();
+        Deque<String> pending = new ArrayDeque<>(cellIds);
+        while (!pending.isEmpty()) {
+            String cellId = pending.pop();
+            boolean range = CellRange.isRange(cellId);
+            if ((range || lookupEvaluatedValue(cellId, evaluatedValues, snapshot) == null) && subgraph.add(cellId)) {
+                if (range) {
+                    ranges.add(CellRange.parse(cellId));
                 }
-                finalExpression.append(evaluatedValue);
-            } else {
-                finalExpression.append(token);
+                dependencyGraph.getPrecedents(cellId).forEach(pending::push);
             }
         }
-        return finalExpression.toString();
+        subgraph.removeIf(CellRange::isRange);
+        loadRanges(ranges, loadedCells, snapshot);
+        loadChunks(subgraph.stream().filter(cellId -> !loadedCells.containsKey(cellId) && !snapshot.rangeCells().covers(cellId)).toList(),
+                loadedCells, snapshot);
+        return subgraph;
     }
 
+    /**
+     * Loads the given cells with one findAllById per chunk of {@value #LOAD_CHUNK_SIZE} cells.
+     */
+    private static void loadChunks(List<String> cellIds, Map<String, Cell> loadedCells, Snapshot snapshot) {
+
+        for (int from = 0; from < cellIds.size(); from += LOAD_CHUNK_SIZE) {
+            List<String> chunk = cellIds.subList(from, Math.min(from + LOAD_CHUNK_SIZE, cellIds.size()));
+            snapshot.cells().findAllById(chunk).forEach(cell -> loadedCells.put(cell.getCellId(), cell));
+        }
+    }
 
-    String calculateExpressionValue(String expression) {
+    /**
+     * @return the value or the error of the cell, or null for an empty cell that was not requested explicitly.
+     */
+    private CellValue readCell(String cellId, boolean explicit, Map<String, Double> evaluatedValues,
+                               Map<String, Cell> loadedCells, Snapshot snapshot) {
 
+        if(!FormulaCompiler.isCellId(cellId)) {
+            return CellValue.failed(cellId, "Invalid Cell Id provided");
+        }
+        if(dependencyGraph.isOnCycle(cellId)){
+            return CellValue.failed(cellId, "Reference Error : Circular Dependency Found");
+        }
+        Cell cell = loadedCell(cellId, loadedCells);
+        if(cell == null || cell.getKind() == CellKind.EMPTY){
+            Double cachedValue = evaluatedValues.get(cellId);
+            if(cachedValue != null){
+                return CellValue.of(cellId, cachedValue.toString());
+            }
+            if(!explicit){
+                return null;
+            }
+            return cell == null ? CellValue.failed(cellId, "Invalid Cell Id : Cell doesn't exist") : CellValue.of(cellId, null);
+        }
+        if(!isFormula(cell)){
+            return CellValue.of(cellId, cell.getData());
+        }
         try{
-            DoubleEvaluator evaluator = new DoubleEvaluator();
-            Double answer = evaluator.evaluate(expression);
-            return answer.toString();
+            return CellValue.of(cellId, String.valueOf(evaluateCell(cell, evaluatedValues, loadedCells, snapshot)));
         }
-        catch(RuntimeException e){
-            throw new ExpressionEvaluationException("Error evaluating expression: "+ e.getMessage());
+        catch(ExpressionEvaluationException | CircularDependencyException | NoSuchElementException e){
+            return CellValue.failed(cellId, e.getMessage());
         }
     }
 
-    Boolean isCircularDependent(Cell cell) {
+    /**
+     * Evaluates a compiled expression by walking its tree with the current values of the referenced cells.
+     * @param formula The compiled expression
+     * @param evaluatedValues Values of the cells already evaluated while computing the same result
+     * @param generation The value cache generation captured before reading any cell
+     * @throws NoSuchElementException cell Id represents which doesn't exist
+     * @throws ExpressionEvaluationException if a referenced cell doesn't hold a numeric value
+     * @return the value of the expression.
+     */
+    Double evaluateExpression(Formula formula, Map<String, Double> evaluatedValues, long generation) {
+        return evaluateExpression(formula, evaluatedValues, new Snapshot(cellStore.snapshot(), generation, new RangeCells()));
+    }
+
+    private Double evaluateExpression(Formula formula, Map<String, Double> evaluatedValues, Snapshot snapshot) {
 
-        if(cell == null){
-            return false;
+        Map<String, Cell> loadedCells = new HashMap<>();
+        loadRanges(formula.getRanges(), loadedCells, snapshot);
+        for (CellRange range : formula.getRanges()) {
+            for (Cell cell : unevaluatedFormulasOf(range, evaluatedValues, snapshot)) {
+                evaluateCell(cell, evaluatedValues, loadedCells, snapshot);
+            }
         }
-        List<Cell> dependentList = cell.getDependentCells();
-        Set<Cell> visited = new HashSet<>();
-        Set<Cell> inPath = new HashSet<>();
+        return cellMetrics.timeEvaluation(formula, new FormulaNode.Operands() {
+            @Override
+            public double valueOf(String cellId) {
+                return evaluateReference(cellId, evaluatedValues, loadedCells, snapshot);
+            }
 
-        for (Cell cell1 : dependentList) {
-            if (DependencyUtil.hasCircularDependency(cell1, visited, inPath)) {
-                logger.info("Circular Dependency Found");
-                return true;
+            @Override
+            public double aggregate(CellRange range, FormulaNode.AggregateFunction function) {
+                return aggregateRange(range, function, evaluatedValues, snapshot.rangeCells());
             }
+        });
+    }
+
+    private double evaluateReference(String cellId, Map<String, Double> evaluatedValues, Map<String, Cell> loadedCells,
+                                     Snapshot snapshot) {
+
+        Double evaluatedValue = lookupEvaluatedValue(cellId, evaluatedValues, snapshot);
+        if (evaluatedValue != null) {
+            return evaluatedValue;
+        }
+        return evaluateCell(loadCell(cellId, loadedCells, snapshot), evaluatedValues, loadedCells, snapshot);
+    }
+
+    /**
+     * Loads the rows of the ranges that are not loaded yet for the request, with one findAllInRange per missing
+     * rectangle, so the cells of a range are found by their coordinates rather than by the IDs of the range.
+     * The largest ranges are loaded first, so the overlapping smaller ones mostly find their rows loaded.
+     */
+    private static void loadRanges(List<CellRange> ranges, Map<String, Cell> loadedCells, Snapshot snapshot) {
+
+        // the ranges of a formula evaluated again are loaded already, which is checked without allocating
+        boolean loaded = true;
+        for (int index = 0; index < ranges.size() && loaded; index++) {
+            loaded = snapshot.rangeCells().isLoaded(ranges.get(index));
         }
-        return false;
+        if (loaded) {
+            return;
+        }
+        List<CellRange> largestFirst = new ArrayList<>(ranges);
+        largestFirst.sort(Comparator.comparingLong(CellRange::size).reversed());
+        for (CellRange range : largestFirst) {
+            if (snapshot.rangeCells().isLoaded(range)) {
+                continue;
+            }
+            List<CellRange> missingRanges = snapshot.rangeCells().missingRanges(range);
+            List<Cell> cells = new ArrayList<>();
+            for (CellRange missingRange : missingRanges) {
+                cells.addAll(snapshot.cells().findAllInRange(missingRange));
+            }
+            snapshot.rangeCells().add(missingRanges, cells);
+            cells.forEach(cell -> loadedCells.putIfAbsent(cell.getCellId(), cell));
+        }
+    }
+
+    /**
+     * @return the loaded formulas of the range without an evaluated value, an empty list being shared.
+     */
+    private List<Cell> unevaluatedFormulasOf(CellRange range, Map<String, Double> evaluatedValues, Snapshot snapshot) {
+
+        List<Cell> formulas = List.of();
+        for (int columnIndex = range.startColumn(); columnIndex <= range.endColumn(); columnIndex++) {
+            RangeCells.Column column = snapshot.rangeCells().column(range.sheet(), columnIndex);
+            if (column == null) {
+                continue;
+            }
+            for (int index = column.indexOf(range.startRow()); index < column.size() && column.rowAt(index) <= range.endRow(); index++) {
+                Cell cell = column.cellAt(index);
+                if (isFormula(cell) && lookupEvaluatedValue(cell.getCellId(), evaluatedValues, snapshot) == null) {
+                    if (formulas.isEmpty()) {
+                        formulas = new ArrayList<>();
+                    }
+                    formulas.add(cell);
+                }
+            }
+        }
+        return formulas;
+    }
+
+    /**
+     * Aggregates the numbers and the evaluated formulas of a range by walking the rows of its loaded columns,
+     * without collecting its values, skipping the cells that don't hold a number, like empty, text and boolean cells.
+     */
+    private static double aggregateRange(CellRange range, FormulaNode.AggregateFunction function,
+                                         Map<String, Double> evaluatedValues, RangeCells rangeCells) {
+
+        double aggregate = function.identity();
+        for (int columnIndex = range.startColumn(); columnIndex <= range.endColumn(); columnIndex++) {
+            RangeCells.Column column = rangeCells.column(range.sheet(), columnIndex);
+            if (column == null) {
+                continue;
+            }
+            for (int index = column.indexOf(range.startRow()); index < column.size() && column.rowAt(index) <= range.endRow(); index++) {
+                Cell cell = column.cellAt(index);
+                if (cell.getKind() == CellKind.NUMBER) {
+                    aggregate = function.accumulate(aggregate, cell.getNumber());
+                }
+                else if (cell.getKind() == CellKind.FORMULA) {
+                    Double evaluatedValue = evaluatedValues.get(cell.getCellId());
+                    if (evaluatedValue != null) {
+                        aggregate = function.accumulate(aggregate, evaluatedValue);
+                    }
+                }
+            }
+        }
+        return aggregate;
+    }
+
+    /**
+     * @return the loaded cell, or null if it was not loaded or doesn't exist.
+     */
+    private static Cell loadedCell(String cellId, Map<String, Cell> loadedCells) {
+        Cell cell = loadedCells.get(cellId);
+        return cell == MISSING_CELL ? null : cell;
+    }
+
+    private static boolean isFormula(Cell cell) {
+        return cell != null && cell.getKind() == CellKind.FORMULA;
+    }
+
+    /**
+     * Returns the cell from the cells already loaded for the current request, or from the snapshot of the request.
+     * @throws NoSuchElementException if the cell doesn't exist
+     */
+    private Cell loadCell(String cellId, Map<String, Cell> loadedCells, Snapshot snapshot) {
+
+        Cell cell = loadedCell(cellId, loadedCells);
+        if (cell != null) {
+            return cell;
+        }
+        if (loadedCells.containsKey(cellId) || snapshot.rangeCells().covers(cellId)) {
+            throw new NoSuchElementException("Invalid Cell Id : Cell doesn't exist");
+        }
+        return snapshot.cells().findById(cellId).orElseThrow(() -> new NoSuchElementException("Invalid Cell Id : Cell doesn't exist"));
+    }
+
+    /**
+     * Checks if the value for this cell ID is already evaluated by this or an earlier request.
+     */
+    private Double lookupEvaluatedValue(String cellId, Map<String, Double> evaluatedValues, Snapshot snapshot) {
+
+        Double evaluatedValue = evaluatedValues.get(cellId);
+        if (evaluatedValue == null) {
+            evaluatedValue = valueCache.get(cellId, snapshot.generation());
+            if (evaluatedValue != null) {
+                evaluatedValues.put(cellId, evaluatedValue);
+            }
+        }
+        return evaluatedValue;
+    }
+
+    /**
+     * Evaluates a cell together with the precedents that are not evaluated yet.
+     * The precedents are walked depth first with an explicit stack and evaluated before the cells
+     * referencing them, so long chains of formulas don't grow the thread stack.
+     *
+     * @param loadedCells Cells already loaded for the current request, the others are looked up one by one
+     * @throws CircularDependencyException if a precedent depends on a cell being evaluated
+     */
+    private double evaluateCell(Cell cell, Map<String, Double> evaluatedValues, Map<String, Cell> loadedCells,
+                                Snapshot snapshot) {
+
+        Deque<Cell> pending = new ArrayDeque<>();
+        Set<String> expanded = new HashSet<>();
+        pending.push(cell);
+        int depth = 0;
+        // shared by the formulas of the walk, which are only evaluated once their references are
+        FormulaNode.Operands evaluatedOperands = new FormulaNode.Operands() {
+            @Override
+            public double valueOf(String cellId) {
+                return evaluatedValues.get(cellId);
+            }
+
+            @Override
+            public double aggregate(CellRange range, FormulaNode.AggregateFunction function) {
+                return aggregateRange(range, function, evaluatedValues, snapshot.rangeCells());
+            }
+        };
+        while (!pending.isEmpty()) {
+            depth = Math.max(depth, pending.size());
+            Cell current = pending.peek();
+            String currentId = current.getCellId();
+            if (evaluatedValues.containsKey(currentId)) {
+                pending.pop();
+                continue;
+            }
+            if (current.getKind() != CellKind.FORMULA) {
+                evaluatedValues.put(currentId, numericValueOf(current));
+                pending.pop();
+                continue;
+            }
+            // a persisted value is only kept while none of the precedents is written, so they are not walked
+            if (current.getComputedValue() != null) {
+                evaluatedValues.put(currentId, current.getComputedValue());
+                pending.pop();
+                continue;
+            }
+            Formula formula = formulaCache.getOrCompile(currentId, current.getData().substring(1));
+            boolean ready = true;
+            for (String reference : formula.getReferences()) {
+                if (lookupEvaluatedValue(reference, evaluatedValues, snapshot) == null) {
+                    if (expanded.contains(reference)) {
+                        throw new CircularDependencyException("Reference Error : Circular Dependency Found");
+                    }
+                    pending.push(loadCell(reference, loadedCells, snapshot));
+                    ready = false;
+                }
+            }
+            // only the formulas of a range are evaluated first, its empty and text cells are skipped
+            loadRanges(formula.getRanges(), loadedCells, snapshot);
+            for (CellRange range : formula.getRanges()) {
+                for (Cell rangeCell : unevaluatedFormulasOf(range, evaluatedValues, snapshot)) {
+                    if (expanded.contains(rangeCell.getCellId())) {
+                        throw new CircularDependencyException("Reference Error : Circular Dependency Found");
+                    }
+                    pending.push(rangeCell);
+                    ready = false;
+                }
+            }
+            if (ready) {
+                // every reference is evaluated, so walking the tree doesn't reach back into this method
+                Double evaluatedValue = cellMetrics.timeEvaluation(formula, evaluatedOperands);
+                valueCache.put(currentId, evaluatedValue, formula.getPrecedents(), snapshot.generation());
+                evaluatedValues.put(currentId, evaluatedValue);
+                pending.pop();
+            }
+            else {
+                expanded.add(currentId);
+            }
+        }
+        cellMetrics.recordWalkDepth("evaluation", depth);
+        return evaluatedValues.get(cell.getCellId());
+    }
+
+    /**
+     * @return the value of a cell that is not a formula in arithmetic, TRUE and FALSE count as 1 and 0.
+     * @throws ExpressionEvaluationException if the cell is empty, holds text or an error.
+     */
+    private static double numericValueOf(Cell cell) {
+
+        return switch (cell.getKind()) {
+            case NUMBER -> cell.getNumber();
+            case BOOLEAN -> cell.getData().equalsIgnoreCase("TRUE") ? 1 : 0;
+            case ERROR -> throw new ExpressionEvaluationException("Error evaluating expression: Cell " + cell.getCellId()
+                    + " holds the error " + cell.getData());
+            default -> throw new ExpressionEvaluationException("Error evaluating expression: Cell " + cell.getCellId()
+                    + " doesn't hold a numeric value");
+        };
+    }
+
+    String calculateExpressionValue(Formula formula, long generation) {
+
+        return evaluateExpression(formula, new HashMap<>(), generation).toString();
+    }
+
+    /**
+     * Captures the value cache generation of the workbook, then takes the snapshot of the cells, in this order:
+     * a value cached up to the generation is never computed from cells written after the snapshot.
+     */
+    private Snapshot takeSnapshot(String workbook) {
+        long generation = valueCache.getGeneration(workbook);
+        return new Snapshot(cellStore.snapshot(), generation, new RangeCells());
+    }
+
+    private static boolean sameWorkbook(String cellId, String otherCellId) {
+        return CellAddress.workbookOf(cellId).equals(CellAddress.workbookOf(otherCellId));
+    }
+
+    /**
+     * The cells and the value cache generation of the workbook a read is served from, from start to end,
+     * including the cells evaluated while its stream is consumed, and the cells of the ranges it loaded.
+     */
+    private record Snapshot(CellReader cells, long generation, RangeCells rangeCells) {
     }
 
-}
+}
\ No newline at end of file
@@ -0,0 +1,286 @@
+package com.spreadsheet.spreadsheetcelloperation.service;
+
+import com.spreadsheet.spreadsheetcelloperation.exception.InvalidCellIdException;
+import com.spreadsheet.spreadsheetcelloperation.model.CellRange;
+import com.spreadsheet.spreadsheetcelloperation.model.CellValue;
+import com.spreadsheet.spreadsheetcelloperation.utils.FormulaCompiler;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Pushes the recalculated values of cells to the clients subscribed to them, as server-sent events.
+ * <p>
+ * A recalculation only records the new values in the subscriptions interested in them, keeping the
+ * latest value per cell, so it never waits on a client. Every tick, each subscription with recorded
+ * values sends them as a single event on a pool of sender threads, leaving out the values the client
+ * already received. While the previous event of a subscription is still being sent, the subscription
+ * is skipped and keeps coalescing, so a slow client receives fewer, larger events and holds at most one
+ * recorded value per cell.
+ */
+@Component
+public class CellSubscriptions implements MeterBinder {
+
+    private static final Logger logger = Logger.getLogger(CellSubscriptions.class.getName());
+
+    private static final String EVENT_NAME = "cells";
+
+    private final Duration tick;
+
+    private final int senderThreads;
+
+    private final Duration timeout;
+
+    private final Set<Subscription> subscriptions = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder pushedValues = new LongAdder();
+
+    private final LongAdder stalledTicks = new LongAdder();
+
+    // started with the first subscription
+    private ScheduledExecutorService ticker;
+
+    private ExecutorService senders;
+
+    /**
+     * @param tick          The interval at which the recorded values are pushed.
+     * @param senderThreads The number of threads sending the events.
+     * @param timeout       How long a subscription stays open before the client has to subscribe again.
+     */
+    public CellSubscriptions(@Value("${spreadsheet.subscriptions.tick:100ms}") Duration tick,
+                             @Value("${spreadsheet.subscriptions.sender-threads:4}") int senderThreads,
+                             @Value("${spreadsheet.subscriptions.timeout:30m}") Duration timeout) {
+        this.tick = tick;
+        this.senderThreads = senderThreads;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Registers interest in the given cells and ranges.
+     *
+     * @return the subscription, whose emitter is returned to the client.
+     * @throws InvalidCellIdException if a cell ID or a range is invalid.
+     */
+    public Subscription subscribe(List<String> cellIds, List<String> ranges) {
+
+        for (String cellId : cellIds) {
+            if (!FormulaCompiler.isCellId(cellId)) {
+                throw new InvalidCellIdException("Invalid Cell Id provided");
+            }
+        }
+        Subscription subscription = new Subscription(Set.copyOf(cellIds), ranges.stream().map(CellRange::parse).toList(), createEmitter());
+        SseEmitter emitter = subscription.emitter;
+        emitter.onCompletion(() -> subscriptions.remove(subscription));
+        emitter.onTimeout(() -> subscriptions.remove(subscription));
+        emitter.onError(error -> subscriptions.remove(subscription));
+        start();
+        subscriptions.add(subscription);
+        return subscription;
+    }
+
+    /**
+     * Removes the subscription and closes its stream.
+     */
+    public void unsubscribe(Subscription subscription) {
+        subscriptions.remove(subscription);
+        subscription.emitter.complete();
+    }
+
+    SseEmitter createEmitter() {
+        return new SseEmitter(timeout.toMillis());
+    }
+
+    public boolean hasSubscriptions() {
+        return !subscriptions.isEmpty();
+    }
+
+    /**
+     * @return true if a subscription is interested in one of the given cells.
+     */
+    public boolean isWatched(Collection<String> cellIds) {
+
+        for (Subscription subscription : subscriptions) {
+            for (String cellId : cellIds) {
+                if (subscription.isInterested(cellId)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Records the recalculated values of cells in the subscriptions interested in them, to be pushed on the next tick.
+     */
+    public void publish(Collection<CellValue> cellValues) {
+
+        for (Subscription subscription : subscriptions) {
+            for (CellValue cellValue : cellValues) {
+                if (subscription.isInterested(cellValue.cellId())) {
+                    subscription.pending.put(cellValue.cellId(), cellValue);
+                }
+            }
+        }
+    }
+
+    private synchronized void start() {
+
+        if (ticker != null) {
+            return;
+        }
+        AtomicInteger senderCount = new AtomicInteger();
+        senders = Executors.newFixedThreadPool(senderThreads, runnable -> {
+            Thread thread = new Thread(runnable, "cell-subscription-sender-" + senderCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cell-subscription-ticker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long tickMillis = tick.toMillis();
+        ticker.scheduleWithFixedDelay(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Hands the subscriptions with recorded values to the senders, skipping those whose previous event is still being sent.
+     */
+    void tick() {
+
+        for (Subscription subscription : subscriptions) {
+            if (subscription.pending.isEmpty()) {
+                continue;
+            }
+            if (!subscription.sending.compareAndSet(false, true)) {
+                stalledTicks.increment();
+                continue;
+            }
+            try {
+                senders.execute(() -> send(subscription));
+            }
+            catch (RejectedExecutionException e) {
+                // shutting down
+                subscription.sending.set(false);
+            }
+        }
+    }
+
+    private void send(Subscription subscription) {
+
+        try {
+            List<CellValue> changedValues = new ArrayList<>();
+            for (String cellId : subscription.pending.keySet()) {
+                CellValue cellValue = subscription.pending.remove(cellId);
+                if (cellValue != null && !cellValue.equals(subscription.sent.put(cellId, cellValue))) {
+                    changedValues.add(cellValue);
+                }
+            }
+            if (changedValues.isEmpty()) {
+                return;
+            }
+            subscription.emitter.send(SseEmitter.event().name(EVENT_NAME).data(changedValues, MediaType.APPLICATION_JSON));
+            pushedValues.add(changedValues.size());
+        }
+        catch (IOException | IllegalStateException e) {
+            logger.fine("Closing cell subscription after a failed push: " + e.getMessage());
+            subscriptions.remove(subscription);
+            subscription.emitter.completeWithError(e);
+        }
+        finally {
+            subscription.sending.set(false);
+        }
+    }
+
+    @PreDestroy
+    public synchronized void shutdown() {
+
+        if (ticker != null) {
+            ticker.shutdownNow();
+            senders.shutdownNow();
+        }
+        subscriptions.forEach(subscription -> subscription.emitter.complete());
+        subscriptions.clear();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("spreadsheet.subscriptions.active", subscriptions, Set::size)
+                .description("Open cell subscriptions").register(registry);
+        FunctionCounter.builder("spreadsheet.subscriptions.pushed", pushedValues, LongAdder::sum)
+                .description("Cell values pushed to subscribers").register(registry);
+        FunctionCounter.builder("spreadsheet.subscriptions.stalled", stalledTicks, LongAdder::sum)
+                .description("Ticks a subscription was skipped because its previous push was still being sent")
+                .register(registry);
+    }
+
+    /**
+     * The cells and ranges one client is interested in, with the values waiting to be pushed to it.
+     */
+    public static final class Subscription {
+
+        private final Set<String> cellIds;
+
+        private final List<CellRange> ranges;
+
+        private final SseEmitter emitter;
+
+        // cell ID -> latest value not pushed yet
+        private final Map<String, CellValue> pending = new ConcurrentHashMap<>();
+
+        // cell ID -> value last pushed, only used by the sender holding the sending flag
+        private final Map<String, CellValue> sent = new HashMap<>();
+
+        private final AtomicBoolean sending = new AtomicBoolean();
+
+        private Subscription(Set<String> cellIds, List<CellRange> ranges, SseEmitter emitter) {
+            this.cellIds = cellIds;
+            this.ranges = ranges;
+            this.emitter = emitter;
+        }
+
+        public SseEmitter getEmitter() {
+            return emitter;
+        }
+
+        /**
+         * Records the value of a cell read when subscribing, unless a recalculated value was recorded since.
+         */
+        public void offerInitial(CellValue cellValue) {
+            pending.putIfAbsent(cellValue.cellId(), cellValue);
+        }
+
+        private boolean isInterested(String cellId) {
+
+            if (cellIds.contains(cellId)) {
+                return true;
+            }
+            for (CellRange range : ranges) {
+                if (range.contains(cellId)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.spreadsheet.spreadsheetcelloperation.service;
+
+import com.spreadsheet.spreadsheetcelloperation.exception.CsvFormatException;
+import com.spreadsheet.spreadsheetcelloperation.exception.InvalidCellIdException;
+import com.spreadsheet.spreadsheetcelloperation.model.CellAddress;
+import com.spreadsheet.spreadsheetcelloperation.model.CellRange;
+import com.spreadsheet.spreadsheetcelloperation.model.CellValue;
+import com.spreadsheet.spreadsheetcelloperation.repository.CellStore;
+import com.spreadsheet.spreadsheetcelloperation.utils.CsvReader;
+import com.spreadsheet.spreadsheetcelloperation.utils.CsvWriter;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Imports and exports whole sheets as CSV, the first record being row 1 and the first field column A.
+ * <p>
+ * Both directions stream: the import parses the records one at a time and writes them in batches, each in
+ * its own transaction, and the export reads and evaluates a band of rows at a time, writing each row as
+ * soon as it is evaluated. Neither holds more than one batch of cells in memory.
+ */
+@Service
+public class CellTransfer {
+
+    private static final Logger logger = Logger.getLogger(CellTransfer.class.getName());
+
+    private static final int IMPORT_BATCH_SIZE = 10_000;
+
+    private static final int EXPORT_BATCH_SIZE = 10_000;
+
+    private static final String ERROR_PREFIX = "#ERROR: ";
+
+    private final CellOperation cellOperation;
+
+    private final CellStore cellStore;
+
+    public CellTransfer(CellOperation cellOperation, CellStore cellStore) {
+        this.cellOperation = cellOperation;
+        this.cellStore = cellStore;
+    }
+
+    /**
+     * Imports the CSV into a sheet, its empty fields leave the cells as they are. The batches written before a
+     * failure stay written, and the formulas are evaluated by the next read rather than while importing.
+     *
+     * @param sheet The workbook and sheet to import into, like [acme]Sheet2!, empty for the default sheet.
+     * @param csv   The UTF-8 encoded CSV.
+     * @return the number of cells written.
+     * @throws InvalidCellIdException if the sheet is not valid, or the CSV has more rows or columns than a sheet.
+     * @throws CsvFormatException if the CSV is malformed.
+     */
+    public long importCsv(String sheet, InputStream csv) throws IOException {
+
+        checkSheet(sheet);
+        CsvReader reader = new CsvReader(new InputStreamReader(csv, StandardCharsets.UTF_8));
+        Map<String, Object> batch = new HashMap<>();
+        long importedCount = 0;
+        int row = 0;
+        for (List<String> record = reader.readRecord(); record != null; record = reader.readRecord()) {
+            row++;
+            for (int column = 0; column < record.size(); column++) {
+                if (!record.get(column).isEmpty()) {
+                    batch.put(sheet + CellAddress.columnName(column) + row, record.get(column));
+                }
+            }
+            if (batch.size() >= IMPORT_BATCH_SIZE) {
+                cellOperation.importCellValues(batch);
+                importedCount += batch.size();
+                batch = new HashMap<>();
+            }
+        }
+        if (!batch.isEmpty()) {
+            cellOperation.importCellValues(batch);
+            importedCount += batch.size();
+        }
+        logger.info("Imported " + importedCount + " cells into sheet '" + sheet + "'");
+        return importedCount;
+    }
+
+    /**
+     * Exports the evaluated values of a sheet as CSV, from A1 to its last used column and row. A cell that fails
+     * to evaluate is written as #ERROR: followed by the error.
+     *
+     * @param sheet The workbook and sheet to export, like [acme]Sheet2!, empty for the default sheet.
+     * @return the body writing the UTF-8 encoded CSV.
+     * @throws InvalidCellIdException if the sheet is not valid.
+     */
+    public StreamingResponseBody exportCsv(String sheet) {
+
+        checkSheet(sheet);
+        Optional<CellRange> usedRange = cellStore.findUsedRange(sheet);
+        return outputStream -> {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+            if (usedRange.isPresent()) {
+                writeRows(sheet, usedRange.get().endColumn() + 1, usedRange.get().endRow(), new CsvWriter(writer));
+            }
+            writer.flush();
+        };
+    }
+
+    /**
+     * Writes the rows 1 to the last row in bands of rows read with one multi cell read each.
+     */
+    private void writeRows(String sheet, int columnCount, int lastRow, CsvWriter csvWriter) throws IOException {
+
+        int rowsPerBatch = Math.max(1, EXPORT_BATCH_SIZE / columnCount);
+        String[] fields = new String[columnCount];
+        String lastColumnName = CellAddress.columnName(columnCount - 1);
+        for (int startRow = 1; startRow <= lastRow; startRow += rowsPerBatch) {
+            int endRow = Math.min(lastRow, startRow + rowsPerBatch - 1);
+            String range = sheet + "A" + startRow + ":" + lastColumnName + endRow;
+            int row = startRow;
+            int fieldCount = 0;
+            try (Stream<CellValue> cellValues = cellOperation.getCellValues(List.of(), List.of(range))) {
+                for (CellValue cellValue : (Iterable<CellValue>) cellValues::iterator) {
+                    String cellId = cellValue.cellId();
+                    long location = CellAddress.locate(cellId, sheet.length(), cellId.length());
+                    int column = (int) (location >>> 32);
+                    // the empty cells are skipped, so the rows without any cell are written empty
+                    for (; row < (int) location; row++) {
+                        csvWriter.writeRecord(fields, fieldCount);
+                        fieldCount = 0;
+                    }
+                    while (fieldCount < column) {
+                        fields[fieldCount++] = null;
+                    }
+                    fields[fieldCount++] = cellValue.error() == null ? cellValue.value() : ERROR_PREFIX + cellValue.error();
+                }
+            }
+            for (; row <= endRow; row++) {
+                csvWriter.writeRecord(fields, fieldCount);
+                fieldCount = 0;
+            }
+            csvWriter.flush();
+        }
+    }
+
+    private static void checkSheet(String sheet) {
+
+        String cellId = sheet + "A1";
+        if (!CellAddress.isCellId(cellId) || !CellAddress.sheetPrefixOf(cellId).equals(sheet)) {
+            throw new InvalidCellIdException("Invalid Sheet provided: " + sheet);
+        }
+    }
+}
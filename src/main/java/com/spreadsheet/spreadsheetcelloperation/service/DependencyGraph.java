@@ -0,0 +1,577 @@
+package com.spreadsheet.spreadsheetcelloperation.service;
+
+import com.spreadsheet.spreadsheetcelloperation.exception.CircularDependencyException;
+import com.spreadsheet.spreadsheetcelloperation.model.CellAddress;
+import com.spreadsheet.spreadsheetcelloperation.model.CellRange;
+import com.spreadsheet.spreadsheetcelloperation.model.DependencyEdge;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+
+/**
+ * In-memory dependency graph of the sheet. Besides the precedents of each cell (the cells it reads),
+ * it maintains the reverse index from each cell to the cells that reference it, so that a write
+ * can find the affected formulas without scanning the sheet.
+ * <p>
+ * The graph also keeps a topological order of its cells, maintained incrementally when edges are
+ * added (Pearce-Kelly), so a write that would close a cycle is rejected by searching only the
+ * cells ordered between the written cell and its new precedents.
+ * <p>
+ * A referenced range like A1:A10000 is a single node, shared by the formulas referencing it and dropped once
+ * no formula references it. Its cells are not expanded into edges: the ranges holding a cell are found by
+ * an interval lookup in its column, and the cells of a range by their coordinates among the ordered cells.
+ */
+@Component
+public class DependencyGraph {
+
+    // cell ID -> IDs of the cells and ranges it references, replaced as a whole on every write
+    private final Map<String, Collection<String>> precedents = new HashMap<>();
+
+    // cell or range ID -> IDs of the cells referencing it, most cells are referenced by a few cells only
+    private final Map<String, Collection<String>> dependents = new HashMap<>();
+
+    // the referenced ranges, each depending on the cells it holds without an edge per cell
+    private final RangeIndex ranges = new RangeIndex();
+
+    // cell ID -> position in the topological order, every precedent is ordered before its dependents
+    // and every cell before the ranges holding it
+    private final Map<String, Integer> order = new HashMap<>();
+
+    // sheet -> column index -> row -> ID of the cells with a position, to find the ordered cells of a range,
+    // only for the columns spanned by a referenced range
+    private final Map<String, NavigableMap<Integer, NavigableMap<Integer, String>>> orderedCells = new HashMap<>();
+
+    // cells on a cycle persisted before cycles were rejected on write, or depending on one
+    private final Set<String> unordered = new HashSet<>();
+
+    // the unordered cells as of the last completed update, read without the lock
+    private volatile Set<String> publishedUnordered = Set.of();
+
+    private int nextOrder;
+
+    // positions of the new cells held by a range, ordered before every other cell
+    private int firstOrder = -1;
+
+    /**
+     * Replaces the whole graph with the given persisted dependency edges.
+     */
+    public synchronized void load(List<DependencyEdge> edges) {
+
+        precedents.clear();
+        dependents.clear();
+        ranges.clear();
+        order.clear();
+        orderedCells.clear();
+        Map<String, Set<String>> loadedPrecedents = new HashMap<>();
+        for (DependencyEdge edge : edges) {
+            loadedPrecedents.computeIfAbsent(edge.getCellId(), key -> new LinkedHashSet<>()).add(edge.getPrecedentId());
+            dependents.computeIfAbsent(edge.getPrecedentId(), key -> new HashSet<>(4)).add(edge.getCellId());
+        }
+        dependents.keySet().stream().filter(CellRange::isRange).forEach(this::addRange);
+        loadedPrecedents.forEach((cellId, cellPrecedents) -> precedents.put(cellId, List.copyOf(cellPrecedents)));
+        rebuildOrder();
+        publishUnordered();
+    }
+
+    /**
+     * Replaces the precedents of a cell and updates the reverse index and the topological order accordingly.
+     *
+     * @param cellId        The ID of the written cell.
+     * @param newPrecedents The IDs of the cells referenced by the new value of the cell.
+     * @return the IDs of the cells the cell referenced before.
+     * @throws CircularDependencyException if one of the new precedents depends on the cell,
+     *                                     in which case the graph is left unchanged.
+     */
+    public synchronized Set<String> setPrecedents(String cellId, Collection<String> newPrecedents) {
+
+        try {
+            return replaceCellPrecedents(cellId, newPrecedents);
+        }
+        finally {
+            publishUnordered();
+        }
+    }
+
+    private Set<String> replaceCellPrecedents(String cellId, Collection<String> newPrecedents) {
+
+        addRanges(newPrecedents);
+        Set<String> oldPrecedents = Collections.emptySet();
+        try {
+            oldPrecedents = replacePrecedents(cellId, newPrecedents);
+            return oldPrecedents;
+        }
+        finally {
+            removeUnusedRanges(newPrecedents);
+            removeUnusedRanges(oldPrecedents);
+        }
+    }
+
+    /**
+     * Only a write to an unordered cell or referencing one can change which cells are unordered, so the order is
+     * rebuilt for those writes only. The others can only close a cycle through ordered cells, since the dependents
+     * of an unordered cell are unordered as well, and are checked and ordered incrementally among the ordered cells.
+     */
+    private Set<String> replacePrecedents(String cellId, Collection<String> newPrecedents) {
+
+        if (!unordered.isEmpty() && (unordered.contains(cellId) || newPrecedents.stream().anyMatch(this::dependsOnCycle))) {
+            if (reaches(cellId, new HashSet<>(newPrecedents), Integer.MAX_VALUE)) {
+                throw new CircularDependencyException("Reference Error : Circular Dependency Found");
+            }
+            Set<String> oldPrecedents = replaceEdges(cellId, newPrecedents);
+            rebuildOrder();
+            return oldPrecedents;
+        }
+
+        int lowerBound = orderOf(cellId);
+        int upperBound = lowerBound;
+        Set<String> misplaced = new HashSet<>();
+        for (String precedent : newPrecedents) {
+            int precedentOrder = orderOf(precedent);
+            if (precedentOrder >= lowerBound) {
+                misplaced.add(precedent);
+                upperBound = Math.max(upperBound, precedentOrder);
+            }
+        }
+        if (misplaced.isEmpty()) {
+            return replaceEdges(cellId, newPrecedents);
+        }
+
+        // Cells reachable from the written cell that are not ordered after every misplaced precedent
+        List<String> forward = collect(cellId, upperBound, true);
+        for (String cell : forward) {
+            if (misplaced.contains(cell)) {
+                throw new CircularDependencyException("Reference Error : Circular Dependency Found");
+            }
+        }
+        Set<String> oldPrecedents = replaceEdges(cellId, newPrecedents);
+
+        // Cells reaching a misplaced precedent that are not ordered before the written cell
+        List<String> backward = new ArrayList<>();
+        Set<String> visited = new HashSet<>();
+        for (String precedent : misplaced) {
+            if (visited.add(precedent)) {
+                backward.addAll(collect(precedent, lowerBound, false, visited));
+            }
+        }
+        reorder(backward, forward);
+        return oldPrecedents;
+    }
+
+    /**
+     * Replaces the precedents of many cells at once, as if each cell was written in iteration order.
+     * Large batches are applied as a whole and the topological order is rebuilt once,
+     * instead of being maintained edge by edge.
+     *
+     * @param newPrecedents The IDs of the referenced cells by written cell ID.
+     * @return the IDs of the cells each written cell referenced before.
+     * @throws CircularDependencyException if the batch closes a cycle, in which case the graph is left unchanged.
+     */
+    public synchronized Map<String, Collection<String>> setPrecedents(Map<String, ? extends Collection<String>> newPrecedents) {
+
+        try {
+            return replaceAllPrecedents(newPrecedents);
+        }
+        finally {
+            publishUnordered();
+        }
+    }
+
+    private Map<String, Collection<String>> replaceAllPrecedents(Map<String, ? extends Collection<String>> newPrecedents) {
+
+        Map<String, Collection<String>> oldPrecedents = new LinkedHashMap<>();
+        if (newPrecedents.size() * 4 < order.size()) {
+            try {
+                newPrecedents.forEach((cellId, cellPrecedents) ->
+                        oldPrecedents.putIfAbsent(cellId, replaceCellPrecedents(cellId, cellPrecedents)));
+            }
+            catch (CircularDependencyException e) {
+                restore(oldPrecedents);
+                newPrecedents.values().forEach(this::removeUnusedRanges);
+                throw e;
+            }
+            return oldPrecedents;
+        }
+
+        Set<String> previouslyUnordered = new HashSet<>(unordered);
+        newPrecedents.forEach((cellId, cellPrecedents) -> {
+            addRanges(cellPrecedents);
+            oldPrecedents.putIfAbsent(cellId, replaceEdges(cellId, cellPrecedents));
+        });
+        rebuildOrder();
+        if (!previouslyUnordered.containsAll(unordered)) {
+            restore(oldPrecedents);
+            newPrecedents.values().forEach(this::removeUnusedRanges);
+            throw new CircularDependencyException("Reference Error : Circular Dependency Found");
+        }
+        oldPrecedents.values().forEach(this::removeUnusedRanges);
+        return oldPrecedents;
+    }
+
+    /**
+     * @return the cells and ranges referenced by the cell, or for a range the cells it holds that are in the graph,
+     * found by their coordinates.
+     */
+    public synchronized List<String> getPrecedents(String cellId) {
+        return List.copyOf(precedentsOf(cellId));
+    }
+
+    /**
+     * @return the cells referencing the cell and the referenced ranges holding it.
+     */
+    public synchronized Set<String> getDependents(String cellId) {
+        return Set.copyOf(dependentsOf(cellId));
+    }
+
+    /**
+     * Checked without locking against the cells left unordered by the last completed update, so that the reads
+     * answered from the value cache never wait for a write updating the graph.
+     *
+     * @return true if the cell is on a cycle persisted before cycles were rejected on write, or depends on one.
+     */
+    public boolean isOnCycle(String cellId) {
+        return publishedUnordered.contains(cellId);
+    }
+
+    /**
+     * @return true if the cell is unordered, or is a range holding an unordered cell, which has no position and is
+     * only found by its coordinates.
+     */
+    private boolean dependsOnCycle(String id) {
+
+        if (unordered.contains(id)) {
+            return true;
+        }
+        CellRange range = CellRange.isRange(id) ? ranges.get(id) : null;
+        return range != null && unordered.stream().anyMatch(range::contains);
+    }
+
+    /**
+     * Publishes the unordered cells once an update is complete, the cells of a batch that is rolled back are never seen.
+     */
+    private void publishUnordered() {
+        if (!publishedUnordered.equals(unordered)) {
+            publishedUnordered = Set.copyOf(unordered);
+        }
+    }
+
+    /**
+     * Collects the given cell and every cell depending on it, directly or transitively through cells and ranges,
+     * ordered so that each cell comes after all the affected cells it references.
+     * Cells on a cycle have no such position and are left out.
+     *
+     * @param cellId The ID of the written cell.
+     * @return the affected cells in topological order, starting with the written cell.
+     */
+    public List<String> getAffectedCellsInTopologicalOrder(String cellId) {
+        return getAffectedCellsInTopologicalOrder(List.of(cellId));
+    }
+
+    /**
+     * Collects the given cells and every cell depending on any of them, in topological order.
+     *
+     * @param cellIds The IDs of the written cells.
+     * @return the affected cells in topological order.
+     */
+    public synchronized List<String> getAffectedCellsInTopologicalOrder(Collection<String> cellIds) {
+
+        List<String> affected = collectAffected(cellIds);
+        affected.removeIf(CellRange::isRange);
+        return affected;
+    }
+
+    /**
+     * Groups the given cells and every cell depending on any of them by topological level. The cells of
+     * a level only reference affected cells of earlier levels, so they can be evaluated independently.
+     *
+     * @param cellIds The IDs of the written cells.
+     * @return the affected cells of each level, each level in topological order.
+     */
+    public synchronized List<List<String>> getAffectedCellsInTopologicalLevels(Collection<String> cellIds) {
+
+        List<List<String>> levels = new ArrayList<>();
+        Map<String, Integer> levelByCellId = new HashMap<>();
+        // the levels are passed on forward in topological order, so the cells of a range are not listed
+        for (String cellId : collectAffected(cellIds)) {
+            int level = levelByCellId.getOrDefault(cellId, 0);
+            if (!CellRange.isRange(cellId)) {
+                while (levels.size() <= level) {
+                    levels.add(new ArrayList<>());
+                }
+                levels.get(level).add(cellId);
+            }
+            // a range only passes on the level after its cells
+            int dependentLevel = CellRange.isRange(cellId) ? level : level + 1;
+            for (String dependent : dependentsOf(cellId)) {
+                levelByCellId.merge(dependent, dependentLevel, Math::max);
+            }
+        }
+        return levels;
+    }
+
+    /**
+     * Collects the given cells and the cells and ranges depending on them, in topological order.
+     */
+    private List<String> collectAffected(Collection<String> cellIds) {
+
+        List<String> affected = new ArrayList<>();
+        Set<String> visited = new HashSet<>();
+        for (String cellId : cellIds) {
+            if (visited.add(cellId)) {
+                affected.addAll(collect(cellId, Integer.MAX_VALUE, true, visited));
+            }
+        }
+        affected.removeIf(unordered::contains);
+        affected.sort(Comparator.comparing(this::orderOf));
+        return affected;
+    }
+
+    /**
+     * Adds the ranges that are not referenced yet, ordered after every cell.
+     */
+    private void addRanges(Collection<String> cellPrecedents) {
+        for (String precedent : cellPrecedents) {
+            if (CellRange.isRange(precedent) && addRange(precedent)) {
+                order.put(precedent, nextOrder++);
+            }
+        }
+    }
+
+    /**
+     * Indexes a range, and the ordered cells of the columns it is the first to span, found by one pass over the order.
+     *
+     * @return false if the range was already indexed.
+     */
+    private boolean addRange(String rangeId) {
+
+        if (!ranges.add(rangeId)) {
+            return false;
+        }
+        CellRange range = ranges.get(rangeId);
+        NavigableMap<Integer, NavigableMap<Integer, String>> columns = orderedCells.computeIfAbsent(range.sheet(), key -> new TreeMap<>());
+        boolean spansNewColumns = false;
+        for (int column = range.startColumn(); column <= range.endColumn(); column++) {
+            if (!columns.containsKey(column)) {
+                columns.put(column, new TreeMap<>());
+                spansNewColumns = true;
+            }
+        }
+        if (spansNewColumns) {
+            order.keySet().forEach(this::indexOrderedCell);
+        }
+        return true;
+    }
+
+    /**
+     * Drops the given ranges that are no longer referenced by any formula.
+     */
+    private void removeUnusedRanges(Collection<String> cellPrecedents) {
+        for (String range : cellPrecedents) {
+            if (CellRange.isRange(range) && !dependents.containsKey(range) && ranges.remove(range)) {
+                order.remove(range);
+                unordered.remove(range);
+                removeUnspannedColumns(CellRange.parse(range));
+            }
+        }
+    }
+
+    private void removeUnspannedColumns(CellRange range) {
+
+        NavigableMap<Integer, NavigableMap<Integer, String>> columns = orderedCells.get(range.sheet());
+        for (int column = range.startColumn(); column <= range.endColumn(); column++) {
+            if (!ranges.spans(range.sheet(), column)) {
+                columns.remove(column);
+            }
+        }
+        if (columns.isEmpty()) {
+            orderedCells.remove(range.sheet());
+        }
+    }
+
+    private void restore(Map<String, Collection<String>> oldPrecedents) {
+        oldPrecedents.forEach((cellId, cellPrecedents) -> {
+            addRanges(cellPrecedents);
+            replaceEdges(cellId, cellPrecedents);
+        });
+        rebuildOrder();
+    }
+
+    /**
+     * @return the position of the cell, a new cell has no precedent yet and is ordered last, or first if a range holds it.
+     */
+    private int orderOf(String cellId) {
+
+        Integer position = order.get(cellId);
+        if (position == null) {
+            position = ranges.rangesContaining(cellId).isEmpty() ? nextOrder++ : firstOrder--;
+            order.put(cellId, position);
+            indexOrderedCell(cellId);
+        }
+        return position;
+    }
+
+    private void indexOrderedCell(String cellId) {
+
+        if (orderedCells.isEmpty() || CellRange.isRange(cellId)) {
+            return;
+        }
+        String sheet = CellAddress.sheetPrefixOf(cellId);
+        long location = CellAddress.locate(cellId, sheet.length(), cellId.length());
+        NavigableMap<Integer, NavigableMap<Integer, String>> columns = location < 0 ? null : orderedCells.get(sheet);
+        NavigableMap<Integer, String> rows = columns == null ? null : columns.get((int) (location >>> 32));
+        if (rows != null) {
+            rows.put((int) location, cellId);
+        }
+    }
+
+    /**
+     * @return the referenced cells and ranges of a cell, or the ordered cells held by a range.
+     */
+    private Collection<String> precedentsOf(String id) {
+
+        CellRange range = CellRange.isRange(id) ? ranges.get(id) : null;
+        if (range == null) {
+            return precedents.getOrDefault(id, Collections.emptyList());
+        }
+        List<String> cells = new ArrayList<>();
+        NavigableMap<Integer, NavigableMap<Integer, String>> columns = orderedCells.getOrDefault(range.sheet(), Collections.emptyNavigableMap());
+        for (NavigableMap<Integer, String> rows : columns.subMap(range.startColumn(), true, range.endColumn(), true).values()) {
+            cells.addAll(rows.subMap(range.startRow(), true, range.endRow(), true).values());
+        }
+        return cells;
+    }
+
+    /**
+     * @return the cells referencing a cell or a range, and the referenced ranges holding a cell.
+     */
+    private Collection<String> dependentsOf(String id) {
+
+        Collection<String> cellDependents = dependents.getOrDefault(id, Collections.emptySet());
+        List<String> holdingRanges = ranges.rangesContaining(id);
+        if (holdingRanges.isEmpty()) {
+            return cellDependents;
+        }
+        List<String> all = new ArrayList<>(cellDependents);
+        all.addAll(holdingRanges);
+        return all;
+    }
+
+    private Set<String> replaceEdges(String cellId, Collection<String> newPrecedents) {
+
+        Collection<String> oldPrecedents = precedents.remove(cellId);
+        if (oldPrecedents != null) {
+            for (String precedent : oldPrecedents) {
+                Collection<String> precedentDependents = dependents.get(precedent);
+                precedentDependents.remove(cellId);
+                if (precedentDependents.isEmpty()) {
+                    dependents.remove(precedent);
+                }
+            }
+        }
+        if (!newPrecedents.isEmpty()) {
+            precedents.put(cellId, List.copyOf(new LinkedHashSet<>(newPrecedents)));
+            for (String precedent : newPrecedents) {
+                dependents.computeIfAbsent(precedent, key -> new HashSet<>(4)).add(cellId);
+            }
+        }
+        return oldPrecedents == null ? Collections.emptySet() : new LinkedHashSet<>(oldPrecedents);
+    }
+
+    private List<String> collect(String start, int bound, boolean forward) {
+        Set<String> visited = new HashSet<>();
+        visited.add(start);
+        return collect(start, bound, forward, visited);
+    }
+
+    /**
+     * Iterative depth first search from the start cell, along the dependents when searching forward and the precedents
+     * when searching backward, only entering cells ordered up to the bound when searching forward, or from the bound
+     * when searching backward. The unordered cells have no position, only the unbounded searches enter them.
+     */
+    private List<String> collect(String start, int bound, boolean forward, Set<String> visited) {
+
+        List<String> reached = new ArrayList<>();
+        Deque<String> pending = new ArrayDeque<>();
+        pending.push(start);
+        while (!pending.isEmpty()) {
+            String current = pending.pop();
+            reached.add(current);
+            for (String next : forward ? dependentsOf(current) : precedentsOf(current)) {
+                boolean inBounds = forward ? bound == Integer.MAX_VALUE || !unordered.contains(next) && orderOf(next) <= bound
+                        : orderOf(next) >= bound;
+                if (inBounds && visited.add(next)) {
+                    pending.push(next);
+                }
+            }
+        }
+        return reached;
+    }
+
+    private boolean reaches(String start, Set<String> targets, int bound) {
+
+        for (String cell : collect(start, bound, true)) {
+            if (targets.contains(cell)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Moves the backward cells before the forward cells, reusing the positions they already occupy.
+     */
+    private void reorder(List<String> backward, List<String> forward) {
+
+        Comparator<String> byOrder = Comparator.comparing(this::orderOf);
+        backward.sort(byOrder);
+        forward.sort(byOrder);
+        List<String> cells = new ArrayList<>(backward);
+        cells.addAll(forward);
+        int[] positions = cells.stream().mapToInt(this::orderOf).sorted().toArray();
+        for (int i = 0; i < positions.length; i++) {
+            order.put(cells.get(i), positions[i]);
+        }
+    }
+
+    /**
+     * Recomputes the topological order from scratch with Kahn's algorithm.
+     * Cells left without a position are on a cycle or depend on one.
+     */
+    private void rebuildOrder() {
+
+        order.clear();
+        orderedCells.values().forEach(columns -> columns.values().forEach(Map::clear));
+        unordered.clear();
+        nextOrder = 0;
+        firstOrder = -1;
+        Set<String> cells = new HashSet<>(precedents.keySet());
+        cells.addAll(dependents.keySet());
+        Map<String, Integer> inDegree = new HashMap<>();
+        cells.forEach(cell -> inDegree.put(cell, 0));
+        for (String cell : cells) {
+            for (String dependent : dependentsOf(cell)) {
+                inDegree.merge(dependent, 1, Integer::sum);
+            }
+        }
+        Deque<String> ready = new ArrayDeque<>();
+        inDegree.forEach((cell, degree) -> {
+            if (degree == 0) {
+                ready.add(cell);
+            }
+        });
+        while (!ready.isEmpty()) {
+            String current = ready.poll();
+            order.put(current, nextOrder++);
+            indexOrderedCell(current);
+            for (String dependent : dependentsOf(current)) {
+                if (inDegree.merge(dependent, -1, Integer::sum) == 0) {
+                    ready.add(dependent);
+                }
+            }
+        }
+        for (String cell : cells) {
+            if (!order.containsKey(cell)) {
+                unordered.add(cell);
+            }
+        }
+    }
+}
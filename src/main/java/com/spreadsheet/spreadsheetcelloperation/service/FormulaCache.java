@@ -0,0 +1,92 @@
+package com.spreadsheet.spreadsheetcelloperation.service;
+
+import com.spreadsheet.spreadsheetcelloperation.model.Formula;
+import com.spreadsheet.spreadsheetcelloperation.utils.FormulaCompiler;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the compiled formula of the formula cells, so that reads do not parse the expression again.
+ * Beyond the maximum size, arbitrary formulas are evicted and compiled again when they are next read.
+ */
+@Component
+public class FormulaCache implements MeterBinder {
+
+    private final Map<String, Formula> formulas = new ConcurrentHashMap<>();
+
+    private final int maxSize;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    public FormulaCache(@Value("${spreadsheet.cache.max-formulas:1000000}") int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the compiled formula of a cell, compiling and caching it if the cache
+     * has no entry for the cell or holds an entry for a different expression.
+     *
+     * @param cellId     The ID of the cell.
+     * @param expression The expression of the cell without the leading '='.
+     * @return the compiled formula.
+     */
+    public Formula getOrCompile(String cellId, String expression) {
+
+        Formula formula = formulas.get(cellId);
+        if (formula == null || !formula.getSource().equals(expression)) {
+            misses.increment();
+            formula = FormulaCompiler.compile(expression, cellId);
+            formulas.put(cellId, formula);
+            if (formulas.size() > maxSize) {
+                evictOverflow(cellId);
+            }
+        }
+        else {
+            hits.increment();
+        }
+        return formula;
+    }
+
+    /**
+     * Evicts formulas other than the one just compiled until the cache is back to its maximum size.
+     */
+    private void evictOverflow(String compiledCellId) {
+
+        Iterator<String> cellIds = formulas.keySet().iterator();
+        while (formulas.size() > maxSize && cellIds.hasNext()) {
+            if (!cellIds.next().equals(compiledCellId)) {
+                cellIds.remove();
+                evictions.increment();
+            }
+        }
+    }
+
+    public void invalidate(String cellId) {
+        formulas.remove(cellId);
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("spreadsheet.cache.lookups", hits, LongAdder::sum)
+                .tags("cache", "formula", "result", "hit").register(registry);
+        FunctionCounter.builder("spreadsheet.cache.lookups", misses, LongAdder::sum)
+                .tags("cache", "formula", "result", "miss").register(registry);
+        FunctionCounter.builder("spreadsheet.cache.evictions", evictions, LongAdder::sum)
+                .tag("cache", "formula").register(registry);
+        Gauge.builder("spreadsheet.cache.size", formulas, Map::size)
+                .tag("cache", "formula").register(registry);
+    }
+}
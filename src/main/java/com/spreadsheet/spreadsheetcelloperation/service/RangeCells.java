@@ -0,0 +1,287 @@
+package com.spreadsheet.spreadsheetcelloperation.service;
+
+import com.spreadsheet.spreadsheetcelloperation.model.Cell;
+import com.spreadsheet.spreadsheetcelloperation.model.CellAddress;
+import com.spreadsheet.spreadsheetcelloperation.model.CellRange;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The cells of the ranges read by one request, loaded by their coordinates and kept by sheet and column with
+ * their rows sorted, so that a range is walked column by column and row by row, without the IDs of its cells.
+ * Each column also remembers the rows it was loaded for, so overlapping ranges only load their new rows and
+ * a cell of a loaded row that is not held doesn't exist.
+ * <p>
+ * The columns are replaced as a whole when cells are added, so the formulas of a recalculation level walk them
+ * in parallel without locking.
+ */
+final class RangeCells {
+
+    // sheet -> loaded columns of the sheet by column index, copied on write
+    private final Map<String, Column[]> sheets = new ConcurrentHashMap<>();
+
+    /**
+     * @return true if every row of the range was loaded, checked without allocating.
+     */
+    boolean isLoaded(CellRange range) {
+
+        Column[] columns = sheets.get(range.sheet());
+        if (columns == null || range.endColumn() >= columns.length) {
+            return false;
+        }
+        for (int column = range.startColumn(); column <= range.endColumn(); column++) {
+            if (columns[column] == null || !columns[column].covers(range.startRow(), range.endRow())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the parts of the range that are not loaded yet, as rectangles spanning the consecutive columns that
+     * miss the same rows.
+     */
+    synchronized List<CellRange> missingRanges(CellRange range) {
+
+        List<CellRange> missing = new ArrayList<>();
+        Column[] columns = sheets.get(range.sheet());
+        int[] openGaps = null;
+        int openColumn = range.startColumn();
+        for (int column = range.startColumn(); column <= range.endColumn(); column++) {
+            Column loaded = columns == null || column >= columns.length ? null : columns[column];
+            int[] gaps = loaded == null ? new int[]{range.startRow(), range.endRow()} : loaded.gaps(range.startRow(), range.endRow());
+            if (!Arrays.equals(gaps, openGaps)) {
+                addRectangles(missing, range.sheet(), openGaps, openColumn, column - 1);
+                openGaps = gaps;
+                openColumn = column;
+            }
+        }
+        addRectangles(missing, range.sheet(), openGaps, openColumn, range.endColumn());
+        return missing;
+    }
+
+    private static void addRectangles(List<CellRange> missing, String sheet, int[] gaps, int startColumn, int endColumn) {
+
+        if (gaps == null) {
+            return;
+        }
+        for (int index = 0; index < gaps.length; index += 2) {
+            missing.add(new CellRange(sheet, startColumn, gaps[index], endColumn, gaps[index + 1]));
+        }
+    }
+
+    /**
+     * Adds the cells loaded for the given rectangles, and remembers their rows as loaded.
+     * A cell loaded before is kept rather than replaced.
+     */
+    synchronized void add(List<CellRange> loadedRanges, List<Cell> cells) {
+
+        // sheet -> column index -> loaded rows, as start and end pairs
+        Map<String, Map<Integer, List<int[]>>> loadedRows = new HashMap<>();
+        for (CellRange range : loadedRanges) {
+            Map<Integer, List<int[]>> columns = loadedRows.computeIfAbsent(range.sheet(), key -> new HashMap<>());
+            for (int column = range.startColumn(); column <= range.endColumn(); column++) {
+                columns.computeIfAbsent(column, key -> new ArrayList<>()).add(new int[]{range.startRow(), range.endRow()});
+            }
+        }
+        // sheet -> column index -> loaded cells
+        Map<String, Map<Integer, List<Cell>>> loadedCells = new HashMap<>();
+        for (Cell cell : cells) {
+            String cellId = cell.getCellId();
+            String sheet = CellAddress.sheetPrefixOf(cellId);
+            long location = CellAddress.locate(cellId, sheet.length(), cellId.length());
+            loadedCells.computeIfAbsent(sheet, key -> new HashMap<>())
+                    .computeIfAbsent((int) (location >>> 32), key -> new ArrayList<>()).add(cell);
+        }
+        loadedRows.forEach((sheet, columns) -> {
+            Column[] previous = sheets.getOrDefault(sheet, new Column[0]);
+            int size = Math.max(previous.length, Collections.max(columns.keySet()) + 1);
+            Column[] updated = Arrays.copyOf(previous, size);
+            Map<Integer, List<Cell>> sheetCells = loadedCells.getOrDefault(sheet, Collections.emptyMap());
+            columns.forEach((column, rows) -> {
+                Column loaded = updated[column] == null ? Column.EMPTY : updated[column];
+                updated[column] = loaded.with(sheet.length(), rows, sheetCells.getOrDefault(column, Collections.emptyList()));
+            });
+            sheets.put(sheet, updated);
+        });
+    }
+
+    /**
+     * @return the loaded cells of a column, or null if none of its rows was loaded.
+     */
+    Column column(String sheet, int column) {
+
+        Column[] columns = sheets.get(sheet);
+        return columns == null || column >= columns.length ? null : columns[column];
+    }
+
+    /**
+     * @return true if the row of the cell was loaded, in which case the cell is held if it exists.
+     */
+    boolean covers(String cellId) {
+
+        int sheetStart = CellAddress.workbookEnd(cellId);
+        int cellStart = sheetStart < 0 ? -1 : CellAddress.sheetEnd(cellId, sheetStart);
+        long location = cellStart < 0 ? -1 : CellAddress.locate(cellId, cellStart, cellId.length());
+        Column column = location < 0 ? null : column(cellId.substring(0, cellStart), (int) (location >>> 32));
+        return column != null && column.covers((int) location);
+    }
+
+    /**
+     * @return the loaded cells of the range, row by row.
+     */
+    List<Cell> cellsOf(CellRange range) {
+
+        // row and column of each cell, the column in the low bits, so that sorting the keys orders the cells row by row
+        List<Long> keys = new ArrayList<>();
+        Map<Long, Cell> cells = new HashMap<>();
+        for (int columnIndex = range.startColumn(); columnIndex <= range.endColumn(); columnIndex++) {
+            Column column = column(range.sheet(), columnIndex);
+            if (column == null) {
+                continue;
+            }
+            for (int index = column.indexOf(range.startRow()); index < column.size() && column.rowAt(index) <= range.endRow(); index++) {
+                long key = ((long) column.rowAt(index) << 32) | columnIndex;
+                keys.add(key);
+                cells.put(key, column.cellAt(index));
+            }
+        }
+        Collections.sort(keys);
+        return keys.stream().map(cells::get).toList();
+    }
+
+    /**
+     * The loaded cells of a column sorted by row, and the rows they were loaded for.
+     */
+    static final class Column {
+
+        private static final Column EMPTY = new Column(new int[0], new Cell[0], new int[0]);
+
+        private final int[] rows;
+
+        private final Cell[] cells;
+
+        // loaded rows, sorted and disjoint start and end pairs
+        private final int[] loaded;
+
+        private Column(int[] rows, Cell[] cells, int[] loaded) {
+            this.rows = rows;
+            this.cells = cells;
+            this.loaded = loaded;
+        }
+
+        int size() {
+            return rows.length;
+        }
+
+        int rowAt(int index) {
+            return rows[index];
+        }
+
+        Cell cellAt(int index) {
+            return cells[index];
+        }
+
+        /**
+         * @return the index of the first cell at or after the row.
+         */
+        int indexOf(int row) {
+            int index = Arrays.binarySearch(rows, row);
+            return index < 0 ? -index - 1 : index;
+        }
+
+        boolean covers(int row) {
+            return covers(row, row);
+        }
+
+        /**
+         * @return true if the rows from start to end were loaded, the loaded rows being merged into disjoint intervals.
+         */
+        boolean covers(int start, int end) {
+            for (int index = 0; index < loaded.length; index += 2) {
+                if (start >= loaded[index] && end <= loaded[index + 1]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return the rows between start and end that were not loaded, as start and end pairs.
+         */
+        private int[] gaps(int start, int end) {
+
+            int[] gaps = new int[loaded.length + 2];
+            int count = 0;
+            int next = start;
+            for (int index = 0; index < loaded.length && next <= end; index += 2) {
+                if (loaded[index + 1] < next) {
+                    continue;
+                }
+                if (loaded[index] > next) {
+                    gaps[count++] = next;
+                    gaps[count++] = Math.min(end, loaded[index] - 1);
+                }
+                next = loaded[index + 1] + 1;
+            }
+            if (next <= end) {
+                gaps[count++] = next;
+                gaps[count++] = end;
+            }
+            return Arrays.copyOf(gaps, count);
+        }
+
+        private Column with(int cellStart, List<int[]> loadedRows, List<Cell> loadedCells) {
+
+            // the loaded cells sorted by row, the row in the high bits of the key and the index of the cell in the low bits
+            long[] keys = new long[loadedCells.size()];
+            for (int index = 0; index < keys.length; index++) {
+                String cellId = loadedCells.get(index).getCellId();
+                keys[index] = CellAddress.locate(cellId, cellStart, cellId.length()) << 32 | index;
+            }
+            Arrays.sort(keys);
+            // merged with the cells loaded before, which are kept, a cell loaded twice by overlapping rectangles is added once
+            int[] mergedRows = new int[rows.length + keys.length];
+            Cell[] mergedCells = new Cell[mergedRows.length];
+            int size = 0;
+            int previous = 0;
+            for (int index = 0; index < keys.length || previous < rows.length; ) {
+                int row;
+                Cell cell;
+                if (index == keys.length || previous < rows.length && rows[previous] <= (int) (keys[index] >>> 32)) {
+                    row = rows[previous];
+                    cell = cells[previous++];
+                }
+                else {
+                    row = (int) (keys[index] >>> 32);
+                    cell = loadedCells.get((int) keys[index++]);
+                }
+                if (size == 0 || mergedRows[size - 1] != row) {
+                    mergedRows[size] = row;
+                    mergedCells[size++] = cell;
+                }
+            }
+            mergedRows = Arrays.copyOf(mergedRows, size);
+            mergedCells = Arrays.copyOf(mergedCells, size);
+
+            List<int[]> intervals = new ArrayList<>(loadedRows);
+            for (int index = 0; index < loaded.length; index += 2) {
+                intervals.add(new int[]{loaded[index], loaded[index + 1]});
+            }
+            intervals.sort(Comparator.comparingInt(interval -> interval[0]));
+            int[] mergedLoaded = new int[intervals.size() * 2];
+            int count = 0;
+            for (int[] interval : intervals) {
+                if (count > 0 && interval[0] <= mergedLoaded[count - 1] + 1) {
+                    mergedLoaded[count - 1] = Math.max(mergedLoaded[count - 1], interval[1]);
+                }
+                else {
+                    mergedLoaded[count++] = interval[0];
+                    mergedLoaded[count++] = interval[1];
+                }
+            }
+            return new Column(mergedRows, mergedCells, Arrays.copyOf(mergedLoaded, count));
+        }
+    }
+}
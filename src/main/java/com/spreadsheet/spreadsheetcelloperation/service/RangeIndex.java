@@ -0,0 +1,156 @@
+package com.spreadsheet.spreadsheetcelloperation.service;
+
+import com.spreadsheet.spreadsheetcelloperation.model.CellAddress;
+import com.spreadsheet.spreadsheetcelloperation.model.CellRange;
+
+import java.util.*;
+
+/**
+ * Ranges indexed by sheet and column, so that the ranges holding a cell are found by an interval lookup in the
+ * column of the cell instead of by expanding every range into the IDs of its cells.
+ * <p>
+ * The ranges of a column are split by the power of two of their number of rows and kept sorted by their first
+ * row, so only the ranges starting less than twice their length above the cell are checked. A lookup checks
+ * about twice as many ranges as it finds, even among thousands of overlapping ranges of one column.
+ * <p>
+ * Not thread-safe, the owner of the index serializes its updates and lookups.
+ */
+final class RangeIndex {
+
+    // lengths up to the number of rows of a sheet, in powers of two
+    private static final int LENGTH_CLASSES = Integer.SIZE - Integer.numberOfLeadingZeros(CellAddress.MAX_ROWS);
+
+    // range ID -> range
+    private final Map<String, CellRange> ranges = new HashMap<>();
+
+    // sheet -> column index -> length class -> first row -> IDs of the ranges spanning the column
+    private final Map<String, Map<Integer, NavigableMap<Integer, Set<String>>[]>> sheets = new HashMap<>();
+
+    /**
+     * @return false if the range was already indexed.
+     */
+    boolean add(String rangeId) {
+
+        if (ranges.containsKey(rangeId)) {
+            return false;
+        }
+        CellRange range = CellRange.parse(rangeId);
+        ranges.put(rangeId, range);
+        Map<Integer, NavigableMap<Integer, Set<String>>[]> columns = sheets.computeIfAbsent(range.sheet(), key -> new HashMap<>());
+        int lengthClass = lengthClassOf(range);
+        for (int column = range.startColumn(); column <= range.endColumn(); column++) {
+            NavigableMap<Integer, Set<String>>[] byLength = columns.computeIfAbsent(column, key -> newLengthClasses());
+            if (byLength[lengthClass] == null) {
+                byLength[lengthClass] = new TreeMap<>();
+            }
+            byLength[lengthClass].computeIfAbsent(range.startRow(), key -> new HashSet<>(4)).add(rangeId);
+        }
+        return true;
+    }
+
+    /**
+     * @return false if the range was not indexed.
+     */
+    boolean remove(String rangeId) {
+
+        CellRange range = ranges.remove(rangeId);
+        if (range == null) {
+            return false;
+        }
+        Map<Integer, NavigableMap<Integer, Set<String>>[]> columns = sheets.get(range.sheet());
+        int lengthClass = lengthClassOf(range);
+        for (int column = range.startColumn(); column <= range.endColumn(); column++) {
+            NavigableMap<Integer, Set<String>>[] byLength = columns.get(column);
+            Set<String> starting = byLength[lengthClass].get(range.startRow());
+            starting.remove(rangeId);
+            if (starting.isEmpty()) {
+                byLength[lengthClass].remove(range.startRow());
+                if (byLength[lengthClass].isEmpty()) {
+                    byLength[lengthClass] = null;
+                    if (Arrays.stream(byLength).allMatch(Objects::isNull)) {
+                        columns.remove(column);
+                    }
+                }
+            }
+        }
+        if (columns.isEmpty()) {
+            sheets.remove(range.sheet());
+        }
+        return true;
+    }
+
+    boolean contains(String rangeId) {
+        return ranges.containsKey(rangeId);
+    }
+
+    /**
+     * @return the indexed range, or null if it is not indexed.
+     */
+    CellRange get(String rangeId) {
+        return ranges.get(rangeId);
+    }
+
+    boolean isEmpty() {
+        return ranges.isEmpty();
+    }
+
+    void clear() {
+        ranges.clear();
+        sheets.clear();
+    }
+
+    /**
+     * @return true if an indexed range spans the column of the sheet.
+     */
+    boolean spans(String sheet, int column) {
+        Map<Integer, NavigableMap<Integer, Set<String>>[]> columns = sheets.get(sheet);
+        return columns != null && columns.containsKey(column);
+    }
+
+    /**
+     * @return the IDs of the indexed ranges holding the cell, empty for a range or an ID that is not a cell ID.
+     */
+    List<String> rangesContaining(String cellId) {
+
+        if (ranges.isEmpty() || CellRange.isRange(cellId)) {
+            return List.of();
+        }
+        int sheetStart = CellAddress.workbookEnd(cellId);
+        int cellStart = sheetStart < 0 ? -1 : CellAddress.sheetEnd(cellId, sheetStart);
+        long location = cellStart < 0 ? -1 : CellAddress.locate(cellId, cellStart, cellId.length());
+        Map<Integer, NavigableMap<Integer, Set<String>>[]> columns = location < 0 ? null : sheets.get(cellId.substring(0, cellStart));
+        NavigableMap<Integer, Set<String>>[] byLength = columns == null ? null : columns.get((int) (location >>> 32));
+        if (byLength == null) {
+            return List.of();
+        }
+        int row = (int) location;
+        List<String> containing = new ArrayList<>();
+        for (int lengthClass = 0; lengthClass < LENGTH_CLASSES; lengthClass++) {
+            if (byLength[lengthClass] == null) {
+                continue;
+            }
+            // the ranges of this class are shorter than 2^(lengthClass + 1) rows
+            int earliestStart = row - (1 << (lengthClass + 1)) + 2;
+            for (Set<String> starting : byLength[lengthClass].subMap(earliestStart, true, row, true).values()) {
+                for (String rangeId : starting) {
+                    if (ranges.get(rangeId).endRow() >= row) {
+                        containing.add(rangeId);
+                    }
+                }
+            }
+        }
+        return containing;
+    }
+
+    /**
+     * @return the power of two of the number of rows of the range, rounded down.
+     */
+    private static int lengthClassOf(CellRange range) {
+        return Integer.SIZE - 1 - Integer.numberOfLeadingZeros(range.endRow() - range.startRow() + 1);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static NavigableMap<Integer, Set<String>>[] newLengthClasses() {
+        return new NavigableMap[LENGTH_CLASSES];
+    }
+}
@@ -0,0 +1,435 @@
+package com.spreadsheet.spreadsheetcelloperation.service;
+
+import com.spreadsheet.spreadsheetcelloperation.model.CellAddress;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the recalculation of the cells affected by a write level by level. The cells of a level only
+ * reference cells of earlier levels, so a level with enough cells is split across a ForkJoin pool,
+ * while smaller levels are evaluated on the calling thread. Every cell is evaluated from the values
+ * of the previous levels, so the results don't depend on how a level is split.
+ * <p>
+ * In the background mode the written cells are queued once the write commits, so the write returns
+ * without waiting for the recalculation. A worker thread recalculates the queued cells of a workbook
+ * together, once no write to them was queued for the debounce interval, so a burst of writes to the
+ * same cells is recalculated once. A cell written more often than the debounce interval is recalculated
+ * once it has been queued for the max wait, so its dependents don't stay stale while it keeps being written.
+ * The cells watched by subscribers and the cells a consistent read waits for are recalculated first, the
+ * latter without waiting for the debounce interval.
+ * <p>
+ * One worker thread serves every workbook, so the background recalculation never takes more than one thread
+ * from the requests, plus the pool evaluating its large levels. The batches of the workbooks run one after the
+ * other, in the order their cells were queued, so a workbook with a long recalculation delays the others.
+ * <p>
+ * In the lazy mode writes only mark the computed values of the affected cells stale, and a value is
+ * computed by the first read of the cell.
+ */
+@Component
+public class RecalculationScheduler implements MeterBinder {
+
+    private static final Logger logger = Logger.getLogger(RecalculationScheduler.class.getName());
+
+    // Bound on the written cells recalculated together by the worker
+    private static final int MAX_BATCH_SIZE = 10_000;
+
+    public enum Mode {
+
+        /** The affected cells are recalculated on the writing thread once the write commits. */
+        EAGER,
+
+        /** The written cells are queued once the write commits and recalculated by a worker thread. */
+        BACKGROUND,
+
+        /** The affected cells are recalculated when read, their subscribers are not pushed new values. */
+        LAZY
+    }
+
+    private final int parallelThreshold;
+
+    private final Mode mode;
+
+    private final long debounceNanos;
+
+    private final long maxWaitNanos;
+
+    private final Duration consistentReadTimeout;
+
+    private final ForkJoinPool pool;
+
+    // written cell ID -> its latest recalculation not finished yet, queued or running
+    private final Map<String, Pending> unfinished = new HashMap<>();
+
+    // queued recalculations in the order they were first queued
+    private final Set<Pending> queue = new LinkedHashSet<>();
+
+    private final LongAdder debouncedWrites = new LongAdder();
+
+    private Timer lag;
+
+    // started with the first queued recalculation
+    private Thread worker;
+
+    private boolean shutdown;
+
+    /**
+     * @param parallelThreshold     The number of cells from which a level is evaluated in parallel.
+     * @param parallelism           The number of threads evaluating a level, or 0 for one per core.
+     * @param mode                  Whether the affected cells are recalculated after the write, in the background or when read.
+     * @param debounce              How long the background mode waits for more writes to a cell before recalculating.
+     * @param maxWait               How long the background mode waits at most since a cell was queued, however often it is written.
+     * @param consistentReadTimeout How long a consistent read waits for the pending recalculations.
+     */
+    public RecalculationScheduler(@Value("${spreadsheet.recalculation.parallel-threshold:512}") int parallelThreshold,
+                                  @Value("${spreadsheet.recalculation.parallelism:0}") int parallelism,
+                                  @Value("${spreadsheet.recalculation.mode:background}") Mode mode,
+                                  @Value("${spreadsheet.recalculation.debounce:50ms}") Duration debounce,
+                                  @Value("${spreadsheet.recalculation.max-wait:1s}") Duration maxWait,
+                                  @Value("${spreadsheet.recalculation.consistent-read-timeout:5s}") Duration consistentReadTimeout) {
+        this.parallelThreshold = parallelThreshold;
+        this.mode = mode;
+        this.debounceNanos = debounce.toNanos();
+        this.maxWaitNanos = maxWait.toNanos();
+        this.consistentReadTimeout = consistentReadTimeout;
+        this.pool = new ForkJoinPool(parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Recalculates the cells affected by a committed write as the mode says: right away, in the background or not at all.
+     *
+     * @param cellIds       The IDs of the written cells, of one workbook.
+     * @param watched       Whether a subscriber watches one of the affected cells, their recalculation runs first.
+     * @param recalculation Recalculates the cells affected by the given written cells.
+     */
+    public void submit(Collection<String> cellIds, boolean watched, Consumer<Collection<String>> recalculation) {
+
+        switch (mode) {
+            case EAGER -> recalculation.accept(cellIds);
+            case BACKGROUND -> enqueue(cellIds, watched, recalculation);
+            case LAZY -> {
+            }
+        }
+    }
+
+    private synchronized void enqueue(Collection<String> cellIds, boolean watched, Consumer<Collection<String>> recalculation) {
+
+        if (shutdown) {
+            return;
+        }
+        long now = System.nanoTime();
+        for (String cellId : cellIds) {
+            Pending pending = unfinished.get(cellId);
+            // a running recalculation may have read the cell before this write, so it is queued again
+            if (pending != null && !pending.started && pending.recalculation == recalculation) {
+                debouncedWrites.increment();
+            }
+            else {
+                pending = new Pending(cellId, recalculation, now);
+                unfinished.put(cellId, pending);
+                queue.add(pending);
+            }
+            // the debounce is restarted by every write, up to the max wait since the cell was queued
+            long debouncedAt = now + debounceNanos;
+            long deadline = pending.queuedAt + maxWaitNanos;
+            pending.readyAt = debouncedAt - deadline < 0 ? debouncedAt : deadline;
+            pending.watched |= watched;
+        }
+        start();
+        notifyAll();
+    }
+
+    /**
+     * @return the written cells whose recalculation is queued or running.
+     */
+    public synchronized Set<String> getUnfinishedCellIds() {
+        return unfinished.isEmpty() ? Set.of() : Set.copyOf(unfinished.keySet());
+    }
+
+    /**
+     * Moves the queued recalculations of the given written cells ahead of the others and waits until they are
+     * finished, for at most the consistent read timeout.
+     *
+     * @return false if they didn't finish in time, or were dropped by the shutdown of the scheduler.
+     */
+    public boolean awaitRecalculation(Collection<String> cellIds) {
+
+        List<CompletableFuture<Void>> finished = new ArrayList<>();
+        synchronized (this) {
+            for (String cellId : cellIds) {
+                Pending pending = unfinished.get(cellId);
+                if (pending != null) {
+                    pending.awaited = true;
+                    finished.add(pending.finished);
+                }
+            }
+            notifyAll();
+        }
+        try {
+            CompletableFuture.allOf(finished.toArray(CompletableFuture[]::new))
+                    .get(consistentReadTimeout.toMillis(), TimeUnit.MILLISECONDS);
+            return true;
+        }
+        catch (TimeoutException | ExecutionException | CancellationException e) {
+            return false;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Evaluates the levels one after the other, the next level starts once every cell of the previous one is evaluated.
+     *
+     * @param levels     The IDs of the affected cells grouped by topological level.
+     * @param evaluation Evaluates one cell, called concurrently for the cells of a large level.
+     */
+    public void run(List<List<String>> levels, Consumer<String> evaluation) {
+
+        for (List<String> level : levels) {
+            if (level.size() < parallelThreshold || pool.getParallelism() == 1) {
+                level.forEach(evaluation);
+            }
+            else {
+                int batchSize = Math.max(1, level.size() / (pool.getParallelism() * 4));
+                pool.invoke(new LevelTask(level, 0, level.size(), batchSize, evaluation));
+            }
+        }
+    }
+
+    private synchronized void start() {
+
+        if (worker != null) {
+            return;
+        }
+        worker = new Thread(this::work, "cell-recalculation-worker");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Recalculates the queued cells batch by batch until the scheduler is shut down.
+     */
+    private void work() {
+
+        while (true) {
+            List<Pending> batch;
+            try {
+                batch = takeBatch();
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+            if (batch == null) {
+                return;
+            }
+            long oldestQueuedAt = batch.stream().mapToLong(pending -> pending.queuedAt).min().orElseThrow();
+            if (lag != null) {
+                lag.record(System.nanoTime() - oldestQueuedAt, TimeUnit.NANOSECONDS);
+            }
+            try {
+                batch.get(0).recalculation.accept(batch.stream().map(pending -> pending.cellId).toList());
+            }
+            catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Background recalculation of " + batch.size() + " written cells failed", e);
+            }
+            finally {
+                finish(batch);
+            }
+        }
+    }
+
+    /**
+     * Waits until a queued recalculation is ready, then takes it with the other ready recalculations of the
+     * same workbook, starting with the awaited ones, then the watched ones.
+     *
+     * @return the batch, or null once the scheduler is shut down.
+     */
+    private synchronized List<Pending> takeBatch() throws InterruptedException {
+
+        while (!shutdown) {
+            long now = System.nanoTime();
+            Pending first = null;
+            long nextReadyAt = Long.MAX_VALUE;
+            for (Pending pending : queue) {
+                if (!pending.isReady(now)) {
+                    nextReadyAt = Math.min(nextReadyAt, pending.readyAt);
+                }
+                else if (first == null || pending.rank() > first.rank()) {
+                    first = pending;
+                }
+            }
+            if (first == null) {
+                if (nextReadyAt == Long.MAX_VALUE) {
+                    wait();
+                }
+                else {
+                    TimeUnit.NANOSECONDS.timedWait(this, nextReadyAt - now);
+                }
+                continue;
+            }
+            String workbook = CellAddress.workbookOf(first.cellId);
+            List<Pending> batch = new ArrayList<>();
+            batch.add(first);
+            for (Pending pending : queue) {
+                if (batch.size() == MAX_BATCH_SIZE) {
+                    break;
+                }
+                if (pending != first && pending.isReady(now) && pending.recalculation == first.recalculation
+                        && CellAddress.workbookOf(pending.cellId).equals(workbook)) {
+                    batch.add(pending);
+                }
+            }
+            batch.forEach(pending -> {
+                queue.remove(pending);
+                pending.started = true;
+            });
+            return batch;
+        }
+        return null;
+    }
+
+    private void finish(List<Pending> batch) {
+
+        synchronized (this) {
+            for (Pending pending : batch) {
+                unfinished.remove(pending.cellId, pending);
+            }
+        }
+        batch.forEach(pending -> pending.finished.complete(null));
+    }
+
+    /**
+     * Stops the worker once its running batch is finished. The queued recalculations are dropped rather than run
+     * while the application stops, the consistent reads waiting for them evaluate the stale formulas themselves.
+     */
+    @PreDestroy
+    public void shutdown() {
+
+        List<Pending> dropped;
+        synchronized (this) {
+            shutdown = true;
+            dropped = new ArrayList<>(queue);
+            queue.clear();
+            for (Pending pending : dropped) {
+                unfinished.remove(pending.cellId, pending);
+            }
+            notifyAll();
+        }
+        if (!dropped.isEmpty()) {
+            logger.info("Dropped the background recalculation of " + dropped.size() + " written cells on shutdown");
+        }
+        dropped.forEach(pending -> pending.finished.completeExceptionally(
+                new CancellationException("The recalculation scheduler was shut down")));
+        pool.shutdown();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("spreadsheet.recalculation.queue.depth", this, RecalculationScheduler::queueDepth)
+                .description("Written cells waiting for their background recalculation").register(registry);
+        FunctionCounter.builder("spreadsheet.recalculation.queue.debounced", debouncedWrites, LongAdder::sum)
+                .description("Writes merged into a recalculation that was already queued").register(registry);
+        lag = Timer.builder("spreadsheet.recalculation.queue.lag")
+                .description("Time from queuing the oldest write of a batch to starting its recalculation").register(registry);
+    }
+
+    private synchronized int queueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * The recalculation of the cells affected by one written cell, merging the writes queued before it starts.
+     */
+    private static final class Pending {
+
+        private final String cellId;
+
+        private final Consumer<Collection<String>> recalculation;
+
+        private final long queuedAt;
+
+        private final CompletableFuture<Void> finished = new CompletableFuture<>();
+
+        private long readyAt;
+
+        private boolean watched;
+
+        private boolean awaited;
+
+        private boolean started;
+
+        Pending(String cellId, Consumer<Collection<String>> recalculation, long queuedAt) {
+            this.cellId = cellId;
+            this.recalculation = recalculation;
+            this.queuedAt = queuedAt;
+        }
+
+        boolean isReady(long now) {
+            return awaited || now - readyAt >= 0;
+        }
+
+        int rank() {
+            return awaited ? 2 : watched ? 1 : 0;
+        }
+    }
+
+    /**
+     * Splits a slice of a level in halves until it is small enough to be evaluated by one thread.
+     */
+    private static class LevelTask extends RecursiveAction {
+
+        private final List<String> level;
+        private final int from;
+        private final int to;
+        private final int batchSize;
+        private final Consumer<String> evaluation;
+
+        LevelTask(List<String> level, int from, int to, int batchSize, Consumer<String> evaluation) {
+            this.level = level;
+            this.from = from;
+            this.to = to;
+            this.batchSize = batchSize;
+            this.evaluation = evaluation;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= batchSize) {
+                for (int i = from; i < to; i++) {
+                    evaluation.accept(level.get(i));
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new LevelTask(level, from, middle, batchSize, evaluation),
+                    new LevelTask(level, middle, to, batchSize, evaluation));
+        }
+    }
+}
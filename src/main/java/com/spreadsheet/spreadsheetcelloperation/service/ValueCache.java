@@ -0,0 +1,277 @@
+package com.spreadsheet.spreadsheetcelloperation.service;
+
+import com.spreadsheet.spreadsheetcelloperation.model.CellAddress;
+import com.spreadsheet.spreadsheetcelloperation.model.CellRange;
+import com.spreadsheet.spreadsheetcelloperation.repository.CellWriteListener;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the computed value of formula cells across requests.
+ * Every cached value remembers the cells it was computed from, so a write to any
+ * upstream cell invalidates exactly the cached values that depend on it.
+ * A value computed from a range is invalidated by a write to any cell of the range.
+ * <p>
+ * A store publishing snapshots invalidates the written cells before the snapshot holding the writes is
+ * published. A reader captures the generation before taking its snapshot and only uses the values cached
+ * up to that generation, so it never mixes its snapshot with values computed from a later one.
+ * <p>
+ * Formulas only reference cells of their own workbook, so the cache is partitioned by workbook, each with
+ * its own generation and lock: the writes to one workbook neither wait for nor discard the values being
+ * cached for another.
+ * <p>
+ * Beyond the maximum number of values over all the workbooks, arbitrary values no other cached value is computed
+ * from are evicted, one partition at a time. An evicted value is computed again by its next read.
+ */
+@Component
+public class ValueCache implements MeterBinder, CellWriteListener {
+
+    // workbook name -> cached values of its cells
+    private final Map<String, Partition> partitions = new ConcurrentHashMap<>();
+
+    private final int maxSize;
+
+    // number of values cached over all the partitions
+    private final AtomicInteger size = new AtomicInteger();
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    public ValueCache(@Value("${spreadsheet.cache.max-values:1000000}") int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public Double get(String cellId) {
+
+        CachedValue cachedValue = partitionOf(cellId).values.get(cellId);
+        if (cachedValue == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return cachedValue.value();
+    }
+
+    /**
+     * @param generation The generation of the workbook captured by the reader before taking its snapshot of the cells.
+     * @return the cached value, unless it was cached after the given generation.
+     */
+    public Double get(String cellId, long generation) {
+
+        CachedValue cachedValue = partitionOf(cellId).values.get(cellId);
+        if (cachedValue == null || cachedValue.generation() > generation) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return cachedValue.value();
+    }
+
+    /**
+     * @return the current generation of the default workbook.
+     */
+    public long getGeneration() {
+        return getGeneration("");
+    }
+
+    /**
+     * @param workbook The name of the workbook, empty for the default workbook.
+     * @return the current generation of the workbook, to be captured before reading the cells a value is computed from.
+     */
+    public long getGeneration(String workbook) {
+        return partitionOfWorkbook(workbook).generation;
+    }
+
+    /**
+     * Caches the computed value of a formula cell, unless a cell of its workbook was invalidated
+     * after the given generation was captured, since the value may then be stale.
+     *
+     * @param cellId     The ID of the formula cell.
+     * @param value      The computed value.
+     * @param references The IDs of the cells and ranges the value was computed from.
+     * @param generation The generation of the workbook captured before the computation started.
+     */
+    public void put(String cellId, Double value, List<String> references, long generation) {
+
+        partitionOf(cellId).put(cellId, value, references, generation);
+        if (size.get() > maxSize) {
+            evictOverflow(cellId);
+        }
+    }
+
+    /**
+     * Evicts values other than the one just cached until the cache is back to its maximum size, without holding
+     * the lock of more than one partition.
+     */
+    private void evictOverflow(String cachedCellId) {
+
+        for (Partition partition : partitions.values()) {
+            int overflow = size.get() - maxSize;
+            if (overflow <= 0) {
+                return;
+            }
+            partition.evict(overflow, cachedCellId);
+        }
+    }
+
+    /**
+     * Removes the cached value of the given cell and of every cached cell computed from it.
+     *
+     * @param cellId The ID of the cell that was written.
+     */
+    public void invalidate(String cellId) {
+        partitionOf(cellId).invalidate(cellId);
+    }
+
+    @Override
+    public void beforePublish(Collection<String> cellIds) {
+
+        Map<String, List<String>> cellIdsByWorkbook = new HashMap<>();
+        cellIds.forEach(cellId -> cellIdsByWorkbook.computeIfAbsent(CellAddress.workbookOf(cellId), key -> new ArrayList<>()).add(cellId));
+        cellIdsByWorkbook.forEach((workbook, workbookCellIds) ->
+                partitionOfWorkbook(workbook).invalidate(workbookCellIds));
+    }
+
+    private Partition partitionOf(String cellId) {
+        return partitionOfWorkbook(CellAddress.workbookOf(cellId));
+    }
+
+    /**
+     * Looks the partition up before creating it, so that finding an existing partition takes no lock.
+     */
+    private Partition partitionOfWorkbook(String workbook) {
+        Partition partition = partitions.get(workbook);
+        return partition != null ? partition : partitions.computeIfAbsent(workbook, key -> new Partition());
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("spreadsheet.cache.lookups", hits, LongAdder::sum)
+                .tags("cache", "value", "result", "hit").register(registry);
+        FunctionCounter.builder("spreadsheet.cache.lookups", misses, LongAdder::sum)
+                .tags("cache", "value", "result", "miss").register(registry);
+        FunctionCounter.builder("spreadsheet.cache.evictions", evictions, LongAdder::sum)
+                .tag("cache", "value").register(registry);
+        Gauge.builder("spreadsheet.cache.size", size, AtomicInteger::get)
+                .tag("cache", "value").register(registry);
+    }
+
+    /**
+     * The cached values of the cells of one workbook.
+     */
+    private final class Partition {
+
+        private final Map<String, CachedValue> values = new ConcurrentHashMap<>();
+
+        // cell ID -> IDs of the cached cells computed from it
+        private final Map<String, Set<String>> dependents = new HashMap<>();
+
+        // the ranges some cached value is computed from, indexed by column
+        private final RangeIndex ranges = new RangeIndex();
+
+        // incremented under the lock once a write is invalidated, read without it
+        private volatile long generation;
+
+        private synchronized void put(String cellId, Double value, List<String> references, long generation) {
+
+            if (generation != this.generation || values.containsKey(cellId)) {
+                return;
+            }
+            values.put(cellId, new CachedValue(value, references, generation));
+            size.incrementAndGet();
+            for (String reference : references) {
+                dependents.computeIfAbsent(reference, key -> new HashSet<>(4)).add(cellId);
+                if (CellRange.isRange(reference)) {
+                    ranges.add(reference);
+                }
+            }
+        }
+
+        private synchronized void invalidate(Collection<String> cellIds) {
+            cellIds.forEach(this::invalidate);
+        }
+
+        /**
+         * Removes the values computed from the cell, then starts the next generation: a reader capturing the previous
+         * one meanwhile is served the values as they were before the write, and can't cache a value of its own.
+         */
+        private synchronized void invalidate(String cellId) {
+
+            Deque<String> pending = new ArrayDeque<>();
+            pending.push(cellId);
+            while (!pending.isEmpty()) {
+                String current = pending.pop();
+                CachedValue removed = values.remove(current);
+                if (removed != null) {
+                    size.decrementAndGet();
+                    for (String reference : removed.references()) {
+                        Set<String> referenceDependents = dependents.get(reference);
+                        if (referenceDependents != null) {
+                            referenceDependents.remove(current);
+                            if (referenceDependents.isEmpty() && ranges.remove(reference)) {
+                                dependents.remove(reference);
+                            }
+                        }
+                    }
+                }
+                ranges.rangesContaining(current).forEach(pending::push);
+                ranges.remove(current);
+                Set<String> currentDependents = dependents.remove(current);
+                if (currentDependents != null) {
+                    currentDependents.forEach(pending::push);
+                }
+            }
+            generation++;
+        }
+
+        /**
+         * Removes up to the given number of values, other than the one just cached, no other cached value is computed
+         * from, so that a write still reaches every cached value computed from it. The generation is left as is, no
+         * value became stale.
+         */
+        private synchronized void evict(int count, String cachedCellId) {
+
+            int evicted = 0;
+            boolean progress = true;
+            // evicting a value may leave the values it was computed from without dependents, evicted by the next pass
+            while (evicted < count && progress) {
+                progress = false;
+                Iterator<Map.Entry<String, CachedValue>> entries = values.entrySet().iterator();
+                while (evicted < count && entries.hasNext()) {
+                    Map.Entry<String, CachedValue> entry = entries.next();
+                    Set<String> cellDependents = dependents.get(entry.getKey());
+                    if (entry.getKey().equals(cachedCellId) || cellDependents != null && !cellDependents.isEmpty()) {
+                        continue;
+                    }
+                    entries.remove();
+                    size.decrementAndGet();
+                    evictions.increment();
+                    evicted++;
+                    progress = true;
+                    for (String reference : entry.getValue().references()) {
+                        Set<String> referenceDependents = dependents.get(reference);
+                        if (referenceDependents != null && referenceDependents.remove(entry.getKey()) && referenceDependents.isEmpty()) {
+                            dependents.remove(reference);
+                            ranges.remove(reference);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private record CachedValue(Double value, List<String> references, long generation) {
+    }
+}
@@ -0,0 +1,118 @@
+package com.spreadsheet.spreadsheetcelloperation.utils;
+
+import com.spreadsheet.spreadsheetcelloperation.exception.CsvFormatException;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads CSV records one at a time from a character stream, through a fixed size buffer, so the input is
+ * never held in memory as a whole. Fields are separated by commas and records by CRLF, LF or CR. A field
+ * in double quotes may hold commas, line breaks and quotes written twice.
+ */
+public class CsvReader {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final Reader reader;
+
+    private final char[] buffer = new char[BUFFER_SIZE];
+
+    private int position;
+
+    private int limit;
+
+    private long line = 1;
+
+    private boolean started;
+
+    public CsvReader(Reader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * @return the fields of the next record, or null at the end of the input.
+     * @throws CsvFormatException if a quoted field is not closed or is followed by other characters.
+     */
+    public List<String> readRecord() throws IOException {
+
+        int c = read();
+        if (!started) {
+            started = true;
+            // byte order mark written by some spreadsheet applications
+            if (c == '\uFEFF') {
+                c = read();
+            }
+        }
+        if (c < 0) {
+            return null;
+        }
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        while (true) {
+            if (c == '"' && field.isEmpty()) {
+                long startLine = line;
+                for (c = read(); ; c = read()) {
+                    if (c < 0) {
+                        throw new CsvFormatException("Quoted field opened on line " + startLine + " is not closed");
+                    }
+                    if (c == '"') {
+                        c = read();
+                        if (c != '"') {
+                            break;
+                        }
+                    }
+                    else if (c == '\n') {
+                        line++;
+                    }
+                    field.append((char) c);
+                }
+                if (c >= 0 && c != ',' && c != '\n' && c != '\r') {
+                    throw new CsvFormatException("Unexpected '" + (char) c + "' after quoted field on line " + line);
+                }
+            }
+            else {
+                while (c >= 0 && c != ',' && c != '\n' && c != '\r') {
+                    field.append((char) c);
+                    c = read();
+                }
+            }
+            fields.add(field.toString());
+            field.setLength(0);
+            if (c != ',') {
+                break;
+            }
+            c = read();
+        }
+        if (c == '\r' && peek() == '\n') {
+            read();
+        }
+        if (c >= 0) {
+            line++;
+        }
+        return fields;
+    }
+
+    private int read() throws IOException {
+        return fill() ? buffer[position++] : -1;
+    }
+
+    private int peek() throws IOException {
+        return fill() ? buffer[position] : -1;
+    }
+
+    private boolean fill() throws IOException {
+
+        while (position == limit) {
+            limit = reader.read(buffer);
+            position = 0;
+            if (limit < 0) {
+                limit = 0;
+                return false;
+            }
+        }
+        return true;
+    }
+}
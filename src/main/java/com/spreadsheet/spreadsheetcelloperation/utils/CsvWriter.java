@@ -0,0 +1,52 @@
+package com.spreadsheet.spreadsheetcelloperation.utils;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes CSV records in the format read by {@link CsvReader}, quoting the fields that need it.
+ */
+public class CsvWriter {
+
+    private final Writer writer;
+
+    public CsvWriter(Writer writer) {
+        this.writer = writer;
+    }
+
+    /**
+     * Writes the first fields of a record followed by a line break, null fields are written empty.
+     */
+    public void writeRecord(String[] fields, int count) throws IOException {
+
+        for (int index = 0; index < count; index++) {
+            if (index > 0) {
+                writer.write(',');
+            }
+            if (fields[index] != null) {
+                writeField(fields[index]);
+            }
+        }
+        writer.write("\r\n");
+    }
+
+    public void flush() throws IOException {
+        writer.flush();
+    }
+
+    private void writeField(String field) throws IOException {
+
+        boolean quoted = false;
+        for (int index = 0; index < field.length() && !quoted; index++) {
+            char c = field.charAt(index);
+            quoted = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quoted) {
+            writer.write(field);
+            return;
+        }
+        writer.write('"');
+        writer.write(field.replace("\"", "\"\""));
+        writer.write('"');
+    }
+}
@@ -0,0 +1,449 @@
+package com.spreadsheet.spreadsheetcelloperation.utils;
+
+import com.spreadsheet.spreadsheetcelloperation.exception.ExpressionEvaluationException;
+import com.spreadsheet.spreadsheetcelloperation.model.CellAddress;
+import com.spreadsheet.spreadsheetcelloperation.model.CellRange;
+import com.spreadsheet.spreadsheetcelloperation.model.Formula;
+import com.spreadsheet.spreadsheetcelloperation.model.FormulaNode;
+
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+public class FormulaCompiler {
+
+    // nesting of parentheses, functions and unary minus accepted before the expression is rejected
+    private static final int MAX_DEPTH = 256;
+
+    // cells of a range accepted in a formula, those of a full column
+    private static final long MAX_RANGE_SIZE = CellAddress.MAX_ROWS;
+
+    private static final FormulaNode.AggregateFunction[] AGGREGATE_FUNCTIONS = FormulaNode.AggregateFunction.values();
+
+    private static final FormulaNode.MathFunction[] MATH_FUNCTIONS = FormulaNode.MathFunction.values();
+
+    /**
+     * Compiles an expression (without the leading '=') of a cell of the default sheet into a formula tree.
+     *
+     * @see #compile(String, String)
+     */
+    public static Formula compile(String expression) {
+        return compile(expression, "A1");
+    }
+
+    /**
+     * Compiles an expression (without the leading '=') into a formula tree.
+     * Besides arithmetic, expressions may apply SUM, AVG, MIN, MAX and COUNT to ranges like A1:A10000 and values,
+     * apply the functions of one value of {@link FormulaNode.MathFunction}, draw RANDOM() and use the constants PI
+     * and E. The names of the functions and constants are matched in any case, so the formulas written for
+     * javaluator, like =sqrt(A1)*pi or =max(1,2), compile as well.
+     * A reference like B7 is a cell of the sheet of the formula cell, and Sheet2!B7 a cell of another sheet of
+     * its workbook, the compiled formula references both by their qualified cell ID.
+     * <p>
+     * The expression is parsed in a single pass over its characters. From the lowest to the highest precedence
+     * the operators are + and -, then *, / and %, then unary minus, then ^, which all group from left to right,
+     * so -2^2 is -4 and 2^3^2 is 64.
+     *
+     * @param expression The expression to compile.
+     * @param cellId     The ID of the cell holding the formula.
+     * @return the compiled formula.
+     * @throws ExpressionEvaluationException if the expression is not valid, with the position of the error.
+     */
+    public static Formula compile(String expression, String cellId) {
+
+        String workbook = CellAddress.workbookOf(cellId);
+        Parser parser = new Parser(expression, CellAddress.sheetPrefixOf(cellId), workbook.isEmpty() ? "" : "[" + workbook + "]");
+        try {
+            FormulaNode root = parser.parse();
+            return new Formula(expression, root, new ArrayList<>(parser.cells), new ArrayList<>(parser.ranges));
+        }
+        catch (RuntimeException e) {
+            throw new ExpressionEvaluationException("Error evaluating expression: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return true if the ID is a cell ID like A1 or Sheet2!AB12, optionally qualified with a workbook like [acme]A1.
+     */
+    public static boolean isCellId(String id) {
+        return CellAddress.isCellId(id);
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isUpperCaseLetter(char c) {
+        return c >= 'A' && c <= 'Z';
+    }
+
+    /**
+     * Recursive descent parser over the characters of one expression, collecting the cells and ranges
+     * it references. Positions in the error messages count from 1.
+     */
+    private static final class Parser {
+
+        private final char[] chars;
+
+        private final CharBuffer text;
+
+        // qualifies the references without a sheet, like [acme]Sheet2!
+        private final String sheetPrefix;
+
+        // qualifies the references with a sheet, like [acme]
+        private final String workbookPrefix;
+
+        private int position;
+
+        private int depth;
+
+        private final Set<String> cells = new LinkedHashSet<>();
+
+        private final Set<CellRange> ranges = new LinkedHashSet<>();
+
+        private Parser(String expression, String sheetPrefix, String workbookPrefix) {
+            this.chars = expression.toCharArray();
+            this.text = CharBuffer.wrap(chars);
+            this.sheetPrefix = sheetPrefix;
+            this.workbookPrefix = workbookPrefix;
+        }
+
+        private FormulaNode parse() {
+
+            FormulaNode root = parseSum();
+            skipSpaces();
+            if (position < chars.length) {
+                throw unexpected();
+            }
+            return root;
+        }
+
+        private FormulaNode parseSum() {
+
+            FormulaNode left = parseProduct();
+            for (char operator = nextOperator("+-"); operator != 0; operator = nextOperator("+-")) {
+                left = new FormulaNode.Binary(operator, left, parseProduct());
+            }
+            return left;
+        }
+
+        private FormulaNode parseProduct() {
+
+            FormulaNode left = parseUnary();
+            for (char operator = nextOperator("*/%"); operator != 0; operator = nextOperator("*/%")) {
+                left = new FormulaNode.Binary(operator, left, parseUnary());
+            }
+            return left;
+        }
+
+        private FormulaNode parseUnary() {
+
+            skipSpaces();
+            if (position < chars.length && chars[position] == '-') {
+                enter();
+                position++;
+                FormulaNode operand = parseUnary();
+                depth--;
+                return new FormulaNode.Negate(operand);
+            }
+            return parsePower();
+        }
+
+        private FormulaNode parsePower() {
+
+            FormulaNode left = parsePrimary();
+            while (nextOperator("^") != 0) {
+                left = new FormulaNode.Binary('^', left, parseExponent());
+            }
+            return left;
+        }
+
+        /**
+         * The right operand of ^, which may be negated, as in 2^-1.
+         */
+        private FormulaNode parseExponent() {
+
+            skipSpaces();
+            if (position < chars.length && chars[position] == '-') {
+                enter();
+                position++;
+                FormulaNode operand = parseExponent();
+                depth--;
+                return new FormulaNode.Negate(operand);
+            }
+            return parsePrimary();
+        }
+
+        private FormulaNode parsePrimary() {
+
+            skipSpaces();
+            if (position >= chars.length) {
+                throw new IllegalArgumentException("Unexpected end of expression at position " + (position + 1));
+            }
+            char c = chars[position];
+            if (c == '(') {
+                enter();
+                position++;
+                FormulaNode node = parseSum();
+                expect(')');
+                depth--;
+                return node;
+            }
+            if (isDigit(c) || c == '.') {
+                return parseNumber();
+            }
+            if (!CellAddress.isSheetNameStart(c)) {
+                throw unexpected();
+            }
+            int start = position;
+            int sheetEnd = scanSheet(start);
+            int cellStart = sheetEnd < 0 ? start : sheetEnd;
+            int cellEnd = scanCellId(cellStart);
+            if (cellEnd > 0) {
+                if (cellEnd < chars.length && chars[cellEnd] == ':') {
+                    throw new IllegalArgumentException("Range can only be used in a function at position " + (start + 1));
+                }
+                position = cellEnd;
+                String cellId = qualify(start, cellStart, cellEnd);
+                cells.add(cellId);
+                return new FormulaNode.Reference(cellId);
+            }
+            if (sheetEnd > 0) {
+                throw new IllegalArgumentException("Expected a cell reference at position " + (sheetEnd + 1));
+            }
+            while (position < chars.length && CellAddress.isSheetNameChar(chars[position])) {
+                position++;
+            }
+            int nameEnd = position;
+            skipSpaces();
+            if (position >= chars.length || chars[position] != '(') {
+                if (isName("PI", start, nameEnd)) {
+                    return new FormulaNode.Constant(Math.PI);
+                }
+                if (isName("E", start, nameEnd)) {
+                    return new FormulaNode.Constant(Math.E);
+                }
+            }
+            else {
+                FormulaNode.AggregateFunction aggregateFunction = aggregateFunctionOf(start, nameEnd);
+                if (aggregateFunction != null) {
+                    return parseAggregate(aggregateFunction);
+                }
+                FormulaNode.MathFunction mathFunction = mathFunctionOf(start, nameEnd);
+                if (mathFunction != null) {
+                    return parseMathFunction(mathFunction);
+                }
+                if (isName("RANDOM", start, nameEnd)) {
+                    position++;
+                    expect(')');
+                    return new FormulaNode.Random();
+                }
+            }
+            throw new IllegalArgumentException(new String(chars, start, nameEnd - start)
+                    + " is not a number, a cell reference or a function at position " + (start + 1));
+        }
+
+        private FormulaNode parseMathFunction(FormulaNode.MathFunction function) {
+
+            enter();
+            position++;
+            FormulaNode argument = parseSum();
+            expect(')');
+            depth--;
+            return new FormulaNode.Apply(function, argument);
+        }
+
+        private FormulaNode parseAggregate(FormulaNode.AggregateFunction function) {
+
+            enter();
+            position++;
+            List<FormulaNode> arguments = new ArrayList<>();
+            arguments.add(parseArgument());
+            while (nextOperator(",") != 0) {
+                arguments.add(parseArgument());
+            }
+            expect(')');
+            depth--;
+            return new FormulaNode.Aggregate(function, arguments);
+        }
+
+        /**
+         * A function argument, which is a range like A1:D500 or Sheet2!A1:D500, or an expression.
+         */
+        private FormulaNode parseArgument() {
+
+            skipSpaces();
+            int start = position;
+            int sheetEnd = scanSheet(start);
+            int cellStart = sheetEnd < 0 ? start : sheetEnd;
+            int cellEnd = scanCellId(cellStart);
+            if (cellEnd < 0 || cellEnd >= chars.length || chars[cellEnd] != ':') {
+                return parseSum();
+            }
+            int end = scanCellId(cellEnd + 1);
+            if (end < 0) {
+                position = cellEnd + 1;
+                throw new IllegalArgumentException("Expected the end cell of the range at position " + (position + 1));
+            }
+            position = end;
+            CellRange range = CellRange.parse(qualify(start, cellStart, end));
+            if (range.size() > MAX_RANGE_SIZE) {
+                throw new IllegalArgumentException("Range " + range.getId() + " has more than " + MAX_RANGE_SIZE
+                        + " cells at position " + (start + 1));
+            }
+            ranges.add(range);
+            return new FormulaNode.Range(range);
+        }
+
+        /**
+         * @return the cell ID or range between the given positions, qualified with the sheet of the formula cell
+         * if it names no sheet, or else with its workbook.
+         */
+        private String qualify(int start, int cellStart, int end) {
+            return start == cellStart ? sheetPrefix + new String(chars, start, end - start)
+                    : workbookPrefix + new String(chars, start, end - start);
+        }
+
+        private FormulaNode parseNumber() {
+
+            int start = position;
+            int digits = 0;
+            while (position < chars.length && isDigit(chars[position])) {
+                position++;
+                digits++;
+            }
+            if (position < chars.length && chars[position] == '.') {
+                position++;
+                while (position < chars.length && isDigit(chars[position])) {
+                    position++;
+                    digits++;
+                }
+            }
+            if (digits == 0) {
+                position = start;
+                throw unexpected();
+            }
+            if (position < chars.length && (chars[position] == 'e' || chars[position] == 'E')) {
+                position++;
+                if (position < chars.length && (chars[position] == '+' || chars[position] == '-')) {
+                    position++;
+                }
+                if (position >= chars.length || !isDigit(chars[position])) {
+                    throw new IllegalArgumentException("Expected the digits of the exponent at position " + (position + 1));
+                }
+                while (position < chars.length && isDigit(chars[position])) {
+                    position++;
+                }
+            }
+            return new FormulaNode.Constant(Double.parseDouble(new String(chars, start, position - start)));
+        }
+
+        /**
+         * @return the end of the cell ID without a sheet, like AB12, starting at the given position, or -1 if there is none.
+         */
+        private int scanCellId(int start) {
+
+            int end = start;
+            while (end < chars.length && isUpperCaseLetter(chars[end])) {
+                end++;
+            }
+            while (end < chars.length && isDigit(chars[end])) {
+                end++;
+            }
+            if (end < chars.length && (CellAddress.isSheetNameChar(chars[end]) || chars[end] == '.' || chars[end] == '!')) {
+                return -1;
+            }
+            return CellAddress.locate(text, start, end) < 0 ? -1 : end;
+        }
+
+        /**
+         * @return the position after the '!' of the sheet name starting at the given position, or -1 if there is none.
+         */
+        private int scanSheet(int start) {
+
+            if (start >= chars.length || !CellAddress.isSheetNameStart(chars[start])) {
+                return -1;
+            }
+            int end = start + 1;
+            while (end < chars.length && CellAddress.isSheetNameChar(chars[end])) {
+                end++;
+            }
+            return end < chars.length && chars[end] == '!' && end - start <= CellAddress.MAX_SHEET_NAME_LENGTH ? end + 1 : -1;
+        }
+
+        private FormulaNode.AggregateFunction aggregateFunctionOf(int start, int end) {
+
+            for (FormulaNode.AggregateFunction function : AGGREGATE_FUNCTIONS) {
+                if (isName(function.name(), start, end)) {
+                    return function;
+                }
+            }
+            return null;
+        }
+
+        private FormulaNode.MathFunction mathFunctionOf(int start, int end) {
+
+            for (FormulaNode.MathFunction function : MATH_FUNCTIONS) {
+                if (isName(function.name(), start, end)) {
+                    return function;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return true if the characters between the given positions spell the upper case name in any case.
+         */
+        private boolean isName(String name, int start, int end) {
+
+            if (end - start != name.length()) {
+                return false;
+            }
+            for (int index = 0; index < name.length(); index++) {
+                if (Character.toUpperCase(chars[start + index]) != name.charAt(index)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return the operator at the position among the given ones, consumed, or 0 if there is none.
+         */
+        private char nextOperator(String operators) {
+
+            skipSpaces();
+            if (position < chars.length && operators.indexOf(chars[position]) >= 0) {
+                return chars[position++];
+            }
+            return 0;
+        }
+
+        private void expect(char expected) {
+
+            skipSpaces();
+            if (position >= chars.length || chars[position] != expected) {
+                throw new IllegalArgumentException("Expected '" + expected + "' at position " + (position + 1));
+            }
+            position++;
+        }
+
+        private void skipSpaces() {
+            while (position < chars.length && Character.isWhitespace(chars[position])) {
+                position++;
+            }
+        }
+
+        private void enter() {
+            if (++depth > MAX_DEPTH) {
+                throw new IllegalArgumentException("Expression nested too deeply at position " + (position + 1));
+            }
+        }
+
+        private IllegalArgumentException unexpected() {
+            return new IllegalArgumentException("Unexpected '" + chars[position] + "' at position " + (position + 1));
+        }
+    }
+}
@@ -0,0 +1,35 @@
+-- Upgrades a cell table created by the first release, which only had the cell_id and data columns and the
+-- cell_dependent_cells join table, to the schema of the Cell entity. Run once, before starting the new release.
+
+-- Formulas over many cells easily exceed 255 characters
+alter table cell modify data text;
+
+-- The sheet and the coordinates of each cell, so that the cells of a range are found by an index lookup. They
+-- are filled in for the existing rows by the application when it starts
+alter table cell
+    add column sheet varchar(100),
+    add column column_index integer,
+    add column row_index integer;
+create index idx_cell_location on cell (sheet, column_index, row_index);
+
+-- A referenced range is kept as a single row, not as one join row per cell of the range
+create table cell_range_references (
+    cell_id varchar(255) not null,
+    cell_range varchar(255),
+    constraint fk_cell_range_references_cell foreign key (cell_id) references cell (cell_id)
+) engine=InnoDB;
+
+-- The precedent column is indexed, so the join table also serves as the reverse dependency index
+create index idx_dependent_cells_precedent on cell_dependent_cells (dependent_cells_cell_id);
+
+-- The type of the value and numbers in a DOUBLE column. The existing rows have no kind, they are typed from their
+-- data when they are loaded. The enum lists the constants of CellKind, a new kind has to be added to it
+alter table cell
+    add column kind enum ('BOOLEAN','EMPTY','ERROR','FORMULA','NUMBER','TEXT'),
+    add column number_value float(53);
+
+-- The last value computed for a formula and the version that marks it stale. The existing rows start at version 0
+-- without a computed value, which is computed by their next read
+alter table cell
+    add column computed_value float(53),
+    add column value_version bigint default 0 not null;
@@ -0,0 +1,47 @@
+package com.spreadsheet.spreadsheetcelloperation.config;
+
+import io.r2dbc.pool.ConnectionPool;
+import io.r2dbc.pool.ConnectionPoolConfiguration;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.r2dbc.ConnectionFactoryBuilder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.r2dbc.core.DatabaseClient;
+
+/**
+ * Client of a pool of R2DBC connections to the database of the JPA datasource, without Spring Data R2DBC: the
+ * reactive stack only reads single rows, and the cells stay mapped and written by JPA.
+ * <p>
+ * The pool is not a bean, as the JDBC datasource is not auto-configured once a connection factory bean exists.
+ */
+@Configuration
+public class R2dbcConfig {
+
+    private final ConnectionPool connectionPool;
+
+    public R2dbcConfig(@Value("${spring.r2dbc.url}") String url,
+                       @Value("${spring.r2dbc.username:#{null}}") String username,
+                       @Value("${spring.r2dbc.password:#{null}}") String password,
+                       @Value("${spring.r2dbc.pool.max-size:10}") int maxSize) {
+
+        ConnectionFactoryBuilder builder = ConnectionFactoryBuilder.withUrl(url);
+        if (username != null) {
+            builder.username(username);
+        }
+        if (password != null) {
+            builder.password(password);
+        }
+        this.connectionPool = new ConnectionPool(ConnectionPoolConfiguration.builder(builder.build()).maxSize(maxSize).build());
+    }
+
+    @Bean
+    public DatabaseClient databaseClient() {
+        return DatabaseClient.create(connectionPool);
+    }
+
+    @PreDestroy
+    public void closeConnectionPool() {
+        connectionPool.dispose();
+    }
+}
@@ -0,0 +1,191 @@
+package com.spreadsheet.spreadsheetcelloperation.controller;
+
+import com.spreadsheet.spreadsheetcelloperation.model.CellAddress;
+import com.spreadsheet.spreadsheetcelloperation.model.CellValue;
+import com.spreadsheet.spreadsheetcelloperation.repository.R2dbcCellStore;
+import com.spreadsheet.spreadsheetcelloperation.service.CellMetrics;
+import com.spreadsheet.spreadsheetcelloperation.service.CellOperation;
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.responses.ApiResponse;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+
+/**
+ * Cell endpoints of the reactive stack, with the paths and responses of the writes and reads of
+ * {@link CellOperationController}. The subscription, import and export endpoints are only served by the servlet stack.
+ * <p>
+ * A GET of one cell never blocks when it is answered by the value cache or, with the jpa engine, by the
+ * row of the cell read through R2DBC, so many concurrent reads share the event loop and their queries are
+ * pipelined rather than each holding a thread and a JDBC connection. The reads that evaluate stale formulas,
+ * the consistent reads and the writes run the blocking service on the bounded elastic scheduler. The reads never
+ * write: a stale formula they evaluate is cached but not stored, its next recalculation persists the value.
+ * A non-blocking read is observed like the reads of the service, the service joining it when it answers the read.
+ */
+@RestController
+@RequestMapping({"/api/v1/cells", "/api/v1/workbooks/{workbook}/cells"})
+@Tag(name = "Cell Operations")
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class ReactiveCellOperationController {
+
+    private final CellOperation cellOperationService;
+
+    private final Optional<R2dbcCellStore> r2dbcCellStore;
+
+    private final CellMetrics cellMetrics;
+
+    public ReactiveCellOperationController(CellOperation cellOperation, Optional<R2dbcCellStore> r2dbcCellStore, CellMetrics cellMetrics){
+        this.cellOperationService = cellOperation;
+        this.r2dbcCellStore = r2dbcCellStore;
+        this.cellMetrics = cellMetrics;
+    }
+
+    @Operation(
+            description = "Endpoint for store cell",
+            summary = "This endpoint will update the cell if it exists. Otherwise it will create a new cell.",
+            responses = {
+                    @ApiResponse(
+                            description = "Success",
+                            responseCode = "202"
+                    ),
+                    @ApiResponse(
+                            description = "Bad Request",
+                            responseCode = "400"
+                    )
+            }
+    )
+    @PostMapping("/{cellId}/value")
+    public Mono<ResponseEntity<String>> addValueToCell(@PathVariable(value = "workbook", required = false) String workbook,
+                                                       @PathVariable("cellId") String cellId,
+                                                       @RequestBody Object value){
+
+        return blocking(() -> {
+            cellOperationService.setCellValue(qualify(workbook, cellId), value);
+            return new ResponseEntity<>("Success", HttpStatus.ACCEPTED);
+        });
+    }
+
+    @Operation(
+            description = "Endpoint for store many cells",
+            summary = "This endpoint will update or create all the given cells in a single transaction. " +
+                    "The request body maps each cell ID to its value.",
+            responses = {
+                    @ApiResponse(
+                            description = "Success",
+                            responseCode = "202"
+                    ),
+                    @ApiResponse(
+                            description = "Bad Request",
+                            responseCode = "400"
+                    )
+            }
+    )
+    @PostMapping("/batch")
+    public Mono<ResponseEntity<String>> addValuesToCells(@PathVariable(value = "workbook", required = false) String workbook,
+                                                         @RequestBody Map<String, Object> values){
+
+        Map<String, Object> qualifiedValues = new LinkedHashMap<>();
+        values.forEach((cellId, value) -> qualifiedValues.put(qualify(workbook, cellId), value));
+        return blocking(() -> {
+            cellOperationService.setCellValues(qualifiedValues);
+            return new ResponseEntity<>("Success", HttpStatus.ACCEPTED);
+        });
+    }
+
+    @Operation(
+            description = "Endpoint for get cell value",
+            summary = "This endpoint answers from the value cache or the stored row of the cell without blocking, " +
+                    "and only evaluates a stale formula or waits for a consistent read on a worker thread.",
+            responses = {
+                    @ApiResponse(
+                            description = "Success",
+                            responseCode = "200"
+                    ),
+                    @ApiResponse(
+                            description = "Bad Request",
+                            responseCode = "400"
+                    )
+            }
+    )
+    @GetMapping("/{cellId}")
+    public Mono<ResponseEntity<String>> getValueFromCell(@PathVariable(value = "workbook", required = false) String workbook,
+                                                         @PathVariable("cellId") String cellId,
+                                                         @RequestParam(value = "consistent", required = false, defaultValue = "false") boolean consistent){
+
+        String qualifiedId = qualify(workbook, cellId);
+        Mono<String> value;
+        if (consistent) {
+            value = blocking(() -> cellOperationService.getCellValueWithoutStoring(qualifiedId, true));
+        }
+        else {
+            value = Mono.using(() -> cellMetrics.start(CellMetrics.READ), read ->
+                    Mono.fromCallable(() -> cellOperationService.getCachedCellValue(qualifiedId))
+                            .flatMap(Mono::justOrEmpty)
+                            .switchIfEmpty(Mono.defer(() -> r2dbcCellStore.map(store -> {
+                                read.countRoundTrip();
+                                return store.findStoredValue(qualifiedId);
+                            }).orElse(Mono.empty())))
+                            .switchIfEmpty(blocking(() -> read.run(() -> cellOperationService.getCellValueWithoutStoring(qualifiedId, false))))
+                            .doOnError(read::error),
+                    CellMetrics.StartedRequest::stop);
+        }
+        // an empty cell is read back without a body, like in the servlet stack
+        return value.map(ResponseEntity::ok).defaultIfEmpty(ResponseEntity.ok().build());
+    }
+
+    @Operation(
+            description = "Endpoint for get many cell values",
+            summary = "This endpoint evaluates the given cells and ranges like A1:D500 in one pass " +
+                    "and streams back a JSON array with the value or the error of each cell.",
+            responses = {
+                    @ApiResponse(
+                            description = "Success",
+                            responseCode = "200"
+                    ),
+                    @ApiResponse(
+                            description = "Bad Request",
+                            responseCode = "400"
+                    )
+            }
+    )
+    @GetMapping
+    public Flux<CellValue> getValuesFromCells(
+            @PathVariable(value = "workbook", required = false) String workbook,
+            @RequestParam(value = "ids", required = false, defaultValue = "") List<String> cellIds,
+            @RequestParam(value = "range", required = false, defaultValue = "") List<String> ranges){
+
+        // the multi cell read already loads its cells in chunked queries, it runs as a whole on a worker thread
+        return Flux.defer(() -> Flux.fromStream(cellOperationService.getCellValues(qualify(workbook, cellIds), qualify(workbook, ranges))))
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    /**
+     * Runs a call to the blocking service on the bounded elastic scheduler, keeping it off the event loop.
+     */
+    private static <T> Mono<T> blocking(Callable<T> call) {
+        return Mono.fromCallable(call).subscribeOn(Schedulers.boundedElastic());
+    }
+
+    /**
+     * Qualifies the cell IDs or ranges given under /workbooks/{workbook} with the workbook, so that a request
+     * only reaches the cells of its workbook.
+     */
+    private static String qualify(String workbook, String id) {
+        return workbook == null ? id : CellAddress.qualify(workbook, id);
+    }
+
+    private static List<String> qualify(String workbook, List<String> ids) {
+        return workbook == null ? ids : ids.stream().map(id -> CellAddress.qualify(workbook, id)).toList();
+    }
+}
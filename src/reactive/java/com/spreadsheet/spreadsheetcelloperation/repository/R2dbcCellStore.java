@@ -0,0 +1,56 @@
+package com.spreadsheet.spreadsheetcelloperation.repository;
+
+import com.spreadsheet.spreadsheetcelloperation.model.CellKind;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Mono;
+
+import java.util.Optional;
+
+/**
+ * Non-blocking reader of the cell table written by {@link JpaCellStore}, for the reads of the reactive stack that
+ * are answered by a single row: a cell holding a value, or a formula whose persisted computed value is not stale.
+ * The other reads are left to the blocking service, which evaluates the formulas without storing their values.
+ * <p>
+ * Only with the jpa engine, the columnar engine holds cells the database doesn't have yet.
+ */
+@Repository
+@ConditionalOnProperty(name = "spreadsheet.storage.engine", havingValue = "jpa", matchIfMissing = true)
+public class R2dbcCellStore {
+
+    private static final String SELECT_STORED_VALUE =
+            "select data, kind, number_value, computed_value from cell where cell_id = :cellId";
+
+    private final DatabaseClient databaseClient;
+
+    public R2dbcCellStore(DatabaseClient databaseClient) {
+        this.databaseClient = databaseClient;
+    }
+
+    /**
+     * @return the value read back for the cell, or empty if the cell doesn't exist, is empty, or is a formula whose
+     * computed value is stale.
+     */
+    public Mono<String> findStoredValue(String cellId) {
+
+        return databaseClient.sql(SELECT_STORED_VALUE)
+                .bind("cellId", cellId)
+                .map(row -> storedValueOf(row.get("data", String.class), row.get("kind", String.class),
+                        row.get("number_value", Double.class), row.get("computed_value", Double.class)))
+                .one()
+                .flatMap(Mono::justOrEmpty);
+    }
+
+    private static Optional<String> storedValueOf(String data, String kind, Double number, Double computedValue) {
+
+        // the rows written before the cells were typed have no kind, only their data
+        if (kind == null ? data != null && data.startsWith("=") : CellKind.valueOf(kind) == CellKind.FORMULA) {
+            return Optional.ofNullable(computedValue).map(Object::toString);
+        }
+        if (data != null) {
+            return Optional.of(data);
+        }
+        return Optional.ofNullable(number).map(CellKind::formatNumber);
+    }
+}
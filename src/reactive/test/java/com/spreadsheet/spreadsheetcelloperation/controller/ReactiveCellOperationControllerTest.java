@@ -0,0 +1,139 @@
+package com.spreadsheet.spreadsheetcelloperation.controller;
+
+import com.spreadsheet.spreadsheetcelloperation.repository.R2dbcCellStore;
+import com.spreadsheet.spreadsheetcelloperation.service.CellMetrics;
+import com.spreadsheet.spreadsheetcelloperation.service.CellOperation;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.observation.DefaultMeterObservationHandler;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.micrometer.observation.ObservationRegistry;
+import io.r2dbc.spi.ConnectionFactories;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.test.web.reactive.server.WebTestClient;
+
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.*;
+
+public class ReactiveCellOperationControllerTest {
+
+    @Mock
+    private CellOperation cellOperation;
+
+    private DatabaseClient databaseClient;
+
+    private WebTestClient webTestClient;
+
+    private SimpleMeterRegistry registry;
+
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.openMocks(this);
+        registry = new SimpleMeterRegistry();
+        ObservationRegistry observationRegistry = ObservationRegistry.create();
+        observationRegistry.observationConfig().observationHandler(new DefaultMeterObservationHandler(registry));
+        databaseClient = DatabaseClient.create(ConnectionFactories.get("r2dbc:h2:mem:///" + UUID.randomUUID() + "?options=DB_CLOSE_DELAY=-1"));
+        databaseClient.sql("create table cell (cell_id varchar(100) primary key, data varchar(65535), kind varchar(8), " +
+                "number_value double, computed_value double)").then().block();
+        ReactiveCellOperationController controller = new ReactiveCellOperationController(cellOperation, Optional.of(new R2dbcCellStore(databaseClient)),
+                new CellMetrics(registry, observationRegistry));
+        webTestClient = WebTestClient.bindToController(controller).build();
+    }
+
+    @Test
+    void shouldAnswerCachedValueWithoutReadingCellOrBlocking() {
+
+        AtomicReference<String> thread = new AtomicReference<>();
+        when(cellOperation.getCachedCellValue("A1")).thenAnswer(invocation -> {
+            thread.set(Thread.currentThread().getName());
+            return Optional.of("3.0");
+        });
+        // a stored value that would be served if the cache was skipped
+        insertCell("A1", "=B1", "FORMULA", null, 5.0);
+
+        webTestClient.get().uri("/api/v1/cells/A1").exchange()
+                .expectStatus().isOk()
+                .expectBody(String.class).isEqualTo("3.0");
+        assertFalse(thread.get().startsWith("boundedElastic"));
+        verify(cellOperation, never()).getCellValueWithoutStoring(anyString(), anyBoolean());
+        assertEquals(1, registry.get(CellMetrics.READ).timer().count());
+        assertEquals(0, registry.get("spreadsheet.store.round.trips").tag("request", CellMetrics.READ).summary().totalAmount());
+    }
+
+    @Test
+    void shouldAnswerStoredValuesFromDatabaseWhenNotCached() {
+
+        when(cellOperation.getCachedCellValue(anyString())).thenReturn(Optional.empty());
+        insertCell("A1", null, "NUMBER", 2.0, null);
+        insertCell("A2", "hello", "TEXT", null, null);
+        insertCell("A3", "=A1*3", "FORMULA", null, 6.0);
+
+        webTestClient.get().uri("/api/v1/cells/A1").exchange()
+                .expectStatus().isOk()
+                .expectBody(String.class).isEqualTo("2");
+        webTestClient.get().uri("/api/v1/cells/A2").exchange()
+                .expectStatus().isOk()
+                .expectBody(String.class).isEqualTo("hello");
+        webTestClient.get().uri("/api/v1/cells/A3").exchange()
+                .expectStatus().isOk()
+                .expectBody(String.class).isEqualTo("6.0");
+        verify(cellOperation, never()).getCellValueWithoutStoring(anyString(), anyBoolean());
+        // with one query each
+        assertEquals(3, registry.get(CellMetrics.READ).timer().count());
+        DistributionSummary roundTrips = registry.get("spreadsheet.store.round.trips").tag("request", CellMetrics.READ).summary();
+        assertEquals(3, roundTrips.count());
+        assertEquals(3, roundTrips.totalAmount());
+    }
+
+    @Test
+    void shouldEvaluateStaleFormulaOnWorkerThread() {
+
+        AtomicReference<String> thread = new AtomicReference<>();
+        when(cellOperation.getCachedCellValue("A3")).thenReturn(Optional.empty());
+        when(cellOperation.getCellValueWithoutStoring("A3", false)).thenAnswer(invocation -> {
+            thread.set(Thread.currentThread().getName());
+            return "9.0";
+        });
+        insertCell("A3", "=A1*3", "FORMULA", null, null);
+
+        webTestClient.get().uri("/api/v1/cells/A3").exchange()
+                .expectStatus().isOk()
+                .expectBody(String.class).isEqualTo("9.0");
+        assertTrue(thread.get().startsWith("boundedElastic"));
+        assertEquals(1, registry.get(CellMetrics.READ).timer().count());
+    }
+
+    @Test
+    void shouldReadQualifiedCellOfWorkbookFromDatabase() {
+
+        when(cellOperation.getCachedCellValue(anyString())).thenReturn(Optional.empty());
+        insertCell("[book]A1", null, "NUMBER", 4.5, null);
+
+        webTestClient.get().uri("/api/v1/workbooks/book/cells/A1").exchange()
+                .expectStatus().isOk()
+                .expectBody(String.class).isEqualTo("4.5");
+        verify(cellOperation).getCachedCellValue("[book]A1");
+        verify(cellOperation, never()).getCellValueWithoutStoring(anyString(), anyBoolean());
+    }
+
+    private void insertCell(String cellId, String data, String kind, Double number, Double computedValue) {
+
+        DatabaseClient.GenericExecuteSpec insert = databaseClient.sql("insert into cell (cell_id, data, kind, number_value, computed_value) " +
+                        "values (:cellId, :data, :kind, :number, :computedValue)")
+                .bind("cellId", cellId)
+                .bind("kind", kind);
+        insert = data == null ? insert.bindNull("data", String.class) : insert.bind("data", data);
+        insert = number == null ? insert.bindNull("number", Double.class) : insert.bind("number", number);
+        insert = computedValue == null ? insert.bindNull("computedValue", Double.class) : insert.bind("computedValue", computedValue);
+        insert.then().block();
+    }
+}
@@ -0,0 +1,386 @@
+package com.spreadsheet.spreadsheetcelloperation.repository;
+
+import com.spreadsheet.spreadsheetcelloperation.exception.StorageBacklogException;
+import com.spreadsheet.spreadsheetcelloperation.model.Cell;
+import com.spreadsheet.spreadsheetcelloperation.model.CellData;
+import com.spreadsheet.spreadsheetcelloperation.model.CellKind;
+import com.spreadsheet.spreadsheetcelloperation.model.CellRange;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.*;
+
+public class ColumnarCellStoreTest {
+
+    @Mock
+    private CellRepository cellRepository;
+
+    @Mock
+    private PlatformTransactionManager transactionManager;
+
+    private ColumnarCellStore cellStore;
+
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.openMocks(this);
+        cellStore = new ColumnarCellStore(cellRepository, transactionManager, Duration.ofHours(1), 100_000, null, List.of());
+        cellStore.load();
+    }
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        cellStore.close();
+    }
+
+    @Test
+    void shouldReadBackDataAsWritten(){
+
+        Map<String, String> written = new HashMap<>();
+        written.put("A1", "12");
+        written.put("A4095", "12.0");
+        written.put("A4096", "-3");
+        written.put("B7", "1e3");
+        written.put("C2", "007");
+        written.put("D9", "test12");
+        written.put("Z1000000", "=SUM(A1:A4096)*2");
+        written.put("E5", null);
+        List<Cell> cells = new ArrayList<>();
+        written.forEach((cellId, data) -> cells.add(new Cell(cellId, data)));
+        cellStore.saveAll(cells);
+
+        written.forEach((cellId, data) -> assertEquals(data, cellStore.findById(cellId).orElseThrow().getData()));
+        assertEquals(Optional.empty(), cellStore.findById("A2"));
+        assertEquals(Set.of("A1", "E5"), Set.copyOf(cellStore.findAllById(List.of("A1", "E5", "F6")).stream().map(Cell::getCellId).toList()));
+        // the cells of a range are found by their coordinates, across chunks
+        assertEquals(Set.of("A4095", "A4096", "B7", "C2"),
+                Set.copyOf(cellStore.findAllInRange(CellRange.parse("C4096:A2")).stream().map(Cell::getCellId).toList()));
+        assertFalse(cellStore.findById("A1").orElseThrow().isNew());
+        verify(cellRepository, never()).saveAll(anyIterable());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void shouldPersistLatestDataOfWrittenCellsOnFlush(){
+
+        cellStore.save(new Cell("A1", "1"));
+        cellStore.save(new Cell("A1", "=B2+SUM(C1:C3)"));
+        when(cellRepository.findAllById(anyIterable())).thenReturn(List.of());
+
+        cellStore.flush();
+
+        ArgumentCaptor<Iterable<Cell>> captor = ArgumentCaptor.forClass(Iterable.class);
+        verify(cellRepository, times(1)).saveAll(captor.capture());
+        Map<String, Cell> saved = new HashMap<>();
+        captor.getValue().forEach(cell -> saved.put(cell.getCellId(), cell));
+        assertEquals(Set.of("A1", "B2"), saved.keySet());
+        assertEquals("=B2+SUM(C1:C3)", saved.get("A1").getData());
+        assertEquals(List.of(saved.get("B2")), saved.get("A1").getDependentCells());
+        assertEquals(Set.of("C1:C3"), saved.get("A1").getRangeReferences());
+        assertNull(saved.get("B2").getData());
+
+        cellStore.flush();
+        verify(cellRepository, times(1)).saveAll(anyIterable());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void shouldPersistFormulaThatNoLongerCompilesWithoutDependencies(){
+
+        // like a formula persisted before its function was rejected on write, loaded and written back unchanged
+        cellStore.saveAll(List.of(new Cell("A1", "=FOO(B1)+2"), new Cell("A2", "=sqrt(B1)*pi")));
+        when(cellRepository.findAllById(anyIterable())).thenReturn(List.of());
+
+        cellStore.flush();
+
+        ArgumentCaptor<Iterable<Cell>> captor = ArgumentCaptor.forClass(Iterable.class);
+        verify(cellRepository).saveAll(captor.capture());
+        Map<String, Cell> saved = new HashMap<>();
+        captor.getValue().forEach(cell -> saved.put(cell.getCellId(), cell));
+        assertEquals(Set.of("A1", "A2", "B1"), saved.keySet());
+        assertEquals("=FOO(B1)+2", saved.get("A1").getData());
+        assertEquals(List.of(), saved.get("A1").getDependentCells());
+        assertEquals(List.of(saved.get("B1")), saved.get("A2").getDependentCells());
+        assertEquals(Set.of("A2->B1"), Set.copyOf(cellStore.findAllDependencyEdges().stream()
+                .map(edge -> edge.getCellId() + "->" + edge.getPrecedentId()).toList()));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void shouldLoseAtMostMaxUnflushedCellsOnCrash() throws InterruptedException {
+
+        int maxUnflushedCells = 500;
+        Map<String, String> database = new ConcurrentHashMap<>();
+        when(cellRepository.findAllById(anyIterable())).thenReturn(List.of());
+        doAnswer(invocation -> {
+            // a slow database, so that the writes outpace the flushes
+            Thread.sleep(5);
+            ((Iterable<Cell>) invocation.getArgument(0)).forEach(cell -> database.put(cell.getCellId(), cell.getData()));
+            return null;
+        }).when(cellRepository).saveAll(anyIterable());
+        ColumnarCellStore writeBehindStore = new ColumnarCellStore(cellRepository, transactionManager, Duration.ofHours(1), maxUnflushedCells, null, List.of());
+        writeBehindStore.load();
+
+        // the process crashes after the last acknowledged write, the database is left as it is at that moment
+        Map<String, String> acknowledged = new HashMap<>();
+        for (int write = 0; write < 20_000; write++) {
+            String cellId = "A" + (write % 5_000 + 1);
+            writeBehindStore.save(new Cell(cellId, String.valueOf(write)));
+            acknowledged.put(cellId, String.valueOf(write));
+        }
+        Map<String, String> persisted = new HashMap<>(database);
+
+        CellRepository restartedRepository = mock(CellRepository.class);
+        when(restartedRepository.findAllCellData()).thenReturn(persisted.entrySet().stream().map(this::cellData).toList());
+        ColumnarCellStore restartedStore = new ColumnarCellStore(restartedRepository, transactionManager, Duration.ofHours(1), maxUnflushedCells, null, List.of());
+        restartedStore.load();
+        long lostCells = acknowledged.entrySet().stream()
+                .filter(written -> !restartedStore.findById(written.getKey()).map(Cell::getData).equals(Optional.of(written.getValue())))
+                .count();
+        assertTrue(lostCells <= maxUnflushedCells, "lost cells: " + lostCells);
+        assertTrue(persisted.size() > acknowledged.size() - maxUnflushedCells);
+
+        restartedStore.close();
+        writeBehindStore.close();
+        assertEquals(acknowledged, database);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void shouldQuarantineCellRejectedByDatabaseAndPersistTheOthers(){
+
+        Map<String, String> database = new HashMap<>();
+        when(cellRepository.findAllById(anyIterable())).thenReturn(List.of());
+        doAnswer(invocation -> {
+            List<Cell> cells = new ArrayList<>();
+            ((Iterable<Cell>) invocation.getArgument(0)).forEach(cells::add);
+            // like data too long for the column of an older schema
+            if (cells.stream().anyMatch(cell -> "x".repeat(300).equals(cell.getData()))) {
+                throw new IllegalStateException("Data too long for column 'data'");
+            }
+            cells.forEach(cell -> database.put(cell.getCellId(), cell.getData()));
+            return null;
+        }).when(cellRepository).saveAll(anyIterable());
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        cellStore.bindTo(registry);
+
+        cellStore.saveAll(List.of(new Cell("A1", "1"), new Cell("A2", "x".repeat(300)), new Cell("A3", "3")));
+        cellStore.flush();
+
+        assertEquals(Map.of("A1", "1", "A3", "3"), database);
+        assertEquals(1, registry.get("spreadsheet.store.quarantined.cells").gauge().value());
+        assertEquals(0, registry.get("spreadsheet.store.unflushed.cells").gauge().value());
+        // the quarantined cell no longer fails the flushes of the cells written after it
+        cellStore.save(new Cell("B1", "4"));
+        cellStore.flush();
+        assertEquals("4", database.get("B1"));
+        assertEquals("x".repeat(300), cellStore.findById("A2").orElseThrow().getData());
+
+        // written again, it leaves the quarantine and is persisted
+        cellStore.save(new Cell("A2", "short"));
+        assertEquals(0, registry.get("spreadsheet.store.quarantined.cells").gauge().value());
+        cellStore.flush();
+        assertEquals("short", database.get("A2"));
+    }
+
+    @Test
+    void shouldKeepCellsDirtyWhileDatabaseRejectsEveryCell(){
+
+        when(cellRepository.findAllById(anyIterable())).thenThrow(new IllegalStateException("Connection refused"));
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        cellStore.bindTo(registry);
+
+        cellStore.saveAll(List.of(new Cell("A1", "1"), new Cell("A2", "2")));
+        cellStore.flush();
+
+        assertEquals(0, registry.get("spreadsheet.store.quarantined.cells").gauge().value());
+        assertEquals(2, registry.get("spreadsheet.store.unflushed.cells").gauge().value());
+        reset(cellRepository);
+        when(cellRepository.findAllById(anyIterable())).thenReturn(List.of());
+        cellStore.flush();
+        verify(cellRepository).saveAll(anyIterable());
+        assertEquals(0, registry.get("spreadsheet.store.unflushed.cells").gauge().value());
+    }
+
+    @Test
+    void shouldServeComputedValueOnlyAtVersionItWasComputedAt(){
+
+        cellStore.saveAll(List.of(new Cell("A1", "1"), new Cell("A2", "=A1*2")));
+        long valueVersion = cellStore.findValueVersions(List.of("A2", "B9")).get("A2");
+        assertEquals(Set.of("A2"), cellStore.findValueVersions(List.of("A2", "B9")).keySet());
+
+        cellStore.saveComputedValues(Map.of("A2", 2.0), Map.of("A2", valueVersion));
+        assertEquals(2.0, cellStore.findById("A2").orElseThrow().getComputedValue());
+
+        // a write to A1 marks A2 stale, with a version greater than any given before
+        cellStore.save(new Cell("A1", "5"));
+        cellStore.invalidateComputedValues(List.of("A2"));
+        long staleVersion = cellStore.findValueVersions(List.of("A2")).get("A2");
+        assertTrue(staleVersion > valueVersion);
+        assertNull(cellStore.findById("A2").orElseThrow().getComputedValue());
+
+        // a value computed before the write is not stored
+        cellStore.saveComputedValues(Map.of("A2", 2.0), Map.of("A2", valueVersion));
+        assertNull(cellStore.findById("A2").orElseThrow().getComputedValue());
+        cellStore.saveComputedValues(Map.of("A2", 10.0), Map.of("A2", staleVersion));
+        assertEquals(10.0, cellStore.findById("A2").orElseThrow().getComputedValue());
+    }
+
+    @Test
+    void shouldRejectTransactionWriteAtOnceWhileFlushesAreBehind() throws InterruptedException {
+
+        when(cellRepository.findAllById(anyIterable())).thenReturn(List.of());
+        ColumnarCellStore backloggedStore = new ColumnarCellStore(cellRepository, transactionManager, Duration.ofHours(1), 1, null, List.of());
+        backloggedStore.load();
+        backloggedStore.save(new Cell("A1", "1"));
+
+        // a transaction may hold the locks of its cells, its write doesn't wait for the flushes
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            assertThrows(StorageBacklogException.class, () -> backloggedStore.save(new Cell("A2", "2")));
+        }
+        finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+        // the rejected write requested a flush, which a writer waits for before taking its locks
+        backloggedStore.awaitWriteCapacity();
+        assertEquals(Optional.empty(), backloggedStore.findById("A2"));
+        backloggedStore.close();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void shouldRestartFromSnapshotAndWriteAheadLogWithoutDatabase(@TempDir Path walDirectory) throws InterruptedException {
+
+        when(cellRepository.findAllCellData()).thenReturn(List.of(cellData(Map.entry("A1", "1")), cellData(Map.entry("B2", "text"))));
+        ColumnarCellStore crashedStore = new ColumnarCellStore(cellRepository, transactionManager, Duration.ofHours(1), 100_000, walDirectory.toString(), List.of());
+        crashedStore.load();
+        crashedStore.save(new Cell("A1", "2"));
+        crashedStore.saveAll(List.of(new Cell("C5000", "=A1+SUM(A1:A3)"), new Cell("D7", null), new Cell("B2", "2.5")));
+        // the store crashes without flushing to the database or taking a snapshot
+
+        CellRepository restartedRepository = mock(CellRepository.class);
+        ColumnarCellStore restartedStore = new ColumnarCellStore(restartedRepository, transactionManager, Duration.ofHours(1), 100_000, walDirectory.toString(), List.of());
+        restartedStore.load();
+
+        verify(restartedRepository, never()).findAllCellData();
+        assertEquals("2", restartedStore.findById("A1").orElseThrow().getData());
+        assertEquals("2.5", restartedStore.findById("B2").orElseThrow().getData());
+        assertEquals("=A1+SUM(A1:A3)", restartedStore.findById("C5000").orElseThrow().getData());
+        assertNull(restartedStore.findById("D7").orElseThrow().getData());
+        assertEquals(Set.of("C5000->A1", "C5000->A1:A3"), Set.copyOf(restartedStore.findAllDependencyEdges().stream()
+                .map(edge -> edge.getCellId() + "->" + edge.getPrecedentId()).toList()));
+
+        // the writes lost by the database are persisted again
+        when(restartedRepository.findAllById(anyIterable())).thenReturn(List.of());
+        ArgumentCaptor<Iterable<Cell>> captor = ArgumentCaptor.forClass(Iterable.class);
+        restartedStore.close();
+        verify(restartedRepository).saveAll(captor.capture());
+        Map<String, String> persisted = new HashMap<>();
+        captor.getValue().forEach(cell -> persisted.put(cell.getCellId(), cell.getData()));
+        assertEquals(Set.of("A1", "B2", "C5000", "D7"), persisted.keySet());
+
+        // after a clean shutdown the snapshot holds every write and nothing is left to persist
+        ColumnarCellStore reopenedStore = new ColumnarCellStore(restartedRepository, transactionManager, Duration.ofHours(1), 100_000, walDirectory.toString(), List.of());
+        reopenedStore.load();
+        assertEquals("2.5", reopenedStore.findById("B2").orElseThrow().getData());
+        reopenedStore.close();
+        verify(restartedRepository, times(1)).saveAll(anyIterable());
+        crashedStore.close();
+    }
+
+    @Test
+    void shouldKeepSheetsApartInMemoryAndInSnapshot(@TempDir Path walDirectory) throws InterruptedException {
+
+        ColumnarCellStore store = new ColumnarCellStore(cellRepository, transactionManager, Duration.ofHours(1), 100_000, walDirectory.toString(), List.of());
+        store.load();
+        store.saveAll(List.of(new Cell("A1", "1"), new Cell("Sheet2!A1", "2"), new Cell("[acme]Sheet2!A1", "3"),
+                new Cell("XFD1048576", "4"), new Cell("[acme]AA12", "=Sheet2!A1+SUM(A1:B2)")));
+        when(cellRepository.findAllById(anyIterable())).thenReturn(List.of());
+        store.close();
+
+        ColumnarCellStore reopenedStore = new ColumnarCellStore(mock(CellRepository.class), transactionManager, Duration.ofHours(1), 100_000, walDirectory.toString(), List.of());
+        reopenedStore.load();
+        assertEquals("1", reopenedStore.findById("A1").orElseThrow().getData());
+        assertEquals("2", reopenedStore.findById("Sheet2!A1").orElseThrow().getData());
+        assertEquals("3", reopenedStore.findById("[acme]Sheet2!A1").orElseThrow().getData());
+        assertEquals("4", reopenedStore.findById("XFD1048576").orElseThrow().getData());
+        assertEquals(Optional.empty(), reopenedStore.findById("[acme]A1"));
+        assertEquals(Optional.empty(), reopenedStore.findById("Sheet3!A1"));
+        assertEquals("[acme]AA12:AA12", reopenedStore.findUsedRange("[acme]").orElseThrow().getId());
+        assertEquals("A1:XFD1048576", reopenedStore.findUsedRange("").orElseThrow().getId());
+        assertEquals(Optional.empty(), reopenedStore.findUsedRange("Sheet3!"));
+        assertEquals(Set.of("[acme]AA12->[acme]Sheet2!A1", "[acme]AA12->[acme]A1:B2"), Set.copyOf(reopenedStore.findAllDependencyEdges().stream()
+                .map(edge -> edge.getCellId() + "->" + edge.getPrecedentId()).toList()));
+        reopenedStore.close();
+    }
+
+    @Test
+    void shouldServeSnapshotUnchangedByLaterWrites() throws InterruptedException {
+
+        // the listener runs before the write is published, so it still reads the previous data
+        List<String> dataSeenByListener = new ArrayList<>();
+        ColumnarCellStore[] store = new ColumnarCellStore[1];
+        CellWriteListener listener = cellIds -> dataSeenByListener.add(store[0].findById("A1").map(Cell::getData).orElse("absent"));
+        store[0] = new ColumnarCellStore(cellRepository, transactionManager, Duration.ofHours(1), 100_000, null, List.of(listener));
+        store[0].load();
+
+        store[0].saveAll(List.of(new Cell("A1", "1"), new Cell("A5000", "=A1*2")));
+        CellReader snapshot = store[0].snapshot();
+        store[0].saveAll(List.of(new Cell("A1", "2"), new Cell("B1", "3")));
+
+        assertEquals("1", snapshot.findById("A1").orElseThrow().getData());
+        assertEquals("=A1*2", snapshot.findById("A5000").orElseThrow().getData());
+        assertEquals(Optional.empty(), snapshot.findById("B1"));
+        assertEquals("2", store[0].findById("A1").orElseThrow().getData());
+        assertEquals("3", store[0].snapshot().findById("B1").orElseThrow().getData());
+        assertEquals(List.of("absent", "1"), dataSeenByListener);
+        store[0].close();
+    }
+
+    /**
+     * Row of the cell as stored by the database, a number written in its canonical form is only held by the number column.
+     */
+    private CellData cellData(Map.Entry<String, String> cell) {
+        Cell typed = new Cell(cell.getKey(), cell.getValue());
+        boolean number = typed.getKind() == CellKind.NUMBER;
+        return new CellData() {
+            @Override
+            public String getCellId() {
+                return cell.getKey();
+            }
+
+            @Override
+            public String getData() {
+                return number && cell.getValue().equals(CellKind.formatNumber(typed.getNumber())) ? null : cell.getValue();
+            }
+
+            @Override
+            public Double getNumber() {
+                return number ? typed.getNumber() : null;
+            }
+        };
+    }
+}
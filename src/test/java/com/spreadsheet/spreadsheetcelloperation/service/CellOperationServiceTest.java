@@ -1,21 +1,64 @@
 package com.spreadsheet.spreadsheetcelloperation.service;
 
+import com.spreadsheet.spreadsheetcelloperation.exception.CircularDependencyException;
+import com.spreadsheet.spreadsheetcelloperation.exception.CsvFormatException;
 import com.spreadsheet.spreadsheetcelloperation.exception.ExpressionEvaluationException;
 import com.spreadsheet.spreadsheetcelloperation.exception.InvalidCellIdException;
 import com.spreadsheet.spreadsheetcelloperation.exception.SelfReferenceException;
 import com.spreadsheet.spreadsheetcelloperation.model.Cell;
-import com.spreadsheet.spreadsheetcelloperation.repository.CellRepository;
+import com.spreadsheet.spreadsheetcelloperation.model.CellKind;
+import com.spreadsheet.spreadsheetcelloperation.model.CellRange;
+import com.spreadsheet.spreadsheetcelloperation.model.CellValue;
+import com.spreadsheet.spreadsheetcelloperation.model.DependencyEdge;
+import com.spreadsheet.spreadsheetcelloperation.model.Formula;
+import com.spreadsheet.spreadsheetcelloperation.repository.CellStore;
+import com.spreadsheet.spreadsheetcelloperation.utils.FormulaCompiler;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.observation.DefaultMeterObservationHandler;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.micrometer.observation.ObservationRegistry;
 import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
 import org.junit.jupiter.api.Test;
 import org.mockito.*;
-
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Optional;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.*;
 
 public class CellOperationServiceTest {
@@ -24,11 +67,61 @@ public class CellOperationServiceTest {
     private CellOperationService cellOperationService;
 
     @Mock
-    private CellRepository cellRepository;
+    private CellStore cellStore;
+
+    @Spy
+    private FormulaCache formulaCache = new FormulaCache(1_000_000);
+
+    @Spy
+    private ValueCache valueCache = new ValueCache(1_000_000);
+
+    @Spy
+    private DependencyGraph dependencyGraph = new DependencyGraph();
+
+    @Spy
+    private RecalculationScheduler recalculationScheduler = new RecalculationScheduler(512, 1, RecalculationScheduler.Mode.EAGER, Duration.ZERO, Duration.ZERO, Duration.ofSeconds(5));
+
+    @Spy
+    private CellMetrics cellMetrics = new CellMetrics(new SimpleMeterRegistry(), ObservationRegistry.NOOP);
+
+    @Spy
+    private CellLocks cellLocks = new CellLocks(1024);
+
+    @Spy
+    private CellSubscriptions cellSubscriptions = new CellSubscriptions(Duration.ofHours(1), 1, Duration.ofMinutes(1));
 
     @BeforeEach
     void setUp() {
         MockitoAnnotations.openMocks(this);
+        when(cellStore.snapshot()).thenReturn(cellStore);
+    }
+
+    /**
+     * @return a service over the given store, sharing the caches, graph, scheduler and other spies of the test.
+     */
+    private CellOperationService serviceOf(CellStore store) {
+        return serviceOf(store, recalculationScheduler);
+    }
+
+    private CellOperationService serviceOf(CellStore store, RecalculationScheduler scheduler) {
+        return new CellOperationService(store, formulaCache, valueCache, dependencyGraph, scheduler, cellMetrics, cellLocks, cellSubscriptions);
+    }
+
+    /**
+     * @return a service whose components are neither mocks nor spies, which would record the invocations of every cell.
+     */
+    private static CellOperationService unrecordedServiceOf(CellStore store, ValueCache cache, DependencyGraph graph,
+                                                            RecalculationScheduler scheduler, CellLocks locks) {
+        return new CellOperationService(store, new FormulaCache(1_000_000), cache, graph, scheduler,
+                new CellMetrics(new SimpleMeterRegistry(), ObservationRegistry.NOOP), locks,
+                new CellSubscriptions(Duration.ofHours(1), 1, Duration.ofMinutes(1)));
+    }
+
+    /**
+     * @return a scheduler without debounce, recalculating the levels of 512 cells or more on one thread.
+     */
+    private static RecalculationScheduler schedulerOf(RecalculationScheduler.Mode mode) {
+        return new RecalculationScheduler(512, 1, mode, Duration.ZERO, Duration.ZERO, Duration.ofSeconds(5));
     }
 
     // Unit Test ***
@@ -36,67 +129,179 @@ public class CellOperationServiceTest {
     void shouldThrowExceptionCalculateExpression(){
 
         String expression = "12+23)";
-        assertThrows(ExpressionEvaluationException.class, () -> cellOperationService.calculateExpressionValue(expression));
+        assertThrows(ExpressionEvaluationException.class, () -> cellOperationService.calculateExpressionValue(FormulaCompiler.compile(expression), valueCache.getGeneration()));
     }
 
     @Test
     void shouldCalculateExpression(){
 
         String expression = "12+23";
-        assertEquals("35.0",cellOperationService.calculateExpressionValue(expression));
+        assertEquals("35.0",cellOperationService.calculateExpressionValue(FormulaCompiler.compile(expression), valueCache.getGeneration()));
 
         String expression1 = "12+23.03+(10-5)";
-        assertEquals("40.03",cellOperationService.calculateExpressionValue(expression1));
+        assertEquals("40.03",cellOperationService.calculateExpressionValue(FormulaCompiler.compile(expression1), valueCache.getGeneration()));
     }
 
     @Test
     void shouldNotBeCircularDependent(){
 
-        Cell A1 = new Cell("A1","=A4+A2+A3");
-        Cell A2 = new Cell("A2","=12");
-        Cell A3 = new Cell("A3","=13");
-        Cell A4 = new Cell("A4","=14");
+        dependencyGraph.setPrecedents("A1", List.of("A4", "A2", "A3"));
+        dependencyGraph.setPrecedents("A3", List.of("A2"));
+        dependencyGraph.setPrecedents("A4", List.of("A3", "B2"));
 
-        List<Cell> dependencyList = new ArrayList<>();
-        dependencyList.add(A2);
-        dependencyList.add(A3);
-        dependencyList.add(A4);
+        assertEquals(false, dependencyGraph.isOnCycle("A1"));
+        assertEquals(List.of("B2", "A4", "A1"), dependencyGraph.getAffectedCellsInTopologicalOrder("B2"));
+        assertEquals(List.of("A2", "A3", "A4", "A1"), dependencyGraph.getAffectedCellsInTopologicalOrder("A2"));
+    }
 
-        A1.setDependentCells(dependencyList);
+    @Test
+    void shouldBeCircularDependent(){
 
-        assertEquals(false,cellOperationService.isCircularDependent(A1));
+        dependencyGraph.setPrecedents("A1", List.of("A4", "A2", "A3"));
+        dependencyGraph.setPrecedents("A3", List.of("B2"));
+
+        assertThrows(CircularDependencyException.class, () -> dependencyGraph.setPrecedents("B2", List.of("A1")));
+        assertEquals(Set.of(), dependencyGraph.getDependents("A1"));
+        assertEquals(List.of("B2", "A3", "A1"), dependencyGraph.getAffectedCellsInTopologicalOrder("B2"));
     }
 
     @Test
-    void shouldBeCircularDependent(){
+    void shouldRejectCircularDependencyOnWrite(){
 
-        Cell A1 = new Cell("A1","=A4+A2+A3");
-        Cell A2 = new Cell("A2","=12");
-        Cell A3 = new Cell("A3","=B2");
-        Cell A4 = new Cell("A4","=14");
+        Cell A1 = new Cell("A1","=A2");
+        Cell A2 = new Cell("A2","12");
+
+        Mockito.when(cellStore.findById(A1.getCellId()))
+                .thenReturn(Optional.of(A1));
+        Mockito.when(cellStore.findById(A2.getCellId()))
+                .thenReturn(Optional.of(A2));
+
+        cellOperationService.setCellValue(A1.getCellId(), A1.getData());
+        assertThrows(CircularDependencyException.class, () -> cellOperationService.setCellValue(A2.getCellId(), "=A1+1"));
+        verify(cellStore, never()).save(A2);
+    }
+
+    @Test
+    void getValue_ThrowCircularDependencyExceptionForPersistedCycle(){
+
+        dependencyGraph.load(List.of(edge("A1", "A2"), edge("A2", "A3"), edge("A3", "A1"), edge("B1", "A1")));
+
+        assertEquals(true, dependencyGraph.isOnCycle("B1"));
+        assertThrows(CircularDependencyException.class, () -> cellOperationService.getCellValue("A2"));
 
-        List<Cell> dependencyList1 = new ArrayList<>();
-        dependencyList1.add(A2);
-        dependencyList1.add(A3);
-        dependencyList1.add(A4);
+        dependencyGraph.setPrecedents("A3", List.of());
+        assertEquals(false, dependencyGraph.isOnCycle("B1"));
+        assertEquals(List.of("A3", "A2", "A1", "B1"), dependencyGraph.getAffectedCellsInTopologicalOrder("A3"));
+    }
 
-        A1.setDependentCells(dependencyList1);
+    @Test
+    void shouldOrderWritesBesidePersistedCycleAndRejectTheirCycles(){
+
+        dependencyGraph.load(List.of(edge("A1", "A2"), edge("A2", "A3"), edge("A3", "A1"), edge("B1", "A1"), edge("C2", "C1")));
+
+        // the writes away from the cycle are ordered and checked among the ordered cells
+        dependencyGraph.setPrecedents("C3", List.of("C2"));
+        assertEquals(List.of("C1", "C2", "C3"), dependencyGraph.getAffectedCellsInTopologicalOrder("C1"));
+        assertThrows(CircularDependencyException.class, () -> dependencyGraph.setPrecedents("C1", List.of("C3")));
+        assertEquals(List.of(), dependencyGraph.getPrecedents("C1"));
+        dependencyGraph.setPrecedents("C1", List.of("D1"));
+        assertEquals(List.of("D1", "C1", "C2", "C3"), dependencyGraph.getAffectedCellsInTopologicalOrder("D1"));
+
+        // referencing a cell on the cycle, directly or through a range, puts the cell and its dependents on it
+        dependencyGraph.setPrecedents("C4", List.of("C3", "B1"));
+        dependencyGraph.setPrecedents("E1", List.of("A1:A3"));
+        dependencyGraph.setPrecedents("E2", List.of("E1", "C1"));
+        assertEquals(true, dependencyGraph.isOnCycle("C4"));
+        assertEquals(true, dependencyGraph.isOnCycle("E2"));
+        assertEquals(false, dependencyGraph.isOnCycle("C3"));
+        assertEquals(List.of("D1", "C1", "C2", "C3"), dependencyGraph.getAffectedCellsInTopologicalOrder("D1"));
+
+        dependencyGraph.setPrecedents("A3", List.of());
+        assertEquals(false, dependencyGraph.isOnCycle("C4"));
+        List<String> affected = dependencyGraph.getAffectedCellsInTopologicalOrder(List.of("A3", "D1"));
+        assertEquals(Set.of("A3", "A2", "A1", "B1", "C4", "E1", "E2", "D1", "C1", "C2", "C3"), Set.copyOf(affected));
+        assertEquals(true, affected.indexOf("A1") < affected.indexOf("B1") && affected.indexOf("B1") < affected.indexOf("C4"));
+        assertEquals(true, affected.indexOf("C3") < affected.indexOf("C4") && affected.indexOf("E1") < affected.indexOf("E2"));
+    }
 
-        Cell B2 = new Cell("B2","=A1");
-        List<Cell> dependencyList2 = new ArrayList<>();
-        dependencyList2.add(A1);
-        B2.setDependentCells(dependencyList2);
+    /**
+     * A store over the given map that, like the database, rejects inserting a cell that already exists.
+     * The cells of the map are existing cells, so they are flagged as not new when they are read.
+     */
+    private CellStore inMemoryStore(Map<String, Cell> cells){
+        return (CellStore) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{CellStore.class},
+                (proxy, method, args) -> switch (method.getName()) {
+                    case "findById" -> Optional.ofNullable(load(cells, (String) args[0]));
+                    case "findAllById" -> {
+                        List<Cell> found = new ArrayList<>();
+                        ((Iterable<?>) args[0]).forEach(id -> Optional.ofNullable(load(cells, (String) id)).ifPresent(found::add));
+                        yield found;
+                    }
+                    case "findAllInRange" -> cells.keySet().stream()
+                            .filter(((CellRange) args[0])::contains)
+                            .map(id -> load(cells, id))
+                            .toList();
+                    case "snapshot" -> proxy;
+                    case "awaitWriteCapacity" -> null;
+                    case "invalidateComputedValues" -> {
+                        ((Collection<?>) args[0]).forEach(id -> Optional.ofNullable(cells.get(id)).ifPresent(Cell::invalidateComputedValue));
+                        yield null;
+                    }
+                    case "findValueVersions" -> {
+                        Map<String, Long> valueVersions = new HashMap<>();
+                        ((Collection<?>) args[0]).forEach(id -> Optional.ofNullable(cells.get(id))
+                                .ifPresent(cell -> valueVersions.put(cell.getCellId(), cell.getValueVersion())));
+                        yield valueVersions;
+                    }
+                    case "saveComputedValues" -> {
+                        Map<?, ?> valueVersions = (Map<?, ?>) args[1];
+                        ((Map<?, ?>) args[0]).forEach((id, value) -> Optional.ofNullable(cells.get(id))
+                                .filter(cell -> valueVersions.get(id) != null && cell.getValueVersion() == (Long) valueVersions.get(id))
+                                .ifPresent(cell -> cell.setComputedValue((Double) value)));
+                        yield null;
+                    }
+                    case "save" -> save(cells, (Cell) args[0]);
+                    case "saveAll" -> {
+                        ((Iterable<?>) args[0]).forEach(cell -> save(cells, (Cell) cell));
+                        yield args[0];
+                    }
+                    default -> throw new UnsupportedOperationException(method.getName());
+                });
+    }
 
-        List<Cell> dependencyList3 = new ArrayList<>();
-        dependencyList3.add(B2);
-        A3.setDependentCells(dependencyList3);
+    private static Cell load(Map<String, Cell> cells, String cellId){
+        Cell cell = cells.get(cellId);
+        if (cell != null) {
+            cell.markNotNew();
+        }
+        return cell;
+    }
 
-        assertEquals(true,cellOperationService.isCircularDependent(A1));
+    private static Cell save(Map<String, Cell> cells, Cell cell){
+        if (cell.isNew() && cells.putIfAbsent(cell.getCellId(), cell) != null) {
+            throw new DataIntegrityViolationException("Duplicate entry for Cell Id: " + cell.getCellId());
+        }
+        cells.put(cell.getCellId(), cell);
+        cell.markNotNew();
+        return cell;
+    }
 
+    private DependencyEdge edge(String cellId, String precedentId){
+        return new DependencyEdge() {
+            @Override
+            public String getCellId() {
+                return cellId;
+            }
+
+            @Override
+            public String getPrecedentId() {
+                return precedentId;
+            }
+        };
     }
 
     @Test
-    void shouldEvaluateExpressionToGenerateFinalExpression(){
+    void shouldEvaluateCompiledExpressionWithReferencedValues(){
 
         Cell A1 = new Cell("A1","=A4+A2+A3");
         Cell A2 = new Cell("A2","=12");
@@ -110,24 +315,23 @@ public class CellOperationServiceTest {
 
         A1.setDependentCells(dependencyList);
 
-        Mockito.when(cellRepository.findById(A1.getCellId()))
+        Mockito.when(cellStore.findById(A1.getCellId()))
                 .thenReturn(Optional.of(A1));
-        Mockito.when(cellRepository.findById(A2.getCellId()))
+        Mockito.when(cellStore.findById(A2.getCellId()))
                 .thenReturn(Optional.of(A2));
-        Mockito.when(cellRepository.findById(A3.getCellId()))
+        Mockito.when(cellStore.findById(A3.getCellId()))
                 .thenReturn(Optional.of(A3));
-        Mockito.when(cellRepository.findById(A4.getCellId()))
+        Mockito.when(cellStore.findById(A4.getCellId()))
                 .thenReturn(Optional.of(A4));
 
-        String result = "=14+12+13";
-        assertEquals(result,cellOperationService.evaluateExpression(A1.getData()));
+        assertEquals(39.0,cellOperationService.evaluateExpression(FormulaCompiler.compile(A1.getData().substring(1)), new HashMap<>(), valueCache.getGeneration()));
     }
 
     @Test
     void shouldThrowNoSuchElementExceptionFromEvaluateExpression(){
 
         Cell A1 = new Cell("A1","=A5+A2+A3");
-        assertThrows(NoSuchElementException.class,()->cellOperationService.evaluateExpression(A1.getData()));
+        assertThrows(NoSuchElementException.class,()->cellOperationService.evaluateExpression(FormulaCompiler.compile(A1.getData().substring(1)), new HashMap<>(), valueCache.getGeneration()));
     }
 
     @Test
@@ -143,14 +347,10 @@ public class CellOperationServiceTest {
 
         A1.setDependentCells(dependencyList);
 
-        Mockito.when(cellRepository.findById(A1.getCellId()))
-                .thenReturn(Optional.of(A1));
-        Mockito.when(cellRepository.findById(A2.getCellId()))
-                .thenReturn(Optional.of(A2));
-        Mockito.when(cellRepository.findById(A3.getCellId()))
-                .thenReturn(Optional.of(A3));
+        Mockito.when(cellStore.findAllById(List.of(A2.getCellId(), A3.getCellId())))
+                .thenReturn(List.of(A3, A2));
 
-        assertEquals(dependencyList, cellOperationService.createDependencyListFromExpression(A1.getCellId(), A1.getData()));
+        assertEquals(dependencyList, cellOperationService.createDependencyListFromExpression(A1.getCellId(), A1.getData().substring(1)));
     }
 
     @Test
@@ -170,17 +370,17 @@ public class CellOperationServiceTest {
         Object value = 123;
         Cell createdCell = new Cell(cellId, value.toString());
 
-        Mockito.when(cellRepository.findById(cellId.toUpperCase())).thenReturn(Optional.of(createdCell));
+        Mockito.when(cellStore.findById(cellId.toUpperCase())).thenReturn(Optional.of(createdCell));
         cellOperationService.setCellValue(cellId, value);
-        verify(cellRepository, atLeastOnce()).save(createdCell);
+        verify(cellStore, atLeastOnce()).save(createdCell);
 
         String cellId1 = "Z2";
         Object value1 = -123.89;
         Cell createdCell1 = new Cell(cellId1, value1.toString());
 
-        Mockito.when(cellRepository.findById(cellId.toUpperCase())).thenReturn(Optional.of(createdCell1));
+        Mockito.when(cellStore.findById(cellId.toUpperCase())).thenReturn(Optional.of(createdCell1));
         cellOperationService.setCellValue(cellId, value);
-        verify(cellRepository, atLeastOnce()).save(createdCell);
+        verify(cellStore, atLeastOnce()).save(createdCell);
     }
 
     @Test
@@ -203,9 +403,9 @@ public class CellOperationServiceTest {
 
         A1.setDependentCells(dependencyList);
 
-        Mockito.when(cellRepository.findById(A1.getCellId()))
+        Mockito.when(cellStore.findById(A1.getCellId()))
                 .thenReturn(Optional.of(A1));
-        Mockito.when(cellRepository.findById(A2.getCellId()))
+        Mockito.when(cellStore.findById(A2.getCellId()))
                 .thenReturn(Optional.of(A2));
 
         assertEquals("24.0",cellOperationService.getCellValue(A1.getCellId()));
@@ -222,9 +422,9 @@ public class CellOperationServiceTest {
 
         A1.setDependentCells(dependencyList);
 
-        Mockito.when(cellRepository.findById(A1.getCellId()))
+        Mockito.when(cellStore.findById(A1.getCellId()))
                 .thenReturn(Optional.of(A1));
-        Mockito.when(cellRepository.findById(A2.getCellId()))
+        Mockito.when(cellStore.findById(A2.getCellId()))
                 .thenReturn(Optional.of(A2));
 
         assertEquals("-12.0",cellOperationService.getCellValue(A1.getCellId()));
@@ -245,13 +445,13 @@ public class CellOperationServiceTest {
 
         A1.setDependentCells(dependencyList);
 
-        Mockito.when(cellRepository.findById(A1.getCellId()))
+        Mockito.when(cellStore.findById(A1.getCellId()))
                 .thenReturn(Optional.of(A1));
-        Mockito.when(cellRepository.findById(A2.getCellId()))
+        Mockito.when(cellStore.findById(A2.getCellId()))
                 .thenReturn(Optional.of(A2));
-        Mockito.when(cellRepository.findById(A3.getCellId()))
+        Mockito.when(cellStore.findById(A3.getCellId()))
                 .thenReturn(Optional.of(A3));
-        Mockito.when(cellRepository.findById(A4.getCellId()))
+        Mockito.when(cellStore.findById(A4.getCellId()))
                 .thenReturn(Optional.of(A4));
 
         assertEquals("-11.0",cellOperationService.getCellValue(A1.getCellId()));
@@ -272,18 +472,815 @@ public class CellOperationServiceTest {
 
         A1.setDependentCells(dependencyList);
 
-        Mockito.when(cellRepository.findById(A1.getCellId()))
+        Mockito.when(cellStore.findById(A1.getCellId()))
                 .thenReturn(Optional.of(A1));
-        Mockito.when(cellRepository.findById(A2.getCellId()))
+        Mockito.when(cellStore.findById(A2.getCellId()))
                 .thenReturn(Optional.of(A2));
-        Mockito.when(cellRepository.findById(A3.getCellId()))
+        Mockito.when(cellStore.findById(A3.getCellId()))
                 .thenReturn(Optional.of(A3));
-        Mockito.when(cellRepository.findById(A4.getCellId()))
+        Mockito.when(cellStore.findById(A4.getCellId()))
                 .thenReturn(Optional.of(A4));
 
         assertThrows(ExpressionEvaluationException.class,() ->cellOperationService.getCellValue(A1.getCellId()));
     }
 
+    @Test
+    void getValueForNestedExpressionKeepsPrecedence(){
+
+        Cell A1 = new Cell("A1","=2*A2");
+        Cell A2 = new Cell("A2","=1+1");
+
+        List<Cell> dependencyList = new ArrayList<>();
+        dependencyList.add(A2);
+
+        A1.setDependentCells(dependencyList);
+
+        Mockito.when(cellStore.findById(A1.getCellId()))
+                .thenReturn(Optional.of(A1));
+        Mockito.when(cellStore.findById(A2.getCellId()))
+                .thenReturn(Optional.of(A2));
+
+        assertEquals("4.0",cellOperationService.getCellValue(A1.getCellId()));
+    }
+
+    @Test
+    void shouldReuseCompiledFormulaUntilCellIsWritten(){
+
+        Cell A1 = new Cell("A1","=12+A2");
+        Cell A2 = new Cell("A2","12");
+
+        Mockito.when(cellStore.findById(A1.getCellId()))
+                .thenReturn(Optional.of(A1));
+        Mockito.when(cellStore.findById(A2.getCellId()))
+                .thenReturn(Optional.of(A2));
+
+        cellOperationService.setCellValue(A1.getCellId(), A1.getData());
+        Formula compiled = formulaCache.getOrCompile(A1.getCellId(), "12+A2");
+        assertEquals("24.0",cellOperationService.getCellValue(A1.getCellId()));
+        assertSame(compiled, formulaCache.getOrCompile(A1.getCellId(), "12+A2"));
+
+        cellOperationService.setCellValue(A1.getCellId(), "5");
+        assertNotSame(compiled, formulaCache.getOrCompile(A1.getCellId(), "12+A2"));
+    }
+
+    @Test
+    void shouldServeCachedValueUntilUpstreamCellIsWritten(){
+
+        Cell A1 = new Cell("A1","=A2*2");
+        Cell A2 = new Cell("A2","=A3+1");
+        Cell A3 = new Cell("A3","4");
+
+        Mockito.when(cellStore.findById(A1.getCellId()))
+                .thenReturn(Optional.of(A1));
+        Mockito.when(cellStore.findById(A2.getCellId()))
+                .thenReturn(Optional.of(A2));
+        Mockito.when(cellStore.findById(A3.getCellId()))
+                .thenReturn(Optional.of(A3));
+
+        assertEquals("10.0",cellOperationService.getCellValue(A1.getCellId()));
+        assertEquals("10.0",cellOperationService.getCellValue(A1.getCellId()));
+        verify(cellStore, times(1)).findById(A3.getCellId());
+
+        cellOperationService.setCellValue(A3.getCellId(), "9");
+        assertEquals(null, valueCache.get(A2.getCellId()));
+        assertEquals("20.0",cellOperationService.getCellValue(A1.getCellId()));
+    }
+
+    @Test
+    void shouldRecalculateDependentsInTopologicalOrderOnWrite(){
+
+        Map<String, Cell> cells = new HashMap<>();
+        Mockito.when(cellStore.findById(anyString()))
+                .thenAnswer(invocation -> Optional.ofNullable(cells.get(invocation.<String>getArgument(0))));
+        Mockito.when(cellStore.save(any(Cell.class)))
+                .thenAnswer(invocation -> {
+                    Cell cell = invocation.getArgument(0);
+                    cells.put(cell.getCellId(), cell);
+                    return cell;
+                });
+        Mockito.when(cellStore.findAllById(anyIterable()))
+                .thenAnswer(invocation -> {
+                    List<Cell> found = new ArrayList<>();
+                    invocation.<Iterable<String>>getArgument(0).forEach(id -> found.add(cells.get(id)));
+                    return found;
+                });
+
+        cellOperationService.setCellValue("A3", "4");
+        cellOperationService.setCellValue("A2", "=A3+1");
+        cellOperationService.setCellValue("A1", "=A2*2+A3");
+        assertEquals(List.of("A3", "A2", "A1"), dependencyGraph.getAffectedCellsInTopologicalOrder("A3"));
+        assertEquals(14.0, valueCache.get("A1"));
+
+        cellOperationService.setCellValue("A3", "9");
+        assertEquals(10.0, valueCache.get("A2"));
+        assertEquals(29.0, valueCache.get("A1"));
+        assertEquals(Set.of("A1", "A2"), dependencyGraph.getDependents("A3"));
+
+        cellOperationService.setCellValue("A1", "=A2");
+        assertEquals(Set.of("A2"), dependencyGraph.getDependents("A3"));
+    }
+
+    @Test
+    void shouldEvaluateAndRecalculateLongChainWithoutStackOverflow(){
+        // deep enough to overflow the default thread stack with a recursive evaluation
+        assertChainEvaluatesAndRecalculates(100_000);
+    }
+
+    @Test
+    @Tag("slow")
+    void shouldEvaluateAndRecalculateMillionCellChainInBoundedMemory(){
+        assertChainEvaluatesAndRecalculates(1_000_000);
+    }
+
+    private void assertChainEvaluatesAndRecalculates(int chainLength){
+
+        Map<String, Cell> cells = new HashMap<>();
+        List<DependencyEdge> edges = new ArrayList<>();
+        cells.put("A1", new Cell("A1", "1"));
+        for (int row = 2; row <= chainLength; row++) {
+            cells.put("A" + row, new Cell("A" + row, "=A" + (row - 1) + "+1"));
+            edges.add(edge("A" + row, "A" + (row - 1)));
+        }
+        CellStore chainStore = inMemoryStore(cells);
+        ValueCache chainValueCache = new ValueCache(1_000_000);
+        DependencyGraph chainGraph = new DependencyGraph();
+        CellOperationService chainService = unrecordedServiceOf(chainStore, chainValueCache, chainGraph,
+                schedulerOf(RecalculationScheduler.Mode.EAGER), new CellLocks(1024));
+        chainGraph.load(edges);
+
+        assertEquals(String.valueOf((double) chainLength), chainService.getCellValue("A" + chainLength));
+
+        chainService.setCellValue("A1", "2");
+        assertEquals(chainLength + 1.0, chainValueCache.get("A" + chainLength));
+    }
+
+    @Test
+    void shouldSaveBatchWithSingleLookupAndRecalculateOnce(){
+
+        Map<String, Cell> cells = new HashMap<>();
+        cells.put("B1", new Cell("B1", "3"));
+        CellStore batchStore = spy(inMemoryStore(cells));
+        CellOperationService batchService = serviceOf(batchStore);
+
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("A1", "=A2+B1");
+        values.put("A2", "=A3*2");
+        values.put("A3", 5);
+        batchService.setCellValues(values);
+
+        // one lookup for the write, one for the recalculation after the commit
+        verify(batchStore, times(2)).findAllById(anyIterable());
+        verify(batchStore, never()).findById(anyString());
+        assertEquals(List.of("A2", "B1"), cells.get("A1").getDependentCells().stream().map(Cell::getCellId).toList());
+        assertEquals(13.0, valueCache.get("A1"));
+        assertEquals(Set.of("A1"), dependencyGraph.getDependents("B1"));
+    }
+
+    @Test
+    void shouldRejectBatchClosingCircularDependency(){
+
+        dependencyGraph.setPrecedents("A1", List.of("A2"));
+
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("A2", "=A3");
+        values.put("A3", "=A1");
+
+        assertThrows(CircularDependencyException.class, () -> cellOperationService.setCellValues(values));
+        assertEquals(Set.of(), dependencyGraph.getDependents("A3"));
+        assertEquals(Set.of("A1"), dependencyGraph.getDependents("A2"));
+        verify(cellStore, never()).saveAll(anyIterable());
+    }
+
+    @Test
+    void shouldReadRangeWithSharedPrecedentsInSingleLookup(){
+
+        Map<String, Cell> cells = new HashMap<>();
+        cells.put("C1", new Cell("C1", "4"));
+        cells.put("A1", new Cell("A1", "=C1*2"));
+        cells.put("B1", new Cell("B1", "=C1+A1"));
+        cells.put("A2", new Cell("A2", "=B1/C1"));
+        dependencyGraph.setPrecedents("A1", List.of("C1"));
+        dependencyGraph.setPrecedents("B1", List.of("C1", "A1"));
+        dependencyGraph.setPrecedents("A2", List.of("B1", "C1"));
+        CellStore rangeStore = spy(inMemoryStore(cells));
+        CellOperationService rangeService = serviceOf(rangeStore);
+
+        List<CellValue> values = rangeService.getCellValues(List.of("D9", "a1"), List.of("B2:A1")).toList();
+
+        assertEquals(List.of(
+                CellValue.failed("D9", "Invalid Cell Id : Cell doesn't exist"),
+                CellValue.failed("a1", "Invalid Cell Id provided"),
+                CellValue.of("A1", "8.0"),
+                CellValue.of("B1", "12.0"),
+                CellValue.of("A2", "3.0")), values);
+        // the range is read by its coordinates, only C1 outside of it is looked up with D9
+        verify(rangeStore, times(1)).findAllInRange(any(CellRange.class));
+        verify(rangeStore, times(1)).findAllById(anyIterable());
+        verify(rangeStore, never()).findById(anyString());
+        assertEquals(12.0, valueCache.get("B1"));
+    }
+
+    @Test
+    void shouldLoadPrecedentsOfWideFormulaInBoundedNumberOfQueries(){
+
+        Map<String, Cell> cells = new HashMap<>();
+        StringBuilder sumOfB = new StringBuilder("=0");
+        for (int row = 1; row <= 500; row++) {
+            cells.put("C" + row, new Cell("C" + row, String.valueOf(row)));
+            cells.put("B" + row, new Cell("B" + row, "=C" + row + "*2"));
+            dependencyGraph.setPrecedents("B" + row, List.of("C" + row));
+            sumOfB.append("+B").append(row);
+        }
+        cells.put("A1", new Cell("A1", sumOfB.toString()));
+        dependencyGraph.setPrecedents("A1", FormulaCompiler.compile(sumOfB.substring(1)).getPrecedents());
+        CellStore wideStore = spy(inMemoryStore(cells));
+        CellOperationService wideService = serviceOf(wideStore);
+
+        // A1 by its key, then its 1000 precedents in one chunk
+        assertEquals("250500.0", wideService.getCellValue("A1"));
+        verify(wideStore, times(1)).findById("A1");
+        verify(wideStore, times(1)).findAllById(anyIterable());
+        verify(wideStore, times(1)).saveComputedValues(Map.of("A1", 250500.0), Map.of("A1", cells.get("A1").getValueVersion()));
+
+        clearInvocations(wideStore);
+        wideService.setCellValue("D1", sumOfB.toString().replace("+B500", "+E1"));
+        // the references, then D1 and its precedents when recalculating it
+        verify(wideStore, times(2)).findAllById(anyIterable());
+        verify(wideStore, times(1)).saveAll(anyIterable());
+        verify(wideStore, times(1)).findById("D1");
+    }
+
+    @Test
+    void shouldPushCoalescedRecalculatedValuesToSubscribers() throws InterruptedException {
+
+        BlockingQueue<List<?>> pushed = new LinkedBlockingQueue<>();
+        CellSubscriptions subscriptions = new CellSubscriptions(Duration.ofHours(1), 1, Duration.ofMinutes(1)) {
+            @Override
+            SseEmitter createEmitter() {
+                return new SseEmitter() {
+                    @Override
+                    public void send(SseEventBuilder builder) {
+                        builder.build().stream()
+                                .filter(item -> item.getData() instanceof List<?>)
+                                .forEach(item -> pushed.add((List<?>) item.getData()));
+                    }
+                };
+            }
+        };
+        Map<String, Cell> cells = new HashMap<>();
+        cells.put("A1", new Cell("A1", "1"));
+        cells.put("A3", new Cell("A3", "=A1*10"));
+        cells.put("B1", new Cell("B1", "text"));
+        dependencyGraph.setPrecedents("A3", List.of("A1"));
+        CellOperationService subscribedService = new CellOperationService(inMemoryStore(cells), formulaCache, valueCache,
+                dependencyGraph, recalculationScheduler, cellMetrics, cellLocks, subscriptions);
+
+        try {
+            subscribedService.subscribe(List.of("B1"), List.of("A2:A3"));
+            subscriptions.tick();
+            assertEquals(Set.of(CellValue.of("B1", "text"), CellValue.of("A3", "10.0")),
+                    Set.copyOf(pushed.poll(5, TimeUnit.SECONDS)));
+
+            subscribedService.setCellValue("A1", "2");
+            subscribedService.setCellValue("A1", "3");
+            subscriptions.tick();
+            assertEquals(List.of(CellValue.of("A3", "30.0")), pushed.poll(5, TimeUnit.SECONDS));
+
+            // the value of A3 doesn't change, nothing is pushed
+            subscribedService.setCellValue("A1", "3");
+            subscriptions.tick();
+            assertNull(pushed.poll(200, TimeUnit.MILLISECONDS));
+
+            assertThrows(InvalidCellIdException.class, () -> subscribedService.subscribe(List.of("a1"), List.of()));
+        }
+        finally {
+            subscriptions.shutdown();
+        }
+    }
+
+    @Test
+    void shouldResolveReferencesAcrossSheetsAndKeepWorkbooksApart(){
+
+        CellOperationService sheetsService = serviceOf(inMemoryStore(new HashMap<>()));
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("Sheet2!B7", 5);
+        values.put("Sheet2!C1", "=B7+1");
+        values.put("AA1", "=Sheet2!B7*2+SUM(Sheet2!B7:C7)");
+        sheetsService.setCellValues(values);
+        Map<String, Object> acmeValues = new LinkedHashMap<>();
+        acmeValues.put("[acme]Sheet2!B7", 100);
+        acmeValues.put("[acme]AA1", "=Sheet2!B7*2");
+        sheetsService.setCellValues(acmeValues);
+        sheetsService.setCellValue("XFD1048576", "=AA1");
+
+        assertEquals("6.0", sheetsService.getCellValue("Sheet2!C1"));
+        assertEquals("15.0", sheetsService.getCellValue("AA1"));
+        assertEquals("200.0", sheetsService.getCellValue("[acme]AA1"));
+        assertEquals(List.of("Sheet2!B7", "Sheet2!B7:C7"), dependencyGraph.getPrecedents("AA1"));
+
+        sheetsService.setCellValue("Sheet2!B7", "6");
+        assertEquals(18.0, valueCache.get("AA1"));
+        assertEquals(18.0, valueCache.get("XFD1048576"));
+        assertEquals(200.0, valueCache.get("[acme]AA1"));
+
+        for (String invalidCellId : List.of("AAAA1", "XFE1", "A1048577", "A01", "sheet 2!A1", "[acme A1")) {
+            assertThrows(InvalidCellIdException.class, () -> sheetsService.getCellValue(invalidCellId), invalidCellId);
+        }
+        assertThrows(InvalidCellIdException.class, () -> sheetsService.getCellValues(List.of("A1", "[acme]A1"), List.of()));
+        assertThrows(InvalidCellIdException.class, () -> sheetsService.setCellValues(Map.of("A1", 1, "[acme]A1", 2)));
+        assertThrows(ExpressionEvaluationException.class, () -> sheetsService.setCellValue("A2", "=[acme]A1"));
+        assertThrows(ExpressionEvaluationException.class, () -> sheetsService.setCellValue("A2", "=SUM(A1:XFD1048576)"));
+    }
+
+    @Test
+    void shouldImportAndExportSheetAsCsv() throws IOException {
+
+        CellOperationService sheetsService = spy(serviceOf(inMemoryStore(new HashMap<>())));
+        CellStore usedRangeStore = mock(CellStore.class);
+        when(usedRangeStore.findUsedRange("[acme]Sheet2!")).thenReturn(Optional.of(CellRange.parse("[acme]Sheet2!A1:C4")));
+        CellTransfer cellTransfer = new CellTransfer(sheetsService, usedRangeStore);
+        String csv = "\uFEFF12,\"Total, \"\"net\"\"\",=A1*2\r\n\r\n,,=B1*2\n=C1+A1\n";
+
+        assertEquals(5, cellTransfer.importCsv("[acme]Sheet2!", new ByteArrayInputStream(csv.getBytes(StandardCharsets.UTF_8))));
+        verify(sheetsService, times(1)).importCellValues(anyMap());
+        assertEquals("36.0", sheetsService.getCellValue("[acme]Sheet2!A4"));
+
+        ByteArrayOutputStream exported = new ByteArrayOutputStream();
+        cellTransfer.exportCsv("[acme]Sheet2!").writeTo(exported);
+        assertEquals("12,\"Total, \"\"net\"\"\",24.0\r\n\r\n,,#ERROR: Error evaluating expression: Cell [acme]Sheet2!B1 doesn't hold a numeric value\r\n36.0\r\n",
+                exported.toString(StandardCharsets.UTF_8));
+
+        assertThrows(CsvFormatException.class, () -> cellTransfer.importCsv("", new ByteArrayInputStream("\"open".getBytes(StandardCharsets.UTF_8))));
+        assertThrows(InvalidCellIdException.class, () -> cellTransfer.exportCsv("Sheet 2!"));
+    }
+
+    @Test
+    void shouldRecordMetricsOfReads(){
+
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        ObservationRegistry observationRegistry = ObservationRegistry.create();
+        observationRegistry.observationConfig().observationHandler(new DefaultMeterObservationHandler(registry));
+        valueCache.bindTo(registry);
+        Map<String, Cell> cells = new HashMap<>();
+        cells.put("C1", new Cell("C1", "4"));
+        cells.put("A1", new Cell("A1", "=C1*2"));
+        cells.put("B1", new Cell("B1", "=A1+C1"));
+        dependencyGraph.setPrecedents("A1", List.of("C1"));
+        dependencyGraph.setPrecedents("B1", List.of("A1", "C1"));
+        CellMetrics meteredCellMetrics = new CellMetrics(registry, observationRegistry);
+        CellOperationService meteredService = new CellOperationService(inMemoryStore(cells), formulaCache, valueCache,
+                dependencyGraph, recalculationScheduler, meteredCellMetrics, cellLocks, cellSubscriptions);
+
+        assertEquals("12.0", meteredService.getCellValue("B1"));
+        assertEquals("12.0", meteredService.getCellValue("B1"));
+
+        assertEquals(2, registry.get(CellMetrics.READ).timer().count());
+        DistributionSummary roundTrips = registry.get("spreadsheet.store.round.trips").tag("request", CellMetrics.READ).summary();
+        // B1 by its key, its precedents with a single findAllById, then its computed value is stored
+        assertEquals(3, roundTrips.totalAmount());
+        assertEquals(3, roundTrips.max());
+        assertEquals(4, registry.get("spreadsheet.read.cells.visited").summary().totalAmount());
+        assertEquals(3, registry.get("spreadsheet.graph.walk.depth").tag("walk", "evaluation").summary().max());
+        assertEquals(2, registry.get("spreadsheet.formula.evaluation").timer().count());
+        assertEquals(1, registry.get("spreadsheet.cache.lookups").tags("cache", "value", "result", "hit").functionCounter().count());
+
+        // a multi cell read is observed until its stream is closed, with the cells evaluated while it is consumed
+        Stream<CellValue> cellValues = meteredService.getCellValues(List.of("A1", "B1", "D1"), List.of());
+        assertEquals(2, registry.get(CellMetrics.READ).timer().count());
+        try (cellValues) {
+            assertEquals(List.of(CellValue.of("A1", "8.0"), CellValue.of("B1", "12.0"), CellValue.failed("D1", "Invalid Cell Id : Cell doesn't exist")),
+                    cellValues.toList());
+        }
+        assertEquals(3, registry.get(CellMetrics.READ).timer().count());
+        assertEquals(3, roundTrips.count());
+
+        // a read started by the caller, like the non-blocking reads, is joined by the read of the service it runs
+        CellMetrics.StartedRequest read = meteredCellMetrics.start(CellMetrics.READ);
+        read.countRoundTrip();
+        assertEquals("8.0", read.run(() -> meteredService.getCellValue("A1")));
+        read.stop();
+        read.stop();
+        assertEquals(4, registry.get(CellMetrics.READ).timer().count());
+        assertEquals(4, roundTrips.count());
+        assertEquals(3, roundTrips.max());
+    }
+
+    @Test
+    void shouldRejectTooLargeOrInvalidRange(){
+
+        assertThrows(InvalidCellIdException.class, () -> cellOperationService.getCellValues(List.of(), List.of("A1:B")));
+        assertThrows(InvalidCellIdException.class, () -> cellOperationService.getCellValues(List.of(), List.of("A1:Z99999")));
+        assertEquals(new CellRange("", 1, 2, 2, 3), CellRange.parse("C3:B2"));
+    }
+
+    @Test
+    void shouldTypeCellValuesAndEvaluateNumbersWithoutParsing(){
+
+        Cell integer = new Cell("A1", "12");
+        Cell decimal = new Cell("A2", "12.50");
+        assertEquals(CellKind.NUMBER, integer.getKind());
+        assertEquals(12.0, integer.getNumber());
+        assertEquals("12", integer.getData());
+        assertEquals(12.5, decimal.getNumber());
+        assertEquals("12.50", decimal.getData());
+        assertEquals("-0.25", Cell.ofNumber("A3", -0.25, null).getData());
+        assertEquals(CellKind.BOOLEAN, new Cell("A4", "true").getKind());
+        assertEquals(CellKind.ERROR, new Cell("A5", "#DIV/0!").getKind());
+        assertEquals(CellKind.TEXT, new Cell("A6", "12 apples").getKind());
+        assertEquals(CellKind.FORMULA, new Cell("A7", "=A1").getKind());
+        assertEquals(CellKind.EMPTY, new Cell("A8").getKind());
+
+        Map<String, Cell> cells = new HashMap<>();
+        cells.put("A1", integer);
+        cells.put("A2", decimal);
+        cells.put("A4", new Cell("A4", "TRUE"));
+        cells.put("A5", new Cell("A5", "#DIV/0!"));
+        cells.put("B1", new Cell("B1", "=A1+A2+A4"));
+        cells.put("B2", new Cell("B2", "=SUM(A1:A5)"));
+        cells.put("B3", new Cell("B3", "=A5*2"));
+        CellOperationService typedService = serviceOf(inMemoryStore(cells));
+
+        assertEquals("25.5", typedService.getCellValue("B1"));
+        // the boolean and the error of the range are skipped like text
+        assertEquals("24.5", typedService.getCellValue("B2"));
+        assertEquals(List.of(CellValue.failed("B3", "Error evaluating expression: Cell A5 holds the error #DIV/0!"), CellValue.of("A4", "TRUE")),
+                typedService.getCellValues(List.of("B3", "A4"), List.of()).toList());
+    }
+
+    @Test
+    void shouldEvaluateFormulasUsingFunctionsAndConstantsOfJavaluator(){
+
+        // formulas stored when every formula was evaluated by javaluator, with its lower case names
+        Map<String, Cell> cells = new HashMap<>();
+        cells.put("A1", new Cell("A1", "-16"));
+        cells.put("A2", new Cell("A2", "=abs(A1)"));
+        cells.put("A3", new Cell("A3", "=2*pi"));
+        cells.put("A4", new Cell("A4", "=ln(e)+max(1,2)"));
+        cells.put("A5", new Cell("A5", "=ln(A1)"));
+        dependencyGraph.load(List.of(edge("A2", "A1"), edge("A5", "A1")));
+        CellOperationService legacyService = serviceOf(inMemoryStore(cells));
+
+        assertEquals("16.0", legacyService.getCellValue("A2"));
+        assertEquals(String.valueOf(2 * Math.PI), legacyService.getCellValue("A3"));
+        assertEquals("3.0", legacyService.getCellValue("A4"));
+        assertEquals("Error evaluating expression: Invalid argument passed to ln",
+                assertThrows(ExpressionEvaluationException.class, () -> legacyService.getCellValue("A5")).getMessage());
+
+        // and they are still accepted on write
+        legacyService.setCellValue("B1", "=sqrt(A2)+round(A3)");
+        assertEquals("10.0", legacyService.getCellValue("B1"));
+        legacyService.setCellValue("A1", "-81");
+        assertEquals("15.0", legacyService.getCellValue("B1"));
+    }
+
+    @Test
+    void shouldServeColdReadOfUnchangedFormulaFromPersistedComputedValue(){
+
+        Map<String, Cell> cells = new HashMap<>();
+        CellOperationService eagerService = serviceOf(inMemoryStore(cells));
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("A1", 2);
+        values.put("B1", "=A1*3");
+        values.put("C1", "=B1+1");
+        eagerService.setCellValues(values);
+        // stored by the recalculation after the write
+        assertEquals(6.0, cells.get("B1").getComputedValue());
+        assertEquals(7.0, cells.get("C1").getComputedValue());
+
+        // an instance with empty caches reads C1 with a single lookup
+        CellStore coldStore = spy(inMemoryStore(cells));
+        CellOperationService coldService = new CellOperationService(coldStore, new FormulaCache(1_000_000), new ValueCache(1_000_000), new DependencyGraph(),
+                recalculationScheduler, cellMetrics, cellLocks, cellSubscriptions);
+        assertEquals("7.0", coldService.getCellValue("C1"));
+        verify(coldStore, times(1)).findById("C1");
+        verify(coldStore, never()).findAllById(anyIterable());
+        verify(coldStore, never()).saveComputedValues(anyMap(), anyMap());
+
+        // in the lazy mode a write only marks its dependents stale, the first read computes and stores the value
+        CellOperationService lazyService = serviceOf(inMemoryStore(cells), schedulerOf(RecalculationScheduler.Mode.LAZY));
+        lazyService.setCellValue("A1", 5);
+        assertNull(cells.get("B1").getComputedValue());
+        assertNull(cells.get("C1").getComputedValue());
+        // a read-only caller gets the value without storing it
+        assertEquals("16.0", lazyService.getCellValueWithoutStoring("C1", false));
+        assertNull(cells.get("C1").getComputedValue());
+        valueCache.invalidate("A1");
+        assertEquals("16.0", lazyService.getCellValue("C1"));
+        assertEquals(16.0, cells.get("C1").getComputedValue());
+        // B1 is only evaluated as a precedent of C1
+        assertNull(cells.get("B1").getComputedValue());
+    }
+
+    @Test
+    void shouldRecalculateDebouncedWritesInBackgroundAndWaitForThemOnConsistentRead(){
+
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        // a debounce longer than the test, so only the consistent read starts the recalculation
+        RecalculationScheduler backgroundScheduler = new RecalculationScheduler(512, 1, RecalculationScheduler.Mode.BACKGROUND,
+                Duration.ofMinutes(5), Duration.ofMinutes(5), Duration.ofSeconds(30));
+        backgroundScheduler.bindTo(registry);
+        Map<String, Cell> cells = new HashMap<>();
+        CellStore backgroundStore = spy(inMemoryStore(cells));
+        CellOperationService backgroundService = serviceOf(backgroundStore, backgroundScheduler);
+        try {
+            Map<String, Object> values = new LinkedHashMap<>();
+            values.put("A1", 2);
+            values.put("B1", "=A1*3");
+            backgroundService.setCellValues(values);
+            for (int value = 3; value <= 5; value++) {
+                backgroundService.setCellValue("A1", value);
+            }
+
+            // the writes return before the recalculation, the three writes to A1 are merged into the queued one
+            assertNull(cells.get("B1").getComputedValue());
+            assertEquals(2, registry.get("spreadsheet.recalculation.queue.depth").gauge().value());
+            assertEquals(3, registry.get("spreadsheet.recalculation.queue.debounced").functionCounter().count());
+            verify(backgroundStore, never()).findValueVersions(anyCollection());
+
+            assertEquals("15.0", backgroundService.getCellValue("B1", true));
+            // A1 and B1 are recalculated together, and the value is stored before the read returns
+            verify(backgroundStore, times(1)).findValueVersions(anyCollection());
+            assertEquals(15.0, cells.get("B1").getComputedValue());
+            assertEquals(0, registry.get("spreadsheet.recalculation.queue.depth").gauge().value());
+            assertEquals(1, registry.get("spreadsheet.recalculation.queue.lag").timer().count());
+        }
+        finally {
+            backgroundScheduler.shutdown();
+        }
+    }
+
+    @Test
+    void shouldReleaseConsistentReadsOfRecalculationsDroppedOnShutdown() throws InterruptedException {
+
+        RecalculationScheduler backgroundScheduler = new RecalculationScheduler(512, 1, RecalculationScheduler.Mode.BACKGROUND,
+                Duration.ZERO, Duration.ZERO, Duration.ofSeconds(30));
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Collection<String>> recalculated = new ArrayList<>();
+        try {
+            // the worker is kept busy with A1, so B1 is still queued when the scheduler is shut down
+            backgroundScheduler.submit(List.of("A1"), false, cellIds -> {
+                running.countDown();
+                try {
+                    release.await();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            assertTrue(running.await(10, TimeUnit.SECONDS));
+            backgroundScheduler.submit(List.of("B1"), false, recalculated::add);
+            AtomicBoolean finished = new AtomicBoolean(true);
+            Thread reader = new Thread(() -> finished.set(backgroundScheduler.awaitRecalculation(List.of("B1"))));
+            reader.start();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (reader.getState() != Thread.State.TIMED_WAITING && System.nanoTime() < deadline) {
+                Thread.onSpinWait();
+            }
+
+            backgroundScheduler.shutdown();
+            // the reader returns right away rather than after the 30s timeout
+            reader.join(TimeUnit.SECONDS.toMillis(5));
+            assertFalse(reader.isAlive());
+            assertFalse(finished.get());
+            assertEquals(Set.of("A1"), backgroundScheduler.getUnfinishedCellIds());
+            assertTrue(backgroundScheduler.awaitRecalculation(List.of("B1")));
+        }
+        finally {
+            release.countDown();
+            backgroundScheduler.shutdown();
+        }
+        assertTrue(recalculated.isEmpty());
+    }
+
+    @Test
+    void shouldRecalculateDependentOfCellWrittenFasterThanDebounce() throws InterruptedException {
+
+        RecalculationScheduler backgroundScheduler = new RecalculationScheduler(512, 1, RecalculationScheduler.Mode.BACKGROUND,
+                Duration.ofMillis(200), Duration.ofMillis(400), Duration.ofSeconds(30));
+        Map<String, Cell> cells = new ConcurrentHashMap<>();
+        CellOperationService backgroundService = serviceOf(inMemoryStore(cells), backgroundScheduler);
+        try {
+            Map<String, Object> values = new LinkedHashMap<>();
+            values.put("A1", 0);
+            values.put("B1", "=A1*2");
+            backgroundService.setCellValues(values);
+            backgroundScheduler.awaitRecalculation(values.keySet());
+
+            // A1 is written more often than the debounce, so only the max wait lets B1 be recalculated meanwhile
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            int value = 0;
+            do {
+                backgroundService.setCellValue("A1", ++value);
+                Thread.sleep(20);
+            }
+            while (cells.get("B1").getComputedValue() == null && System.nanoTime() < deadline);
+            assertNotNull(cells.get("B1").getComputedValue());
+        }
+        finally {
+            backgroundScheduler.shutdown();
+        }
+    }
+
+    @Test
+    void shouldEvaluateAggregatesOverRangeSkippingEmptyAndTextCells(){
+
+        Map<String, Cell> cells = new HashMap<>();
+        cells.put("A1", new Cell("A1", "4"));
+        cells.put("A2", new Cell("A2", "text"));
+        cells.put("A3", new Cell("A3", "=A1*2"));
+        cells.put("B1", new Cell("B1", "1"));
+        cells.put("C1", new Cell("C1", "=SUM(A1:B4)+AVG(A1:A3)*10+MIN(A1:A4, -1)+MAX(A1:A9)+COUNT(A1:B9)"));
+        cells.put("C2", new Cell("C2", "=AVG(D1:D9)+MIN(D1:D9)+MAX(D1:D9)+SUM(D1:D9)+COUNT(D1:D9)"));
+        CellStore rangeStore = spy(inMemoryStore(cells));
+        CellOperationService rangeService = serviceOf(rangeStore);
+
+        // 13 + 6 * 10 - 1 + 8 + 3
+        assertEquals("83.0", rangeService.getCellValue("C1"));
+        verify(rangeStore, times(1)).findById("C1");
+        // the largest range A1:B9 is loaded first and holds the others
+        verify(rangeStore, times(1)).findAllInRange(CellRange.parse("A1:B9"));
+        verify(rangeStore, times(1)).findAllInRange(any(CellRange.class));
+        verify(rangeStore, never()).findAllById(anyIterable());
+        // every function is 0 over ranges without numbers
+        assertEquals("0.0", rangeService.getCellValue("C2"));
+        assertEquals("2.5", cellOperationService.calculateExpressionValue(FormulaCompiler.compile("AVG(2, 3, D1:D9)"), valueCache.getGeneration()));
+        assertThrows(ExpressionEvaluationException.class, () -> FormulaCompiler.compile("A1:A3+1"));
+    }
+
+    @Test
+    void shouldParseWithPrecedenceAndReportErrorPosition(){
+
+        assertEquals("-4.0", cellOperationService.calculateExpressionValue(FormulaCompiler.compile("-2^2"), valueCache.getGeneration()));
+        assertEquals("64.0", cellOperationService.calculateExpressionValue(FormulaCompiler.compile("2^3^2"), valueCache.getGeneration()));
+        assertEquals("0.5", cellOperationService.calculateExpressionValue(FormulaCompiler.compile("2^-1"), valueCache.getGeneration()));
+        assertEquals("-1.0", cellOperationService.calculateExpressionValue(FormulaCompiler.compile(" 1 - -2 * -3 + 8 % 3 + 1e1 / 5 "), valueCache.getGeneration()));
+        assertEquals("9.0", cellOperationService.calculateExpressionValue(FormulaCompiler.compile("SUM(1, -(2 - 4), 3 * 2)"), valueCache.getGeneration()));
+        assertEquals(List.of("B2", "C3", "A1:A3"), FormulaCompiler.compile("B2*(C3+SUM(A1:A3, B2))").getPrecedents());
+
+        assertEquals("Error evaluating expression: Expected ')' at position 8",
+                assertThrows(ExpressionEvaluationException.class, () -> FormulaCompiler.compile("(A1+2*3")).getMessage());
+        assertEquals("Error evaluating expression: Unexpected ')' at position 6",
+                assertThrows(ExpressionEvaluationException.class, () -> FormulaCompiler.compile("12+23)")).getMessage());
+        assertEquals("Error evaluating expression: Unexpected end of expression at position 4",
+                assertThrows(ExpressionEvaluationException.class, () -> FormulaCompiler.compile("A1*")).getMessage());
+        assertEquals("Error evaluating expression: FOO is not a number, a cell reference or a function at position 3",
+                assertThrows(ExpressionEvaluationException.class, () -> FormulaCompiler.compile("1+FOO(A1)")).getMessage());
+        assertEquals("Error evaluating expression: Range can only be used in a function at position 1",
+                assertThrows(ExpressionEvaluationException.class, () -> FormulaCompiler.compile("A1:A3+1")).getMessage());
+        assertThrows(ExpressionEvaluationException.class, () -> FormulaCompiler.compile("(".repeat(10_000) + "1" + ")".repeat(10_000)));
+    }
+
+    @Test
+    void shouldStoreRangeAsSingleDependencyAndRecalculateOnWriteInRange(){
+
+        Map<String, Cell> cells = new HashMap<>();
+        cells.put("A1", new Cell("A1", "1"));
+        cells.put("A2", new Cell("A2", "2"));
+        CellStore rangeStore = inMemoryStore(cells);
+        CellOperationService rangeService = serviceOf(rangeStore);
+
+        rangeService.setCellValue("B1", "=SUM(A1:A10000)");
+        assertEquals(List.of(), cells.get("B1").getDependentCells());
+        assertEquals(Set.of("A1:A10000"), cells.get("B1").getRangeReferences());
+        assertEquals(3.0, valueCache.get("B1"));
+
+        rangeService.setCellValue("A9999", "=A1*5");
+        assertEquals(8.0, valueCache.get("B1"));
+        // the range is one node, holding the cells of the graph found by their coordinates
+        assertEquals(List.of("A1", "A9999"), dependencyGraph.getPrecedents("A1:A10000"));
+        assertEquals(Set.of("A1:A10000", "A9999"), dependencyGraph.getDependents("A1"));
+
+        assertThrows(SelfReferenceException.class, () -> rangeService.setCellValue("A5", "=MAX(A1:A9)"));
+        assertThrows(CircularDependencyException.class, () -> rangeService.setCellValue("A1", "=B1"));
+
+        rangeService.setCellValue("B1", "=A2");
+        assertEquals(Set.of("A9999"), dependencyGraph.getDependents("A1"));
+        assertEquals(Set.of(), dependencyGraph.getDependents("A3"));
+    }
+
+    @Test
+    void shouldRecalculateLevelsInParallelWithSameResultsAsSequential(){
+
+        Map<Boolean, Map<String, Double>> results = new HashMap<>();
+        for (boolean parallel : List.of(false, true)) {
+            // a base cell feeding a wide level of formulas, diamonds joining pairs of them and a sum over the level
+            Map<String, Cell> cells = new HashMap<>();
+            DependencyGraph graph = new DependencyGraph();
+            cells.put("A1", new Cell("A1", "3"));
+            for (int row = 1; row <= 2000; row++) {
+                cells.put("B" + row, new Cell("B" + row, "=A1*" + row + "/7"));
+                graph.setPrecedents("B" + row, List.of("A1"));
+                cells.put("C" + row, new Cell("C" + row, "=B" + row + "+B" + (row % 2000 + 1)));
+                graph.setPrecedents("C" + row, List.of("B" + row, "B" + (row % 2000 + 1)));
+            }
+            cells.put("D1", new Cell("D1", "=SUM(C1:C2000)"));
+            graph.setPrecedents("D1", List.of("C1:C2000"));
+            ValueCache cache = new ValueCache(1_000_000);
+            RecalculationScheduler scheduler = parallel ? new RecalculationScheduler(1, 4, RecalculationScheduler.Mode.EAGER, Duration.ZERO, Duration.ZERO, Duration.ofSeconds(5)) : new RecalculationScheduler(Integer.MAX_VALUE, 1, RecalculationScheduler.Mode.EAGER, Duration.ZERO, Duration.ZERO, Duration.ofSeconds(5));
+            CellOperationService service = unrecordedServiceOf(inMemoryStore(cells), cache, graph, scheduler, new CellLocks(1024));
+
+            assertEquals(4, graph.getAffectedCellsInTopologicalLevels(List.of("A1")).size());
+            service.setCellValue("A1", "5");
+            Map<String, Double> values = new HashMap<>();
+            cells.keySet().forEach(cellId -> values.put(cellId, cache.get(cellId)));
+            results.put(parallel, values);
+            scheduler.shutdown();
+        }
+        assertEquals(results.get(false), results.get(true));
+        assertEquals(5.0 * 2001 * 2000 / 7, results.get(true).get("D1"), 1e-6);
+    }
+
+    @Test
+    void shouldEvictBeyondMaxSizeAndKeepInvalidatingValuesComputedFromEvictedOnes(){
+
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        ValueCache boundedValueCache = new ValueCache(2);
+        boundedValueCache.bindTo(registry);
+        long generation = boundedValueCache.getGeneration();
+        boundedValueCache.put("B1", 1.0, List.of("A1"), generation);
+        boundedValueCache.put("C1", 2.0, List.of("B1"), generation);
+        boundedValueCache.put("D1", 3.0, List.of("A2:A9"), generation);
+        // B1 is kept, C1 is computed from it
+        assertEquals(2, registry.get("spreadsheet.cache.size").tag("cache", "value").gauge().value());
+        assertEquals(1, registry.get("spreadsheet.cache.evictions").tag("cache", "value").functionCounter().count());
+        assertEquals(1.0, boundedValueCache.get("B1"));
+        boundedValueCache.put("E1", 4.0, List.of("A2:A9"), generation);
+        boundedValueCache.put("F1", 5.0, List.of("E1"), generation);
+        boundedValueCache.invalidate("A1");
+        boundedValueCache.invalidate("A5");
+        assertEquals(0, registry.get("spreadsheet.cache.size").tag("cache", "value").gauge().value());
+
+        FormulaCache boundedFormulaCache = new FormulaCache(1);
+        boundedFormulaCache.bindTo(registry);
+        assertEquals(List.of("A1"), boundedFormulaCache.getOrCompile("B1", "A1+1").getReferences());
+        assertEquals(List.of("A2"), boundedFormulaCache.getOrCompile("C1", "A2+1").getReferences());
+        assertEquals(List.of("A1"), boundedFormulaCache.getOrCompile("B1", "A1+1").getReferences());
+        assertEquals(1, registry.get("spreadsheet.cache.size").tag("cache", "formula").gauge().value());
+        assertEquals(2, registry.get("spreadsheet.cache.evictions").tag("cache", "formula").functionCounter().count());
+    }
+
+    @Test
+    void shouldKeepCellsAndGraphConsistentUnderConcurrentWrites() throws Exception {
+
+        // writers racing on a few formula cells, each referencing cells inserted by whichever write comes first
+        Map<String, Cell> cells = new ConcurrentHashMap<>();
+        DependencyGraph graph = new DependencyGraph();
+        ValueCache cache = new ValueCache(1_000_000);
+        CellOperationService service = unrecordedServiceOf(inMemoryStore(cells), cache, graph,
+                schedulerOf(RecalculationScheduler.Mode.EAGER), new CellLocks(64));
+        ExecutorService writers = Executors.newFixedThreadPool(8);
+        List<Future<?>> results = new ArrayList<>();
+        for (int writer = 0; writer < 8; writer++) {
+            Random random = new Random(writer);
+            results.add(writers.submit(() -> {
+                for (int write = 0; write < 2_000; write++) {
+                    int kind = random.nextInt(4);
+                    if (kind == 0) {
+                        service.setCellValue("B" + (random.nextInt(50) + 1), random.nextInt(100));
+                    }
+                    else if (kind == 1) {
+                        service.setCellValues(Map.of("A" + (random.nextInt(20) + 1), "=B" + (random.nextInt(50) + 1) + "*2",
+                                "C" + (random.nextInt(20) + 1), random.nextInt(100)));
+                    }
+                    else {
+                        service.setCellValue("A" + (random.nextInt(20) + 1), "=B" + (random.nextInt(50) + 1) + "+B" + (random.nextInt(50) + 1));
+                    }
+                }
+            }));
+        }
+        for (Future<?> result : results) {
+            result.get();
+        }
+        writers.shutdown();
+
+        for (int row = 1; row <= 20; row++) {
+            Cell cell = cells.get("A" + row);
+            if (cell == null) {
+                continue;
+            }
+            List<String> references = FormulaCompiler.compile(cell.getData().substring(1)).getReferences();
+            assertEquals(Set.copyOf(references), Set.copyOf(graph.getPrecedents(cell.getCellId())));
+            assertEquals(references, cell.getDependentCells().stream().map(Cell::getCellId).toList());
+            // the cached value, if any, is computed from the last written precedents
+            Double cachedValue = cache.get(cell.getCellId());
+            if (cachedValue != null) {
+                Map<String, Double> expected = new HashMap<>();
+                assertEquals(service.evaluateExpression(FormulaCompiler.compile(cell.getData().substring(1)), expected, cache.getGeneration()), cachedValue);
+            }
+        }
+    }
+
+    @Test
+    void shouldNotCacheValueComputedBeforeInvalidation(){
+
+        long generation = valueCache.getGeneration();
+        valueCache.invalidate("A2");
+        valueCache.put("A1", 1.0, List.of("A2"), generation);
+
+        assertEquals(null, valueCache.get("A1"));
+    }
+
     @Test
     void getValue_ThrowInvalidCellIdException(){
 
@@ -0,0 +1,135 @@
+package com.spreadsheet.spreadsheetcelloperation.utils;
+
+import com.spreadsheet.spreadsheetcelloperation.exception.ExpressionEvaluationException;
+import com.spreadsheet.spreadsheetcelloperation.model.CellRange;
+import com.spreadsheet.spreadsheetcelloperation.model.FormulaNode;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class FormulaCompilerTest {
+
+    private static final double DELTA = 1e-12;
+
+    // A1 = -3, A2 = 100, A3 = 0.5
+    private static final Map<String, Double> VALUES = Map.of("A1", -3.0, "A2", 100.0, "A3", 0.5);
+
+    private static final FormulaNode.Operands OPERANDS = new FormulaNode.Operands() {
+        @Override
+        public double valueOf(String cellId) {
+            return VALUES.get(cellId);
+        }
+
+        @Override
+        public double aggregate(CellRange range, FormulaNode.AggregateFunction function) {
+            throw new UnsupportedOperationException();
+        }
+    };
+
+    private static double evaluate(String expression) {
+        return FormulaCompiler.compile(expression).evaluate(OPERANDS);
+    }
+
+    @Test
+    void shouldEvaluateConstants() {
+
+        assertEquals(Math.PI, evaluate("pi"), DELTA);
+        assertEquals(2 * Math.PI, evaluate("2*pi"), DELTA);
+        assertEquals(Math.E, evaluate("e"), DELTA);
+        assertEquals(Math.E * 1e1, evaluate("E*1e1"), DELTA);
+        assertEquals(Math.PI, evaluate("PI"), DELTA);
+    }
+
+    @Test
+    void shouldEvaluateRoundingFunctions() {
+
+        assertEquals(3, evaluate("abs(A1)"), DELTA);
+        assertEquals(2, evaluate("ceil(1.2)"), DELTA);
+        assertEquals(-2, evaluate("floor(-1.5)"), DELTA);
+        assertEquals(3, evaluate("round(2.5)"), DELTA);
+        assertEquals(-2, evaluate("round(-2.5)"), DELTA);
+    }
+
+    @Test
+    void shouldEvaluateRootAndLogarithms() {
+
+        assertEquals(4, evaluate("sqrt(16)"), DELTA);
+        assertEquals(10, evaluate("sqrt(A2)"), DELTA);
+        assertEquals(1, evaluate("ln(e)"), DELTA);
+        assertEquals(Math.log(100), evaluate("ln(A2)"), DELTA);
+        assertEquals(2, evaluate("log(A2)"), DELTA);
+        assertEquals(Double.NEGATIVE_INFINITY, evaluate("log(0)"));
+    }
+
+    @Test
+    void shouldEvaluateTrigonometricFunctions() {
+
+        assertEquals(Math.sin(0.5), evaluate("sin(A3)"), DELTA);
+        assertEquals(-1, evaluate("cos(pi)"), DELTA);
+        assertEquals(1, evaluate("tan(pi/4)"), DELTA);
+        assertEquals(Math.PI / 6, evaluate("asin(A3)"), DELTA);
+        assertEquals(Math.PI / 3, evaluate("acos(A3)"), DELTA);
+        assertEquals(Math.PI / 4, evaluate("atan(1)"), DELTA);
+        assertEquals(Math.sinh(1), evaluate("sinh(1)"), DELTA);
+        assertEquals(Math.cosh(1), evaluate("cosh(1)"), DELTA);
+        assertEquals(Math.tanh(1), evaluate("tanh(1)"), DELTA);
+    }
+
+    @Test
+    void shouldEvaluateAggregateFunctionsOfValuesInAnyCase() {
+
+        assertEquals(2, evaluate("max(1,2)"), DELTA);
+        assertEquals(-3, evaluate("min(A1, 4)"), DELTA);
+        assertEquals(97, evaluate("sum(A1,A2)"), DELTA);
+        assertEquals(1.5, evaluate("avg(1,2)"), DELTA);
+        assertEquals(2, evaluate("Count(1,2)"), DELTA);
+    }
+
+    @Test
+    void shouldDrawRandomNumber() {
+
+        double value = evaluate("random()");
+        assertTrue(value >= 0 && value < 1);
+        assertNotEquals(FormulaCompiler.compile("random()").evaluate(OPERANDS), evaluate("RANDOM() + 1"));
+    }
+
+    @Test
+    void shouldNestFunctionsAndKeepReferences() {
+
+        assertEquals(4, evaluate("abs(round(-sqrt(A2)*ln(e)) + 2 * 3)"), DELTA);
+        assertEquals(List.of("A2", "A1"), FormulaCompiler.compile("sqrt(A2)+abs(A1)").getPrecedents());
+    }
+
+    @Test
+    void shouldFailOnArgumentOutsideDomain() {
+
+        assertEquals("Error evaluating expression: Invalid argument passed to ln",
+                assertThrows(ExpressionEvaluationException.class, () -> evaluate("ln(A1)")).getMessage());
+        assertEquals("Error evaluating expression: Invalid argument passed to asin",
+                assertThrows(ExpressionEvaluationException.class, () -> evaluate("asin(2)")).getMessage());
+        assertEquals("Error evaluating expression: Invalid argument passed to sqrt",
+                assertThrows(ExpressionEvaluationException.class, () -> evaluate("sqrt(-1)")).getMessage());
+    }
+
+    @Test
+    void shouldRejectMisusedFunctionsAndConstants() {
+
+        assertEquals("Error evaluating expression: Expected ')' at position 6",
+                assertThrows(ExpressionEvaluationException.class, () -> FormulaCompiler.compile("abs(1,2)")).getMessage());
+        assertEquals("Error evaluating expression: Unexpected ')' at position 6",
+                assertThrows(ExpressionEvaluationException.class, () -> FormulaCompiler.compile("sqrt()")).getMessage());
+        assertEquals("Error evaluating expression: Expected ')' at position 8",
+                assertThrows(ExpressionEvaluationException.class, () -> FormulaCompiler.compile("random(1)")).getMessage());
+        assertEquals("Error evaluating expression: pi is not a number, a cell reference or a function at position 1",
+                assertThrows(ExpressionEvaluationException.class, () -> FormulaCompiler.compile("pi(2)")).getMessage());
+        assertEquals("Error evaluating expression: abs is not a number, a cell reference or a function at position 3",
+                assertThrows(ExpressionEvaluationException.class, () -> FormulaCompiler.compile("1+abs")).getMessage());
+        assertThrows(ExpressionEvaluationException.class, () -> FormulaCompiler.compile("sqrt(A1:A3)"));
+    }
+}